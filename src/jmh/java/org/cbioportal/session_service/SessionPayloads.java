@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service;
+
+import java.util.Random;
+
+/**
+ * Session data of realistic shapes and sizes for the benchmarks: the
+ * settings of a page, and virtual studies with many sample ids.
+ */
+public final class SessionPayloads {
+
+    public static final String SETTINGS = "settings";
+    public static final String VIRTUAL_STUDY_10K = "virtual_study_10k";
+    public static final String VIRTUAL_STUDY_100K = "virtual_study_100k";
+
+    private SessionPayloads() {}
+
+    public static String json(String payload) {
+        switch (payload) {
+            case SETTINGS:
+                return settings();
+            case VIRTUAL_STUDY_10K:
+                return virtualStudy(10000);
+            case VIRTUAL_STUDY_100K:
+                return virtualStudy(100000);
+            default:
+                throw new IllegalArgumentException("unknown payload " + payload);
+        }
+    }
+
+    private static String settings() {
+        return "{\"page\":\"study_view\",\"origin\":[\"msk_impact_2017\"],\"owner\":\"user@example.org\","
+            + "\"chartSettings\":[{\"id\":\"MUTATION_COUNT\",\"name\":\"Mutation Count\",\"chartType\":\"BAR_CHART\","
+            + "\"patientAttribute\":false,\"layout\":{\"x\":0,\"y\":0,\"w\":2,\"h\":1}},"
+            + "{\"id\":\"CANCER_TYPE\",\"name\":\"Cancer Type\",\"chartType\":\"PIE_CHART\","
+            + "\"patientAttribute\":false,\"layout\":{\"x\":2,\"y\":0,\"w\":1,\"h\":1}},"
+            + "{\"id\":\"OS_SURVIVAL\",\"name\":\"Overall Survival\",\"chartType\":\"SURVIVAL\","
+            + "\"patientAttribute\":true,\"layout\":{\"x\":3,\"y\":0,\"w\":2,\"h\":2}}],"
+            + "\"groupColors\":{\"Primary\":\"#2986E2\",\"Metastasis\":\"#DC3912\"},"
+            + "\"created\":1700000000000}";
+    }
+
+    /**
+     * A virtual study with the given number of samples spread over a few
+     * studies, like one saved from the study summary page.
+     */
+    private static String virtualStudy(int samples) {
+        Random random = new Random(samples);
+        String[] studies = {"msk_impact_2017", "brca_tcga_pan_can_atlas_2018", "luad_tcga_pan_can_atlas_2018"};
+        StringBuilder json = new StringBuilder(samples * 24);
+        json.append("{\"name\":\"Virtual study with ").append(samples).append(" samples\",")
+            .append("\"description\":\"Samples selected on the study summary page\",")
+            .append("\"users\":[\"user@example.org\"],\"owner\":\"user@example.org\",")
+            .append("\"origin\":[\"").append(String.join("\",\"", studies)).append("\"],")
+            .append("\"studies\":[");
+        for (int study = 0; study < studies.length; study++) {
+            if (study > 0) {
+                json.append(',');
+            }
+            json.append("{\"id\":\"").append(studies[study]).append("\",\"samples\":[");
+            int studySamples = samples / studies.length + (study < samples % studies.length ? 1 : 0);
+            for (int sample = 0; sample < studySamples; sample++) {
+                if (sample > 0) {
+                    json.append(',');
+                }
+                json.append("\"P-").append(String.format("%07d", random.nextInt(10000000)))
+                    .append("-T0").append(1 + random.nextInt(3)).append("-IM").append(3 + random.nextInt(5))
+                    .append('"');
+            }
+            json.append("]}");
+        }
+        json.append("],\"studyViewFilter\":{\"studyIds\":[\"").append(String.join("\",\"", studies)).append("\"],")
+            .append("\"clinicalDataFilters\":[{\"attributeId\":\"CANCER_TYPE\",\"values\":[{\"value\":\"Breast Cancer\"}]}]},")
+            .append("\"created\":1700000000000}");
+        return json.toString();
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.domain;
+
+import org.bson.Document;
+import org.cbioportal.session_service.SessionPayloads;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Session.setData as done for every added or updated session: parsing the
+ * JSON into a Document and computing the checksum, for which legacy_md5
+ * builds Document.toString(). The parts are measured separately too.
+ * Run with -prof gc for the allocation rate.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SessionSetDataBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Payload {
+        @Param({SessionPayloads.SETTINGS, SessionPayloads.VIRTUAL_STUDY_10K, SessionPayloads.VIRTUAL_STUDY_100K})
+        public String payload;
+
+        public String json;
+        public Document document;
+
+        @Setup
+        public void setUp() {
+            json = SessionPayloads.json(payload);
+            document = Document.parse(json);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Checksum {
+        @Param({"legacy_md5", "md5", "sha256"})
+        public ChecksumAlgorithm algorithm;
+    }
+
+    @Benchmark
+    public Session setData(Payload payload, Checksum checksum) {
+        Session session = new Session();
+        session.setData(payload.json, checksum.algorithm);
+        return session;
+    }
+
+    @Benchmark
+    public Document parse(Payload payload) {
+        return Document.parse(payload.json);
+    }
+
+    @Benchmark
+    public String documentToString(Payload payload) {
+        return payload.document.toString();
+    }
+
+    @Benchmark
+    public String checksum(Payload payload, Checksum checksum) {
+        return checksum.algorithm.checksum(payload.document);
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.domain.internal;
+
+import org.cbioportal.session_service.domain.Session;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.NoOpDbRefResolver;
+import org.springframework.data.mongodb.core.convert.QueryMapper;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentEntity;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.cbioportal.session_service.domain.internal.SessionQueries.*;
+
+/**
+ * Building the mongo query of GET /api/sessions/{source}/{type}/query, up
+ * to the query and projection documents MongoTemplate sends, with and
+ * without a projection and a page.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SessionQueryBenchmark {
+
+    private static final String SOURCE = "msk_portal";
+    private static final String FIELD = "data.users";
+    private static final String VALUE = "user@example.org";
+
+    @Param({"false", "true"})
+    public boolean projected;
+
+    @Param({"false", "true"})
+    public boolean paged;
+
+    private List<String> fields;
+    private String after;
+    private int limit;
+    private QueryMapper queryMapper;
+    private MongoPersistentEntity<?> entity;
+
+    @Setup
+    public void setUp() {
+        fields = projected ? Arrays.asList("data.name", "data.description", "data.origin") : null;
+        after = paged ? "65f1c0ffee0000000000abcd" : null;
+        limit = paged ? 100 : 0;
+        MongoMappingContext mappingContext = new MongoMappingContext();
+        MappingMongoConverter converter = new MappingMongoConverter(NoOpDbRefResolver.INSTANCE, mappingContext);
+        converter.afterPropertiesSet();
+        queryMapper = new QueryMapper(converter);
+        entity = mappingContext.getRequiredPersistentEntity(Session.class);
+    }
+
+    @Benchmark
+    public void buildQuery(Blackhole blackhole) {
+        // the query string built by SessionWebSupport.buildFieldQuery
+        String query = "{\"" + FIELD + "\":\"" + VALUE + "\"}";
+        Query mongoQuery = page(project(bySourceAndQuery(SOURCE, query), fields, false), after, limit);
+        blackhole.consume(queryMapper.getMappedObject(mongoQuery.getQueryObject(), entity));
+        blackhole.consume(queryMapper.getMappedFields(mongoQuery.getFieldsObject(), entity));
+        blackhole.consume(queryMapper.getMappedSort(mongoQuery.getSortObject(), entity));
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.web;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.types.ObjectId;
+import org.cbioportal.session_service.SessionPayloads;
+import org.cbioportal.session_service.domain.Session;
+import org.cbioportal.session_service.domain.SessionType;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.NoOpDbRefResolver;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A session read as the BSON mongo returns, written as JSON the two ways
+ * the service can: decoded into a Document, mapped onto a Session and
+ * written by Jackson, or written straight from the BSON by
+ * RawSessionJsonWriter (session.read.raw-bson=true).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RawSessionJsonBenchmark {
+
+    @Param({SessionPayloads.SETTINGS, SessionPayloads.VIRTUAL_STUDY_10K, SessionPayloads.VIRTUAL_STUDY_100K})
+    public String payload;
+
+    private RawBsonDocument stored;
+    private DocumentCodec documentCodec;
+    private MappingMongoConverter converter;
+    private ObjectWriter writer;
+    private RawSessionJsonWriter rawWriter;
+
+    @Setup
+    public void setUp() {
+        Session session = new Session();
+        session.setData(SessionPayloads.json(payload));
+        stored = new RawBsonDocument(new Document("_id", new ObjectId())
+            .append("source", "msk_portal")
+            .append("type", SessionType.virtual_study.toString())
+            .append("checksum", session.getChecksum())
+            .append("data", session.getData()), new DocumentCodec());
+        documentCodec = new DocumentCodec();
+        converter = new MappingMongoConverter(NoOpDbRefResolver.INSTANCE, new MongoMappingContext());
+        converter.afterPropertiesSet();
+        // configured like the ObjectMapper of Spring MVC
+        ObjectMapper objectMapper = Jackson2ObjectMapperBuilder.json().build();
+        writer = objectMapper.writerWithView(Session.Views.Full.class);
+        rawWriter = new RawSessionJsonWriter(objectMapper);
+    }
+
+    @Benchmark
+    public byte[] jackson() throws Exception {
+        return writer.writeValueAsBytes(converter.read(Session.class, stored.decode(documentCodec)));
+    }
+
+    @Benchmark
+    public byte[] rawBson() {
+        return rawWriter.toJson(stored);
+    }
+}
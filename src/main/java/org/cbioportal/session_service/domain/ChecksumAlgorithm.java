@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.domain;
+
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriter;
+import org.bson.json.JsonWriterSettings;
+import org.bson.types.Decimal128;
+import org.springframework.util.DigestUtils;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * How the checksum used to deduplicate sessions is computed from the
+ * session data.
+ *
+ * legacy_md5 is the MD5 of Document.toString(), which depends on the key
+ * order of the JSON that was sent. The other algorithms hash a canonical
+ * JSON form of the data with keys sorted at every level, written straight
+ * into the digest without building the string.
+ */
+public enum ChecksumAlgorithm {
+    legacy_md5 {
+        @Override
+        public String checksum(Object data) {
+            return DigestUtils.md5DigestAsHex(data.toString().getBytes());
+        }
+    },
+    md5 {
+        @Override
+        public String checksum(Object data) {
+            return canonicalDigest("MD5", data);
+        }
+    },
+    sha256 {
+        @Override
+        public String checksum(Object data) {
+            return canonicalDigest("SHA-256", data);
+        }
+    };
+
+    private static final JsonWriterSettings CANONICAL_JSON = JsonWriterSettings.builder()
+        .outputMode(JsonMode.RELAXED)
+        .build();
+
+    private static final CodecRegistry CODEC_REGISTRY = Bson.DEFAULT_CODEC_REGISTRY;
+
+    public abstract String checksum(Object data);
+
+    private static String canonicalDigest(String algorithm, Object data) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new DigestOutputStream(OutputStream.nullOutputStream(), digest), StandardCharsets.UTF_8))) {
+            JsonWriter jsonWriter = new JsonWriter(writer, CANONICAL_JSON);
+            // a JSON document has to start with a document, so wrap the data in one
+            jsonWriter.writeStartDocument();
+            jsonWriter.writeName("data");
+            writeCanonical(jsonWriter, data);
+            jsonWriter.writeEndDocument();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static void writeCanonical(JsonWriter writer, Object value) {
+        if (value == null) {
+            writer.writeNull();
+        } else if (value instanceof Map) {
+            Map<String, Object> map = (Map<String, Object>) value;
+            List<String> keys = new ArrayList<String>(map.keySet());
+            Collections.sort(keys);
+            writer.writeStartDocument();
+            for (String key : keys) {
+                writer.writeName(key);
+                writeCanonical(writer, map.get(key));
+            }
+            writer.writeEndDocument();
+        } else if (value instanceof List) {
+            writer.writeStartArray();
+            for (Object element : (List<Object>) value) {
+                writeCanonical(writer, element);
+            }
+            writer.writeEndArray();
+        } else if (value instanceof String) {
+            writer.writeString((String) value);
+        } else if (value instanceof Integer) {
+            writer.writeInt32((Integer) value);
+        } else if (value instanceof Long) {
+            writer.writeInt64((Long) value);
+        } else if (value instanceof Double) {
+            writer.writeDouble((Double) value);
+        } else if (value instanceof Boolean) {
+            writer.writeBoolean((Boolean) value);
+        } else if (value instanceof Decimal128) {
+            writer.writeDecimal128((Decimal128) value);
+        } else {
+            // other extended JSON types, e.g. dates or object ids
+            CODEC_REGISTRY.get((Class) value.getClass()).encode(writer, value, EncoderContext.builder().build());
+        }
+    }
+}
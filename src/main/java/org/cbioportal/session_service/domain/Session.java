@@ -40,7 +40,6 @@ import jakarta.validation.constraints.Size;
 
 import org.bson.Document;
 import org.springframework.data.annotation.Id;
-import org.springframework.util.DigestUtils;
 
 /**
  * @author Manda Wilson
@@ -60,6 +59,10 @@ public class Session {
     private SessionType type;
 
 
+    public void setId(String id) {
+        this.id = id;
+    }
+
     @JsonView(Session.Views.IdOnly.class)
     public String getId() {
         return id;
@@ -70,12 +73,16 @@ public class Session {
     }
 
     public void setData(Object data) {
+        setData(data, ChecksumAlgorithm.legacy_md5);
+    }
+
+    public void setData(Object data, ChecksumAlgorithm checksumAlgorithm) {
         if(data instanceof String) {
             this.data = Document.parse((String)data);
         } else {
             this.data = data;
         }
-        this.checksum = DigestUtils.md5DigestAsHex(this.data.toString().getBytes());
+        this.checksum = checksumAlgorithm.checksum(this.data);
     }
 
     @JsonView(Session.Views.Full.class)
@@ -0,0 +1,439 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.domain.internal;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import jakarta.validation.ConstraintViolation;
+import jakarta.validation.ConstraintViolationException;
+import jakarta.validation.Validator;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.cbioportal.session_service.domain.Session;
+import org.cbioportal.session_service.domain.SessionType;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.convert.QueryMapper;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentEntity;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import static org.cbioportal.session_service.domain.internal.SessionQueries.*;
+
+/**
+ * The session queries of SessionRepositoryImpl on the reactive driver,
+ * used by the reactive deployment (spring profile "reactive").
+ */
+@Repository
+@Profile("reactive")
+public class ReactiveSessionRepository {
+
+    @Autowired
+    private ReactiveMongoTemplate reactiveMongoTemplate;
+
+    @Autowired
+    private SessionCollectionManager sessionCollectionManager;
+
+    @Autowired
+    private SessionCollections sessionCollections;
+
+    @Autowired
+    private SessionDataCompression sessionDataCompression;
+
+    @Autowired
+    private Validator validator;
+
+    public Mono<Session> saveSession(Session session) {
+        return ensureCollection(session.getSource(), session.getType())
+            .then(this.reactiveMongoTemplate.save(session, collection(session.getSource(), session.getType())));
+    }
+
+    /**
+     * Inserts the session unless a session with the same source, type and
+     * checksum exists, and sets the id of the inserted or existing session.
+     * See SessionRepositoryImpl.upsertSession.
+     */
+    public Mono<Session> upsertSession(Session session) {
+        Set<ConstraintViolation<Session>> violations = this.validator.validate(session);
+        if (!violations.isEmpty()) {
+            return Mono.error(new ConstraintViolationException(violations));
+        }
+        Query query = bySourceAndTypeAndChecksum(session.getSource(), session.getType(), session.getChecksum());
+        query.fields().include("_id");
+        Update update = new Update();
+        Document stored = new Document("data", session.getData());
+        if (this.sessionDataCompression.compress(session, stored)) {
+            stored.forEach(update::setOnInsert);
+        } else {
+            update.setOnInsert("data", session.getData());
+        }
+        // see SessionRepositoryImpl.upsertSession
+        String fallback = this.sessionCollections.getFallbackCollection(session.getSource(), session.getType());
+        Mono<Session> existing = fallback == null ? Mono.empty()
+            : this.reactiveMongoTemplate.findOne(query, Session.class, fallback);
+        return existing
+            .switchIfEmpty(Mono.defer(() -> ensureCollection(session.getSource(), session.getType())
+                .then(this.reactiveMongoTemplate.findAndModify(query, update,
+                    FindAndModifyOptions.options().upsert(true).returnNew(true),
+                    Session.class, collection(session.getSource(), session.getType())))))
+            .map(saved -> {
+                session.setId(saved.getId());
+                return session;
+            });
+    }
+
+    /**
+     * Inserts the sessions with a single unordered bulk write and sets their
+     * ids. See SessionRepositoryImpl.insertSessions.
+     */
+    public Mono<List<Session>> insertSessions(String source, SessionType type, List<Session> sessions) {
+        Map<String, Session> sessionsByChecksum = new LinkedHashMap<String, Session>();
+        for (Session session : sessions) {
+            if (!sessionsByChecksum.containsKey(session.getChecksum())) {
+                session.setId(new ObjectId().toHexString());
+                sessionsByChecksum.put(session.getChecksum(), session);
+            }
+        }
+        if (sessionsByChecksum.isEmpty()) {
+            return Mono.just(sessions);
+        }
+        // sessions the partition migration has not moved are not inserted again
+        String fallback = this.sessionCollections.getFallbackCollection(source, type);
+        Mono<Map<String, String>> existingIds = fallback == null
+            ? Mono.just(new HashMap<String, String>())
+            : findIdsByChecksum(source, type, sessionsByChecksum.keySet(), fallback);
+        return existingIds.flatMap(existing -> {
+            List<Session> toInsert = new ArrayList<Session>(sessionsByChecksum.values());
+            toInsert.removeIf(session -> existing.containsKey(session.getChecksum()));
+            for (Map.Entry<String, String> id : existing.entrySet()) {
+                sessionsByChecksum.get(id.getKey()).setId(id.getValue());
+            }
+            return insertNew(source, type, sessionsByChecksum, toInsert);
+        }).map(inserted -> {
+            for (Session session : sessions) {
+                session.setId(sessionsByChecksum.get(session.getChecksum()).getId());
+            }
+            return sessions;
+        });
+    }
+
+    /**
+     * Inserts the sessions and gives those whose checksum already exists
+     * the id of the existing session.
+     */
+    private Mono<Map<String, Session>> insertNew(String source, SessionType type,
+        Map<String, Session> sessionsByChecksum, List<Session> toInsert) {
+        if (toInsert.isEmpty()) {
+            return Mono.just(sessionsByChecksum);
+        }
+        Mono<List<String>> duplicateChecksums = ensureCollection(source, type)
+            .then(this.reactiveMongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Session.class,
+                    collection(source, type))
+                .insert(toInsert)
+                .execute())
+            .<List<String>>map(result -> new ArrayList<String>())
+            .onErrorResume(DataAccessException.class, e -> {
+                List<BulkWriteError> errors = getBulkWriteErrors(e);
+                List<String> checksums = new ArrayList<String>();
+                for (BulkWriteError error : errors) {
+                    if (ErrorCategory.fromErrorCode(error.getCode()) != ErrorCategory.DUPLICATE_KEY) {
+                        return Mono.error(e);
+                    }
+                    checksums.add(toInsert.get(error.getIndex()).getChecksum());
+                }
+                return errors.isEmpty() ? Mono.error(e) : Mono.just(checksums);
+            });
+        return duplicateChecksums.flatMap(checksums -> checksums.isEmpty()
+                ? Mono.<Map<String, String>>just(new HashMap<String, String>())
+                : findIdsByChecksum(source, type, checksums, collection(source, type)))
+            .map(existingIds -> {
+                for (Map.Entry<String, String> existing : existingIds.entrySet()) {
+                    sessionsByChecksum.get(existing.getKey()).setId(existing.getValue());
+                }
+                return sessionsByChecksum;
+            });
+    }
+
+    private Mono<Map<String, String>> findIdsByChecksum(String source, SessionType type, Collection<String> checksums,
+        String collectionName) {
+        Query query = bySourceAndType(source, type);
+        query.addCriteria(Criteria.where("checksum").in(checksums));
+        query.fields().include("checksum");
+        return this.reactiveMongoTemplate.find(query, Session.class, collectionName)
+            .collectMap(Session::getChecksum, Session::getId);
+    }
+
+    public Mono<Session> findOneBySourceAndTypeAndChecksum(String source, SessionType type, String checksum) {
+        return withFallback(source, type, collectionName -> this.reactiveMongoTemplate.findOne(
+            bySourceAndTypeAndChecksum(source, type, checksum), Session.class, collectionName));
+    }
+
+    public Mono<Session> findOneBySourceAndTypeAndId(String source, SessionType type, String id) {
+        return withFallback(source, type, collectionName -> this.reactiveMongoTemplate.findOne(
+            bySourceAndTypeAndId(source, type, id), Session.class, collectionName));
+    }
+
+    /**
+     * Returns the checksum and compressed JSON of the session, or nothing
+     * if the session is not stored compressed.
+     */
+    public Mono<Document> findCompressedBySourceAndTypeAndId(String source, SessionType type, String id) {
+        if (!this.sessionDataCompression.isEnabled(type)) {
+            return Mono.empty();
+        }
+        Query query = bySourceAndTypeAndId(source, type, id);
+        query.fields().include("checksum", SessionDataCompression.COMPRESSED_DATA_FIELD,
+            SessionDataCompression.COMPRESSION_FIELD);
+        // read as Document, the load event would restore the data of a Session
+        return withFallback(source, type, collectionName -> findDocument(query, collectionName))
+            .filter(session -> session.containsKey(SessionDataCompression.COMPRESSED_DATA_FIELD));
+    }
+
+    /**
+     * See SessionRepositoryImpl.findDocumentBySourceAndTypeAndId.
+     */
+    public Mono<Document> findDocumentBySourceAndTypeAndId(String source, SessionType type, String id) {
+        return withFallback(source, type,
+                collectionName -> findDocument(bySourceAndTypeAndId(source, type, id), collectionName))
+            .map(session -> {
+                this.sessionDataCompression.inflate(session, null);
+                return session;
+            });
+    }
+
+    public Mono<Session> findChecksumBySourceAndTypeAndId(String source, SessionType type, String id) {
+        Query query = bySourceAndTypeAndId(source, type, id);
+        query.fields().include("checksum");
+        return withFallback(source, type,
+            collectionName -> this.reactiveMongoTemplate.findOne(query, Session.class, collectionName));
+    }
+
+    public Flux<Session> findChecksumsBySourceAndType(String source, SessionType type, String after, int limit) {
+        Query query = page(bySourceAndType(source, type), after, limit);
+        query.fields().include("checksum");
+        return withFallbackMerged(source, type,
+            collectionName -> this.reactiveMongoTemplate.find(query, Session.class, collectionName), after, limit);
+    }
+
+    public Flux<Session> findChecksumsBySourceAndTypeAndQuery(String source, SessionType type, String query,
+        String after, int limit) {
+        Query basicQuery = page(bySourceAndQuery(source, query), after, limit);
+        basicQuery.fields().include("checksum");
+        return withFallbackMerged(source, type,
+            collectionName -> this.reactiveMongoTemplate.find(basicQuery, Session.class, collectionName), after, limit);
+    }
+
+    public Flux<Session> findBySourceAndTypeAndIdIn(String source, SessionType type, Collection<String> ids) {
+        Flux<Session> sessions = this.reactiveMongoTemplate.find(
+            new Query(Criteria.where("source").is(source).and("type").is(type).and("id").in(ids)),
+            Session.class, collection(source, type));
+        String fallback = this.sessionCollections.getFallbackCollection(source, type);
+        if (fallback == null) {
+            return sessions;
+        }
+        return sessions.collectList().flatMapMany(found -> {
+            Set<String> missing = new HashSet<String>(ids);
+            found.forEach(session -> missing.remove(session.getId()));
+            Flux<Session> fromFallback = missing.isEmpty() ? Flux.empty() : this.reactiveMongoTemplate.find(
+                new Query(Criteria.where("source").is(source).and("type").is(type).and("id").in(missing)),
+                Session.class, fallback);
+            return Flux.fromIterable(found).concatWith(fromFallback);
+        });
+    }
+
+    public Flux<Session> findBySourceAndType(String source, SessionType type, String after, int limit) {
+        Query query = page(bySourceAndType(source, type), after, limit);
+        return withFallbackMerged(source, type,
+            collectionName -> this.reactiveMongoTemplate.find(query, Session.class, collectionName), after, limit);
+    }
+
+    public Flux<Session> findBySourceAndTypeAndQuery(String source, SessionType type, String query,
+        List<String> fields, String after, int limit) {
+        boolean compressed = this.sessionDataCompression.isEnabled(type);
+        Query projected = page(project(bySourceAndQuery(source, query), fields, compressed), after, limit);
+        if (fields == null || fields.isEmpty() || !compressed) {
+            return withFallbackMerged(source, type,
+                collectionName -> this.reactiveMongoTemplate.find(projected, Session.class, collectionName), after, limit);
+        }
+        // see SessionRepositoryImpl.readProjected
+        return withFallbackMerged(source, type,
+            collectionName -> this.reactiveMongoTemplate.find(projected, Document.class, collectionName)
+                .map(document -> {
+                    this.sessionDataCompression.inflate(document, fields);
+                    return this.reactiveMongoTemplate.getConverter().read(Session.class, document);
+                }), after, limit);
+    }
+
+    /**
+     * Replaces the data and checksum of the session in one atomic update.
+     * See SessionRepositoryImpl.updateSessionData.
+     */
+    public Mono<Boolean> updateSessionData(Session session, Collection<String> checksums) {
+        Set<ConstraintViolation<Session>> violations = this.validator.validate(session);
+        if (!violations.isEmpty()) {
+            return Mono.error(new ConstraintViolationException(violations));
+        }
+        Query query = bySourceAndTypeAndIdAndChecksumIn(session.getSource(), session.getType(), session.getId(),
+            checksums);
+        Update update = setData(session, this.sessionDataCompression);
+        return withFallback(session.getSource(), session.getType(),
+                collectionName -> this.reactiveMongoTemplate.updateFirst(query, update, Session.class, collectionName)
+                    .filter(result -> result.getMatchedCount() > 0))
+            .map(result -> true)
+            .defaultIfEmpty(false);
+    }
+
+    /**
+     * See SessionRepositoryImpl.patchSessionData.
+     */
+    public Mono<Boolean> patchSessionData(Session session, String checksum, SessionMergePatch patch) {
+        Set<ConstraintViolation<Session>> violations = this.validator.validate(session);
+        if (!violations.isEmpty()) {
+            return Mono.error(new ConstraintViolationException(violations));
+        }
+        Query query = bySourceAndTypeAndIdAndChecksumIn(session.getSource(), session.getType(), session.getId(),
+            List.of(checksum));
+        Update update = patch(session, patch, this.sessionDataCompression);
+        return withFallback(session.getSource(), session.getType(),
+                collectionName -> this.reactiveMongoTemplate.updateFirst(query, update, Session.class, collectionName)
+                    .filter(result -> result.getMatchedCount() > 0))
+            .map(result -> true)
+            .defaultIfEmpty(false);
+    }
+
+    public Mono<Long> deleteBySourceAndTypeAndId(String source, SessionType type, String id) {
+        return withFallback(source, type,
+                collectionName -> this.reactiveMongoTemplate.remove(bySourceAndTypeAndId(source, type, id),
+                        Session.class, collectionName)
+                    .map(result -> result.getDeletedCount())
+                    .filter(deleted -> deleted > 0))
+            .defaultIfEmpty(0L);
+    }
+
+    /**
+     * Reads the stored document, with the query mapped like a Session query
+     * so that id is matched as _id.
+     */
+    private Mono<Document> findDocument(Query query, String collectionName) {
+        MongoPersistentEntity<?> entity =
+            this.reactiveMongoTemplate.getConverter().getMappingContext().getPersistentEntity(Session.class);
+        QueryMapper queryMapper = new QueryMapper(this.reactiveMongoTemplate.getConverter());
+        return this.reactiveMongoTemplate.execute(collectionName, collection -> collection
+                .find(queryMapper.getMappedObject(query.getQueryObject(), entity))
+                .projection(queryMapper.getMappedFields(query.getFieldsObject(), entity))
+                .first())
+            .next();
+    }
+
+    private String collection(String source, SessionType type) {
+        return this.sessionCollections.getCollection(source, type);
+    }
+
+    /**
+     * Runs the lookup on the collection of the source and, if it finds
+     * nothing, on the fallback collection of the source, see
+     * SessionCollections.getFallbackCollection.
+     */
+    private <T> Mono<T> withFallback(String source, SessionType type, Function<String, Mono<T>> lookup) {
+        Mono<T> result = lookup.apply(collection(source, type));
+        String fallback = this.sessionCollections.getFallbackCollection(source, type);
+        return fallback == null ? result : result.switchIfEmpty(Mono.defer(() -> lookup.apply(fallback)));
+    }
+
+    /**
+     * Runs the list or query on the collection of the source and, until the
+     * partition migration has moved all sessions of the source, on the
+     * fallback collection too, merged like SessionQueries.merge does.
+     */
+    private Flux<Session> withFallbackMerged(String source, SessionType type, Function<String, Flux<Session>> find,
+        String after, int limit) {
+        Flux<Session> results = find.apply(collection(source, type));
+        String fallback = this.sessionCollections.getFallbackCollection(source, type);
+        if (fallback == null) {
+            return results;
+        }
+        if (!isPaged(after, limit)) {
+            return Flux.concat(results, find.apply(fallback));
+        }
+        Flux<Session> merged = Flux.mergeComparing(Comparator.comparing(Session::getId), results, find.apply(fallback));
+        return limit > 0 ? merged.take(limit) : merged;
+    }
+
+    /**
+     * Creating a collection and its index is blocking, but only happens
+     * once per collection.
+     */
+    private Mono<Void> ensureCollection(String source, SessionType type) {
+        if (this.sessionCollectionManager.isKnownCollection(collection(source, type))) {
+            return Mono.empty();
+        }
+        return Mono.<Void>fromRunnable(() -> this.sessionCollectionManager.ensureCollection(collection(source, type)))
+            .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    /**
+     * The reactive bulk write reports failures as translated exceptions,
+     * DuplicateKeyException if any of them is a duplicate key.
+     */
+    private List<BulkWriteError> getBulkWriteErrors(DataAccessException e) {
+        if (e instanceof BulkOperationException) {
+            return ((BulkOperationException) e).getErrors();
+        }
+        if (e.getCause() instanceof MongoBulkWriteException) {
+            return ((MongoBulkWriteException) e.getCause()).getWriteErrors();
+        }
+        return new ArrayList<BulkWriteError>();
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.domain.internal;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.cbioportal.session_service.domain.Session;
+import org.cbioportal.session_service.domain.SessionType;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndReplaceOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * The archive collections of session collections, {collection}_archive,
+ * e.g. main_session_archive, which hold
+ * the sessions that have not been read for a while, so that the session
+ * collections and their indexes only hold the sessions still in use.
+ *
+ * Reads record the time of the last access of a session in its
+ * lastAccessed field; sessions never read since they were added count
+ * from the time in their ObjectId. Archived sessions are moved back by
+ * promote when they are read again.
+ */
+@Component
+public class SessionArchive {
+
+    public static final String LAST_ACCESSED_FIELD = "lastAccessed";
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private SessionCollectionManager sessionCollectionManager;
+
+    @Autowired
+    private SessionCollections sessionCollections;
+
+    @Autowired
+    private SessionMetrics sessionMetrics;
+
+    public static String archiveCollection(String collectionName) {
+        return collectionName + "_archive";
+    }
+
+    /**
+     * Sets the last access time of the sessions with one update.
+     */
+    public void recordAccess(String source, SessionType type, Collection<String> ids, Date accessed) {
+        Query query = new Query(Criteria.where("source").is(source).and("type").is(type).and("id").in(ids));
+        long matched = time("record_access", source, type, () -> this.mongoTemplate.updateMulti(query,
+            new Update().max(LAST_ACCESSED_FIELD, accessed), Session.class,
+            this.sessionCollections.getCollection(source, type))).getMatchedCount();
+        String fallback = this.sessionCollections.getFallbackCollection(source, type);
+        if (fallback != null && matched < ids.size()) {
+            time("record_access", source, type, () -> this.mongoTemplate.updateMulti(query,
+                new Update().max(LAST_ACCESSED_FIELD, accessed), Session.class, fallback));
+        }
+    }
+
+    /**
+     * Moves up to batchSize sessions of the collection that have not been
+     * accessed since idleSince to its archive collection and returns how
+     * many were moved. The archive is written first, with upserts, so that an
+     * interrupted run leaves every session in at least one collection.
+     * Sessions read in the meantime are not removed, nor are sessions
+     * updated in the meantime, whose checksum is no longer the archived one;
+     * their archived copies are removed instead.
+     */
+    public int archive(String collectionName, Date idleSince, int batchSize) {
+        Criteria idle = new Criteria().orOperator(
+            Criteria.where(LAST_ACCESSED_FIELD).lt(idleSince),
+            Criteria.where(LAST_ACCESSED_FIELD).exists(false).and("_id").lt(new ObjectId(idleSince)));
+        List<Document> sessions = this.mongoTemplate.find(new Query(idle).limit(batchSize), Document.class,
+            collectionName);
+        if (sessions.isEmpty()) {
+            return 0;
+        }
+        BulkOperations bulk = this.mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED,
+            archiveCollection(collectionName));
+        BulkOperations remove = this.mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, collectionName);
+        List<Object> ids = new ArrayList<Object>();
+        for (Document session : sessions) {
+            ids.add(session.get("_id"));
+            bulk.replaceOne(new Query(Criteria.where("_id").is(session.get("_id"))), session,
+                FindAndReplaceOptions.options().upsert());
+            remove.remove(new Query(new Criteria().andOperator(Criteria.where("_id").is(session.get("_id"))
+                .and("checksum").is(session.get("checksum")), idle)));
+        }
+        bulk.execute();
+        int archived = remove.execute().getDeletedCount();
+        if (archived < sessions.size()) {
+            Query kept = new Query(Criteria.where("_id").in(ids));
+            kept.fields().include("_id");
+            List<Object> keptIds = new ArrayList<Object>();
+            for (Document session : this.mongoTemplate.find(kept, Document.class, collectionName)) {
+                keptIds.add(session.get("_id"));
+            }
+            if (!keptIds.isEmpty()) {
+                this.mongoTemplate.remove(new Query(Criteria.where("_id").in(keptIds)),
+                    archiveCollection(collectionName));
+            }
+        }
+        return archived;
+    }
+
+    /**
+     * Moves the archived session back to the session collection of its type.
+     * Returns the id of the session to read instead: the id itself, the id of
+     * a session added since with the same data, which the archived session
+     * cannot be moved next to because of the unique checksum index and is
+     * left archived, or null if the session is not archived. A session in the
+     * archive of the fallback collection of its source is moved to the
+     * collection of the source.
+     */
+    public String promote(String source, SessionType type, String id) {
+        String collectionName = this.sessionCollections.getCollection(source, type);
+        Query query = new Query(Criteria.where("_id").is(ObjectId.isValid(id) ? new ObjectId(id) : id)
+            .and("source").is(source).and("type").is(type.toString()));
+        String archiveName = archiveCollection(collectionName);
+        Document archived = findArchived(query, source, type, archiveName);
+        String fallback = this.sessionCollections.getFallbackCollection(source, type);
+        if (archived == null && fallback != null) {
+            archiveName = archiveCollection(fallback);
+            archived = findArchived(query, source, type, archiveName);
+        }
+        if (archived == null) {
+            return null;
+        }
+        Document session = archived;
+        session.put(LAST_ACCESSED_FIELD, new Date());
+        this.sessionCollectionManager.ensureCollection(collectionName);
+        try {
+            time("promote", source, type, () -> this.mongoTemplate.insert(session, collectionName));
+        } catch (DuplicateKeyException e) {
+            Query sameData = new Query(Criteria.where("source").is(source).and("type").is(type)
+                .and("checksum").is(session.getString("checksum")));
+            sameData.fields().include("_id");
+            Session existing = this.mongoTemplate.findOne(sameData, Session.class, collectionName);
+            if (existing == null) {
+                throw e;
+            }
+            if (!existing.getId().equals(id)) {
+                return existing.getId();
+            }
+            // promoted by a concurrent read
+        }
+        this.mongoTemplate.remove(query, archiveName);
+        return id;
+    }
+
+    public long deleteArchived(String source, SessionType type, String id) {
+        Query query = new Query(Criteria.where("_id").is(ObjectId.isValid(id) ? new ObjectId(id) : id)
+            .and("source").is(source).and("type").is(type.toString()));
+        long deleted = time("delete_archived", source, type,
+            () -> this.mongoTemplate.remove(query,
+                archiveCollection(this.sessionCollections.getCollection(source, type))).getDeletedCount());
+        String fallback = this.sessionCollections.getFallbackCollection(source, type);
+        if (deleted == 0 && fallback != null) {
+            deleted = time("delete_archived", source, type,
+                () -> this.mongoTemplate.remove(query, archiveCollection(fallback)).getDeletedCount());
+        }
+        return deleted;
+    }
+
+    private Document findArchived(Query query, String source, SessionType type, String archiveName) {
+        return time("find_archived", source, type,
+            () -> this.mongoTemplate.findOne(query, Document.class, archiveName));
+    }
+
+    private <T> T time(String operation, String source, SessionType type, Supplier<T> call) {
+        return this.sessionMetrics.time(SessionMetrics.REPOSITORY, operation, source, type, call);
+    }
+}
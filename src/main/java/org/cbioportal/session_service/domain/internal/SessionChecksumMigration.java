@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.domain.internal;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.bulk.BulkWriteError;
+import org.bson.Document;
+import org.cbioportal.session_service.domain.ChecksumAlgorithm;
+import org.cbioportal.session_service.domain.SessionType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Recomputes the checksums of all stored sessions with the configured
+ * session.checksum.algorithm when started with session.checksum.migrate=true.
+ *
+ * Until this has run, new sessions are not deduplicated against sessions
+ * saved with a different algorithm. Sessions whose data only differed in key
+ * order get the same canonical checksum; only the first of those is updated,
+ * the others keep their old checksum and are reported.
+ */
+@Component
+public class SessionChecksumMigration implements ApplicationRunner {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SessionChecksumMigration.class);
+
+    private static final int BATCH_SIZE = 1000;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private SessionDataCompression sessionDataCompression;
+
+    @Autowired
+    private SessionCollections sessionCollections;
+
+    @Value("${session.checksum.migrate:false}")
+    private boolean migrate;
+
+    @Value("${session.checksum.algorithm:legacy_md5}")
+    private ChecksumAlgorithm checksumAlgorithm;
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!migrate) {
+            return;
+        }
+        for (SessionType type : SessionType.values()) {
+            for (String collectionName : sessionCollections.getCollections(type)) {
+                migrate(collectionName);
+            }
+        }
+    }
+
+    public void migrate(String collectionName) {
+        long updated = 0;
+        long duplicates = 0;
+        List<Document> batch = new ArrayList<Document>();
+        for (Document session : this.mongoTemplate.getCollection(collectionName).find()
+                .projection(new Document("data", 1).append("checksum", 1)
+                    .append(SessionDataCompression.COMPRESSED_DATA_FIELD, 1)
+                    .append(SessionDataCompression.COMPRESSION_FIELD, 1))
+                .batchSize(BATCH_SIZE)) {
+            sessionDataCompression.inflate(session, null);
+            String checksum = checksumAlgorithm.checksum(session.get("data"));
+            if (!checksum.equals(session.getString("checksum"))) {
+                batch.add(new Document("_id", session.get("_id")).append("checksum", checksum));
+            }
+            if (batch.size() == BATCH_SIZE) {
+                duplicates += update(collectionName, batch);
+                updated += batch.size();
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            duplicates += update(collectionName, batch);
+            updated += batch.size();
+        }
+        LOG.info("Migrated checksums of {} sessions in '{}' to {}, {} kept their old checksum as duplicates",
+            updated - duplicates, collectionName, checksumAlgorithm, duplicates);
+    }
+
+    private int update(String collectionName, List<Document> batch) {
+        BulkOperations bulk = this.mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, collectionName);
+        for (Document session : batch) {
+            bulk.updateOne(new Query(Criteria.where("_id").is(session.get("_id"))),
+                new Update().set("checksum", session.get("checksum")));
+        }
+        try {
+            bulk.execute();
+            return 0;
+        } catch (BulkOperationException e) {
+            for (BulkWriteError error : e.getErrors()) {
+                if (ErrorCategory.fromErrorCode(error.getCode()) != ErrorCategory.DUPLICATE_KEY) {
+                    throw e;
+                }
+                LOG.warn("Session {} in '{}' duplicates another session, keeping its old checksum",
+                    batch.get(error.getIndex()).get("_id"), collectionName);
+            }
+            return e.getErrors().size();
+        }
+    }
+}
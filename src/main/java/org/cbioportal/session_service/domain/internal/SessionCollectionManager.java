@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.domain.internal;
+
+import org.bson.Document;
+import org.cbioportal.session_service.domain.SessionType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.CompoundIndexDefinition;
+import org.springframework.data.mongodb.core.index.IndexField;
+import org.springframework.data.mongodb.core.index.IndexInfo;
+import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of the session collections that are known to exist with
+ * their unique (source, type, checksum) index and the indexes configured
+ * in SessionIndexes, so that saving a session does not need an extra
+ * round trip to check for the collection.
+ *
+ * Collections for all session types are created at startup. Collections
+ * that could not be created then are created on first use.
+ */
+@Component
+public class SessionCollectionManager implements ApplicationRunner {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SessionCollectionManager.class);
+
+    private static final String[] UNIQUE_INDEX_FIELDS = {"source", "type", "checksum"};
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private SessionIndexes sessionIndexes;
+
+    @Autowired
+    private SessionCollections sessionCollections;
+
+    @Value("${session.mongo.bootstrap-collections:true}")
+    private boolean bootstrapCollections;
+
+    @Value("${session.mongo.verify-indexes:false}")
+    private boolean verifyIndexes;
+
+    private final Set<String> knownCollections = ConcurrentHashMap.newKeySet();
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (bootstrapCollections) {
+            for (SessionType type : SessionType.values()) {
+                for (String collectionName : sessionCollections.getCollections(type)) {
+                    try {
+                        ensureCollection(collectionName);
+                    } catch (DataAccessException e) {
+                        // leave it to the first save, e.g. when mongo is not reachable yet
+                        LOG.warn("Could not create collection '{}' at startup: {}", collectionName, e.getMessage());
+                    }
+                }
+            }
+        }
+        if (verifyIndexes) {
+            for (SessionType type : SessionType.values()) {
+                for (String collectionName : sessionCollections.getCollections(type)) {
+                    verifyIndexes(collectionName);
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the collection and its indexes unless this has already been
+     * done by this process. createIndex is idempotent and implicitly
+     * creates the collection, so this costs one command per index.
+     */
+    public void ensureCollection(String collectionName) {
+        if (knownCollections.contains(collectionName)) {
+            return;
+        }
+        Document indexKeys = new Document();
+        for (String field : UNIQUE_INDEX_FIELDS) {
+            indexKeys.append(field, 1);
+        }
+        IndexOperations indexOps = this.mongoTemplate.indexOps(collectionName);
+        indexOps.ensureIndex(new CompoundIndexDefinition(indexKeys).unique());
+        for (List<String> fields : sessionIndexes.getIndexes(collectionName)) {
+            indexOps.ensureIndex(new CompoundIndexDefinition(SessionIndexes.keys(fields)));
+        }
+        knownCollections.add(collectionName);
+    }
+
+    /**
+     * Whether ensureCollection has already been done for the collection
+     * and would return without a round trip.
+     */
+    public boolean isKnownCollection(String collectionName) {
+        return knownCollections.contains(collectionName);
+    }
+
+    /**
+     * Fails if an existing collection does not have the unique
+     * (source, type, checksum) index that session deduplication relies on.
+     */
+    public void verifyIndexes(String collectionName) {
+        if (!this.mongoTemplate.collectionExists(collectionName)) {
+            return;
+        }
+        List<IndexInfo> indexes = this.mongoTemplate.indexOps(collectionName).getIndexInfo();
+        for (IndexInfo index : indexes) {
+            if (index.isUnique() && hasUniqueIndexFields(index.getIndexFields())) {
+                LOG.info("Collection '{}' has expected index '{}'", collectionName, index.getName());
+                return;
+            }
+        }
+        throw new IllegalStateException("Collection '" + collectionName
+            + "' is missing the unique (source, type, checksum) index, found: " + indexes);
+    }
+
+    private boolean hasUniqueIndexFields(List<IndexField> indexFields) {
+        if (indexFields.size() != UNIQUE_INDEX_FIELDS.length) {
+            return false;
+        }
+        for (int i = 0; i < UNIQUE_INDEX_FIELDS.length; i++) {
+            if (!indexFields.get(i).getKey().equals(UNIQUE_INDEX_FIELDS[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
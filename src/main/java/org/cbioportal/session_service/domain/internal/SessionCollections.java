@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.domain.internal;
+
+import jakarta.annotation.PostConstruct;
+import org.cbioportal.session_service.domain.SessionType;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Routes the sessions of a source and type to their collection. By default
+ * all sources share one collection per type, named after the type. The
+ * sources listed in session.partitioning.sources, e.g. large portals, get
+ * a collection of their own per type, {type}.{source}, with its own
+ * indexes, so that their sessions do not grow the indexes and queries of
+ * the other sources.
+ *
+ * SessionPartitionMigration moves the existing sessions of these sources
+ * out of the shared collections. Until it has moved all of them, the
+ * shared collection is read too, see getFallbackCollection.
+ */
+@Component
+public class SessionCollections {
+
+    // collection names are limited, and sources are chosen by clients
+    private static final Pattern SOURCE_PATTERN = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+
+    @Value("${session.partitioning.sources:}")
+    private Set<String> sources;
+
+    private final Set<String> partitionedSources = new TreeSet<String>();
+
+    // the collections SessionPartitionMigration has moved all sessions to
+    private final Set<String> migratedCollections = ConcurrentHashMap.newKeySet();
+
+    @PostConstruct
+    public void init() {
+        for (String source : sources) {
+            source = source.trim();
+            if (source.isEmpty()) {
+                continue;
+            }
+            if (!SOURCE_PATTERN.matcher(source).matches()) {
+                throw new IllegalStateException("session.partitioning.sources can only list sources of letters, "
+                    + "digits, '_' and '-', got '" + source + "'");
+            }
+            partitionedSources.add(source);
+        }
+    }
+
+    public String getCollection(String source, SessionType type) {
+        return partitionedSources.contains(source) ? type + "." + source : type.toString();
+    }
+
+    /**
+     * The shared collection of the type if the source has a collection of
+     * its own and the shared collection may still hold sessions of the
+     * source that were not moved, otherwise null.
+     */
+    public String getFallbackCollection(String source, SessionType type) {
+        return partitionedSources.contains(source) && !migratedCollections.contains(getCollection(source, type))
+            ? type.toString() : null;
+    }
+
+    /**
+     * Stops falling back to the shared collection for the source and type,
+     * once no sessions of the source are left there.
+     */
+    public void markMigrated(String source, SessionType type) {
+        if (partitionedSources.contains(source)) {
+            migratedCollections.add(getCollection(source, type));
+        }
+    }
+
+    /**
+     * The shared collection of the type followed by the collections of the
+     * partitioned sources.
+     */
+    public List<String> getCollections(SessionType type) {
+        List<String> collections = new ArrayList<String>();
+        collections.add(type.toString());
+        for (String source : partitionedSources) {
+            collections.add(getCollection(source, type));
+        }
+        return collections;
+    }
+
+    public Set<String> getPartitionedSources() {
+        return Collections.unmodifiableSet(partitionedSources);
+    }
+
+    /**
+     * The session type a collection holds, as configured in SessionIndexes.
+     */
+    public static String typeOf(String collectionName) {
+        int dot = collectionName.indexOf('.');
+        return dot < 0 ? collectionName : collectionName.substring(0, dot);
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.domain.internal;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+import org.cbioportal.session_service.domain.Session;
+import org.cbioportal.session_service.domain.SessionType;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Stores the data of large sessions compressed.
+ *
+ * Compression is enabled per session type with
+ * session.compression.threshold.{type}, the size in bytes of the session
+ * JSON from which on it is compressed. A compressed session is stored with
+ * the gzipped JSON of its full view in compressedData, so it can be sent
+ * as is to clients that accept gzip. Its data only keeps the top level
+ * fields listed in session.compression.retained-fields.{type}, so they can
+ * still be queried; queries on other fields of the data are rejected, see
+ * getUnqueryableFields, and so are indexes on them, see SessionIndexes.
+ * The checksum is always computed from the uncompressed data.
+ */
+@Component
+public class SessionDataCompression {
+
+    public static final String COMPRESSED_DATA_FIELD = "compressedData";
+    public static final String COMPRESSION_FIELD = "compression";
+    public static final String GZIP = "gzip";
+
+    private static final Object ALL_FIELDS = Boolean.TRUE;
+
+    private static final List<String> LOGICAL_OPERATORS = List.of("$and", "$or", "$nor");
+
+    @Autowired
+    private Environment environment;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    private final Map<SessionType, Integer> thresholds = new EnumMap<SessionType, Integer>(SessionType.class);
+    private final Map<SessionType, List<String>> retainedFields =
+        new EnumMap<SessionType, List<String>>(SessionType.class);
+
+    @PostConstruct
+    public void init() {
+        for (SessionType type : SessionType.values()) {
+            Integer threshold = environment.getProperty("session.compression.threshold." + type, Integer.class);
+            if (threshold != null && threshold >= 0) {
+                thresholds.put(type, threshold);
+                retainedFields.put(type, Arrays.asList(environment.getProperty(
+                    "session.compression.retained-fields." + type, String[].class, new String[0])));
+            }
+        }
+    }
+
+    public boolean isEnabled(SessionType type) {
+        return thresholds.containsKey(type);
+    }
+
+    /**
+     * Whether sessions of the type can be matched on the field (e.g.
+     * data.name), which compressed sessions only can if it is in one of
+     * their retained fields.
+     */
+    public boolean isQueryable(SessionType type, String field) {
+        if (!isEnabled(type) || !(field.equals("data") || field.startsWith("data."))) {
+            return true;
+        }
+        String[] path = field.split("\\.");
+        return path.length > 1 && retainedFields.get(type).contains(path[1]);
+    }
+
+    /**
+     * The fields and top level operators, such as $expr, of the query that
+     * compressed sessions of the type cannot be matched on.
+     */
+    public List<String> getUnqueryableFields(SessionType type, Document query) {
+        List<String> fields = new ArrayList<String>();
+        if (isEnabled(type)) {
+            addUnqueryableFields(type, query, fields);
+        }
+        return fields;
+    }
+
+    private void addUnqueryableFields(SessionType type, Document query, List<String> fields) {
+        for (Map.Entry<String, Object> entry : query.entrySet()) {
+            if (LOGICAL_OPERATORS.contains(entry.getKey()) && entry.getValue() instanceof List) {
+                for (Object clause : (List<?>) entry.getValue()) {
+                    if (clause instanceof Document) {
+                        addUnqueryableFields(type, (Document) clause, fields);
+                    }
+                }
+            } else if (entry.getKey().startsWith("$") ? !entry.getKey().equals("$comment")
+                : !isQueryable(type, entry.getKey())) {
+                fields.add(entry.getKey());
+            }
+        }
+    }
+
+    public List<String> getRetainedFields(SessionType type) {
+        return retainedFields.getOrDefault(type, Collections.<String>emptyList());
+    }
+
+    /**
+     * Replaces the data of the stored session document with its compressed
+     * form if the session is large enough. A document without an _id gets
+     * one, and a session without an id gets the _id of the document, since
+     * the id is part of the compressed JSON.
+     *
+     * @return whether the session was compressed
+     */
+    public boolean compress(Session session, Document stored) {
+        if (!isEnabled(session.getType())) {
+            return false;
+        }
+        if (stored.get("_id") == null) {
+            ObjectId id = session.getId() != null ? new ObjectId(session.getId()) : new ObjectId();
+            stored.put("_id", id);
+            session.setId(id.toHexString());
+        } else if (session.getId() == null) {
+            session.setId(stored.get("_id").toString());
+        }
+        byte[] json;
+        try {
+            json = objectMapper.writerWithView(Session.Views.Full.class).writeValueAsBytes(session);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Session data cannot be written as JSON", e);
+        }
+        if (json.length < thresholds.get(session.getType())) {
+            return false;
+        }
+        Document retained = new Document();
+        if (session.getData() instanceof Document) {
+            Document data = (Document) session.getData();
+            for (String field : retainedFields.get(session.getType())) {
+                if (data.containsKey(field)) {
+                    retained.put(field, data.get(field));
+                }
+            }
+        }
+        stored.put("data", retained);
+        stored.put(COMPRESSED_DATA_FIELD, new Binary(gzip(json)));
+        stored.put(COMPRESSION_FIELD, GZIP);
+        return true;
+    }
+
+    /**
+     * Restores the data of a stored session document that was compressed,
+     * and only keeps the given fields of it (all if fields is null), as a
+     * projection on the stored data would have.
+     */
+    public void inflate(Document stored, List<String> fields) {
+        Object compressed = stored.remove(COMPRESSED_DATA_FIELD);
+        stored.remove(COMPRESSION_FIELD);
+        if (compressed == null) {
+            return;
+        }
+        Object data = readData(compressed instanceof Binary ? ((Binary) compressed).getData() : (byte[]) compressed);
+        if (fields != null && !fields.isEmpty() && data instanceof Document) {
+            data = project((Document) data, fields);
+        }
+        stored.put("data", data);
+    }
+
+    /**
+     * Returns the data of a session from the gzipped JSON of its full view.
+     */
+    public Object readData(byte[] compressed) {
+        try (InputStream inputStream = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            return Document.parse(new String(inputStream.readAllBytes(), StandardCharsets.UTF_8)).get("data");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Keeps the given fields (e.g. data.name or data) of the session data,
+     * in their stored order. Like a mongo projection, a field inside an
+     * array applies to each document in the array.
+     */
+    static Document project(Document data, List<String> fields) {
+        Map<String, Object> tree = new LinkedHashMap<String, Object>();
+        for (String field : fields) {
+            if (field.equals("data")) {
+                return data;
+            }
+            Map<String, Object> node = tree;
+            String[] path = field.substring("data.".length()).split("\\.");
+            for (int i = 0; i < path.length; i++) {
+                if (i == path.length - 1) {
+                    node.put(path[i], ALL_FIELDS);
+                } else if (node.get(path[i]) != ALL_FIELDS) {
+                    node = childNode(node, path[i]);
+                } else {
+                    break;
+                }
+            }
+        }
+        return project(data, tree);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> childNode(Map<String, Object> node, String key) {
+        return (Map<String, Object>) node.computeIfAbsent(key, k -> new LinkedHashMap<String, Object>());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Document project(Document data, Map<String, Object> tree) {
+        Document projected = new Document();
+        for (Map.Entry<String, Object> entry : data.entrySet()) {
+            Object node = tree.get(entry.getKey());
+            if (node == ALL_FIELDS) {
+                projected.put(entry.getKey(), entry.getValue());
+            } else if (node != null) {
+                Object value = project(entry.getValue(), (Map<String, Object>) node);
+                if (value != null) {
+                    projected.put(entry.getKey(), value);
+                }
+            }
+        }
+        return projected;
+    }
+
+    private static Object project(Object value, Map<String, Object> tree) {
+        if (value instanceof Document) {
+            return project((Document) value, tree);
+        }
+        if (value instanceof List) {
+            List<Object> projected = new ArrayList<Object>();
+            for (Object element : (List<?>) value) {
+                if (element instanceof Document || element instanceof List) {
+                    projected.add(project(element, tree));
+                }
+            }
+            return projected;
+        }
+        return null;
+    }
+
+    private static byte[] gzip(byte[] json) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(json.length / 4);
+        try (OutputStream outputStream = new GZIPOutputStream(bytes)) {
+            outputStream.write(json);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.domain.internal;
+
+import jakarta.annotation.PostConstruct;
+import org.bson.Document;
+import org.cbioportal.session_service.domain.SessionType;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.data.mongodb.core.index.IndexField;
+import org.springframework.data.mongodb.core.index.IndexInfo;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Registry of the indexes on session data fields, configured per session
+ * type with session.indexes.{type}, e.g.
+ *
+ * session.indexes.virtual_study=data.users,data.owner+data.name
+ *
+ * for an index on data.users and a compound index on data.owner and
+ * data.name. Every index starts with source, which all session queries
+ * match on. SessionCollectionManager creates the indexes with the collection.
+ * For types that are compressed, indexes can only be on retained fields,
+ * see SessionDataCompression.
+ */
+@Component
+public class SessionIndexes {
+
+    @Autowired
+    private Environment environment;
+
+    @Autowired
+    private SessionDataCompression sessionDataCompression;
+
+    private final Map<String, List<List<String>>> indexes = new HashMap<String, List<List<String>>>();
+
+    @PostConstruct
+    public void init() {
+        for (SessionType type : SessionType.values()) {
+            String property = "session.indexes." + type;
+            List<List<String>> typeIndexes = new ArrayList<List<String>>();
+            for (String index : environment.getProperty(property, String[].class, new String[0])) {
+                List<String> fields = new ArrayList<String>();
+                for (String field : index.split("\\+")) {
+                    field = field.trim();
+                    if (!field.startsWith("data.") || field.endsWith(".") || field.contains("$")) {
+                        throw new IllegalStateException(property + " must list paths in the session data like "
+                            + "'data.name', got '" + field + "'");
+                    }
+                    if (!sessionDataCompression.isQueryable(type, field)) {
+                        throw new IllegalStateException(property + " lists '" + field + "', but compressed "
+                            + type + " sessions only keep the fields in session.compression.retained-fields."
+                            + type + " " + sessionDataCompression.getRetainedFields(type));
+                    }
+                    fields.add(field);
+                }
+                typeIndexes.add(Collections.unmodifiableList(fields));
+            }
+            indexes.put(type.toString(), Collections.unmodifiableList(typeIndexes));
+        }
+    }
+
+    /**
+     * The configured indexes of the collection, each as its data fields.
+     * Partitioned collections, see SessionCollections, have the indexes of
+     * their type.
+     */
+    public List<List<String>> getIndexes(String collectionName) {
+        return indexes.getOrDefault(SessionCollections.typeOf(collectionName),
+            Collections.<List<String>>emptyList());
+    }
+
+    /**
+     * The keys of the index on source and the given data fields.
+     */
+    public static Document keys(Collection<String> fields) {
+        Document keys = new Document("source", 1);
+        for (String field : fields) {
+            keys.append(field, 1);
+        }
+        return keys;
+    }
+
+    /**
+     * Whether one of the indexes can be used to look up sessions by the
+     * given fields, that is it starts with one of them, after source.
+     */
+    public static boolean isIndexed(Collection<String> fields, List<IndexInfo> indexes) {
+        for (IndexInfo index : indexes) {
+            List<IndexField> indexFields = index.getIndexFields();
+            int first = !indexFields.isEmpty() && indexFields.get(0).getKey().equals("source") ? 1 : 0;
+            if (indexFields.size() > first && fields.contains(indexFields.get(first).getKey())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.domain.internal;
+
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A JSON merge patch (RFC 7386) of session data. The patch is applied to
+ * the current data, from which the new checksum is computed, and turned
+ * into the $set and $unset operations on data.* paths that make the same
+ * change to the stored document.
+ *
+ * The change cannot be made in place if a patched field name is not a
+ * valid update path, or if more than one field is added to the same
+ * object: mongo may not add them in the order of the patch, which the
+ * legacy checksum depends on. The whole data is then replaced.
+ */
+public final class SessionMergePatch {
+
+    private final Document data;
+    private final Map<String, Object> set = new LinkedHashMap<String, Object>();
+    private final List<String> unset = new ArrayList<String>();
+    private boolean inPlace = true;
+
+    /**
+     * Applies the patch to the data, which is modified.
+     */
+    public SessionMergePatch(Document data, Document patch) {
+        this.data = data;
+        merge(data, patch, "data");
+    }
+
+    public Document getData() {
+        return data;
+    }
+
+    public boolean isEmpty() {
+        return set.isEmpty() && unset.isEmpty();
+    }
+
+    public boolean isInPlace() {
+        return inPlace;
+    }
+
+    /**
+     * The values to set by path, e.g. data.settings.theme.
+     */
+    public Map<String, Object> getSet() {
+        return Collections.unmodifiableMap(set);
+    }
+
+    public List<String> getUnset() {
+        return Collections.unmodifiableList(unset);
+    }
+
+    private void merge(Document target, Document patch, String path) {
+        int added = 0;
+        for (Map.Entry<String, Object> entry : patch.entrySet()) {
+            String key = entry.getKey();
+            Object value = entry.getValue();
+            String fieldPath = path + "." + key;
+            if (key.isEmpty() || key.contains(".") || key.startsWith("$")) {
+                inPlace = false;
+            }
+            if (value == null) {
+                if (target.containsKey(key)) {
+                    target.remove(key);
+                    unset.add(fieldPath);
+                }
+            } else if (value instanceof Document && target.get(key) instanceof Document) {
+                merge((Document) target.get(key), (Document) value, fieldPath);
+            } else {
+                if (!target.containsKey(key) && ++added > 1) {
+                    inPlace = false;
+                }
+                Object merged = value instanceof Document ? withoutNulls((Document) value) : value;
+                target.put(key, merged);
+                set.put(fieldPath, merged);
+            }
+        }
+    }
+
+    /**
+     * A patched object that replaces a value that is not an object is
+     * merged into an empty object, which drops its null members.
+     */
+    private static Document withoutNulls(Document patch) {
+        Document document = new Document();
+        for (Map.Entry<String, Object> entry : patch.entrySet()) {
+            Object value = entry.getValue();
+            if (value != null) {
+                document.put(entry.getKey(), value instanceof Document ? withoutNulls((Document) value) : value);
+            }
+        }
+        return document;
+    }
+}
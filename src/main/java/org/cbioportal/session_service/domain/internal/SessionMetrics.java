@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.domain.internal;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.config.MeterFilter;
+import org.cbioportal.session_service.domain.SessionType;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.stereotype.Component;
+
+import java.util.function.Supplier;
+
+/**
+ * Micrometer meters of the session service and repository, all tagged
+ * with source, type and operation:
+ *
+ * session.service and session.repository time the service calls and the
+ * mongo calls made for them, with an outcome tag (success or the
+ * exception class). session.payload.size is the size in bytes of the
+ * session data added or updated, session.query.results the number of
+ * sessions read by list and query operations, session.batch.size the
+ * number of sessions in each grouped write and session.dedupe counts
+ * added sessions that matched an existing one, tagged with how.
+ * session.write-behind.failures counts pending updates that could not be
+ * written, tagged with whether they are retried or dropped.
+ */
+@Component
+public class SessionMetrics {
+
+    public static final String SERVICE = "session.service";
+    public static final String REPOSITORY = "session.repository";
+
+    // dedupe reasons
+    public static final String ID_CACHE = "id_cache";
+    public static final String EXISTING = "existing";
+    public static final String DUPLICATE_KEY = "duplicate_key";
+    public static final String IN_BATCH = "in_batch";
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    /**
+     * The source is a path segment chosen by the client, so the number of
+     * its tag values is capped to bound the number of time series.
+     */
+    @Bean
+    public static MeterFilter sessionSourceTagLimit(@Value("${session.metrics.max-sources:100}") int maxSources) {
+        return MeterFilter.maximumAllowableTags("session", "source", maxSources, MeterFilter.deny());
+    }
+
+    public <T> T time(String name, String operation, String source, SessionType type, Supplier<T> call) {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        String outcome = "success";
+        try {
+            return call.get();
+        } catch (RuntimeException e) {
+            outcome = e.getClass().getSimpleName();
+            throw e;
+        } finally {
+            sample.stop(Timer.builder(name)
+                .tag("operation", operation)
+                .tag("source", source)
+                .tag("type", String.valueOf(type))
+                .tag("outcome", outcome)
+                .register(meterRegistry));
+        }
+    }
+
+    public void time(String name, String operation, String source, SessionType type, Runnable call) {
+        time(name, operation, source, type, () -> {
+            call.run();
+            return null;
+        });
+    }
+
+    public void recordPayloadSize(String operation, String source, SessionType type, String data) {
+        if (data != null) {
+            DistributionSummary.builder("session.payload.size")
+                .baseUnit("bytes")
+                .tag("operation", operation)
+                .tag("source", source)
+                .tag("type", type.toString())
+                .register(meterRegistry)
+                .record(utf8Length(data));
+        }
+    }
+
+    /**
+     * The size of the data in UTF-8, without encoding a copy of what can be
+     * megabytes of JSON.
+     */
+    static long utf8Length(String data) {
+        long length = data.length();
+        for (int i = 0; i < data.length(); i++) {
+            char c = data.charAt(i);
+            if (c >= 0x800) {
+                // three bytes, or four for a surrogate pair of two chars
+                length += Character.isSurrogate(c) ? 1 : 2;
+            } else if (c >= 0x80) {
+                length += 1;
+            }
+        }
+        return length;
+    }
+
+    public void recordResults(String operation, String source, SessionType type, int count) {
+        DistributionSummary.builder("session.query.results")
+            .baseUnit("sessions")
+            .tag("operation", operation)
+            .tag("source", source)
+            .tag("type", type.toString())
+            .register(meterRegistry)
+            .record(count);
+    }
+
+    public void recordBatchSize(String operation, String source, SessionType type, int count) {
+        DistributionSummary.builder("session.batch.size")
+            .baseUnit("sessions")
+            .tag("operation", operation)
+            .tag("source", source)
+            .tag("type", type.toString())
+            .register(meterRegistry)
+            .record(count);
+    }
+
+    public void recordWriteBehindFailures(String result, String source, SessionType type, int count) {
+        Counter.builder("session.write-behind.failures")
+            .tag("result", result)
+            .tag("source", source)
+            .tag("type", type.toString())
+            .register(meterRegistry)
+            .increment(count);
+    }
+
+    public void recordDedupe(String reason, String source, SessionType type, int count) {
+        if (count > 0) {
+            Counter.builder("session.dedupe")
+                .tag("reason", reason)
+                .tag("source", source)
+                .tag("type", type.toString())
+                .register(meterRegistry)
+                .increment(count);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.domain.internal;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.bulk.BulkWriteError;
+import jakarta.annotation.PostConstruct;
+import org.bson.Document;
+import org.cbioportal.session_service.domain.SessionType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Moves the sessions of the sources in session.partitioning.sources from
+ * the shared collection of each type, and its archive collection, to the
+ * collections of their own, see SessionCollections, when started with
+ * session.partitioning.migrate=true.
+ *
+ * Sessions are copied in batches before they are removed, so the
+ * migration can be run again after an interruption. A session is only
+ * removed if its checksum is still the one it was copied with; one that
+ * was updated in between is copied again. Sessions not moved yet are read
+ * from the shared collection, see SessionCollections.getFallbackCollection.
+ * A session whose data was already added to the new collection, e.g. after
+ * it was configured but before this ran, is left in the shared collection,
+ * where it stays readable, and reported.
+ *
+ * Once no sessions of a source and type are left in the shared collection
+ * and its archive, this is recorded in the session_partitions collection,
+ * and the shared collection is no longer read for them.
+ */
+@Component
+public class SessionPartitionMigration implements ApplicationRunner {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SessionPartitionMigration.class);
+
+    private static final int BATCH_SIZE = 1000;
+
+    private static final String MIGRATIONS_COLLECTION = "session_partitions";
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private SessionCollections sessionCollections;
+
+    @Autowired
+    private SessionCollectionManager sessionCollectionManager;
+
+    @Value("${session.partitioning.migrate:false}")
+    private boolean migrate;
+
+    @PostConstruct
+    public void init() {
+        Set<Object> migrated = new HashSet<Object>();
+        for (Document migration : this.mongoTemplate.findAll(Document.class, MIGRATIONS_COLLECTION)) {
+            migrated.add(migration.get("_id"));
+        }
+        for (SessionType type : SessionType.values()) {
+            for (String source : sessionCollections.getPartitionedSources()) {
+                if (migrated.contains(sessionCollections.getCollection(source, type))) {
+                    sessionCollections.markMigrated(source, type);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!migrate) {
+            return;
+        }
+        for (SessionType type : SessionType.values()) {
+            for (String source : sessionCollections.getPartitionedSources()) {
+                migrate(source, type);
+            }
+        }
+    }
+
+    public void migrate(String source, SessionType type) {
+        String collectionName = sessionCollections.getCollection(source, type);
+        if (collectionName.equals(type.toString())) {
+            return;
+        }
+        this.sessionCollectionManager.ensureCollection(collectionName);
+        int left = move(source, type.toString(), collectionName)
+            + move(source, SessionArchive.archiveCollection(type.toString()),
+                SessionArchive.archiveCollection(collectionName));
+        if (left == 0) {
+            this.mongoTemplate.save(new Document("_id", collectionName).append("migrated", new Date()),
+                MIGRATIONS_COLLECTION);
+            this.sessionCollections.markMigrated(source, type);
+        }
+    }
+
+    /**
+     * Moves the sessions of the source and returns how many were left in
+     * the shared collection because their data is already in the new one.
+     */
+    private int move(String source, String from, String to) {
+        long moved = 0;
+        // left in the shared collection, and skipped by the next batches
+        List<Object> duplicates = new ArrayList<Object>();
+        // the checksum each session was copied with, for sessions copied
+        // before an update of the shared collection and so read again
+        Map<Object, Object> copied = new HashMap<Object, Object>();
+        while (true) {
+            Query query = new Query(Criteria.where("source").is(source).and("_id").nin(duplicates))
+                .limit(BATCH_SIZE);
+            List<Document> batch = this.mongoTemplate.find(query, Document.class, from);
+            if (batch.isEmpty()) {
+                break;
+            }
+            BulkOperations bulk = this.mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, to);
+            for (Document session : batch) {
+                Object checksum = copied.get(session.get("_id"));
+                if (checksum == null) {
+                    bulk.insert(session);
+                } else {
+                    // unless the copy was updated since, which makes it the newer one
+                    bulk.replaceOne(new Query(Criteria.where("_id").is(session.get("_id")).and("checksum").is(checksum)),
+                        session);
+                }
+            }
+            List<Object> notCopied = new ArrayList<Object>();
+            Set<Object> copiedBefore = new HashSet<Object>();
+            try {
+                bulk.execute();
+            } catch (BulkOperationException e) {
+                for (BulkWriteError error : e.getErrors()) {
+                    if (ErrorCategory.fromErrorCode(error.getCode()) != ErrorCategory.DUPLICATE_KEY) {
+                        throw e;
+                    }
+                    Document session = batch.get(error.getIndex());
+                    if (copied.containsKey(session.get("_id"))) {
+                        duplicates.add(session.get("_id"));
+                    } else {
+                        notCopied.add(session.get("_id"));
+                    }
+                }
+            }
+            if (!notCopied.isEmpty()) {
+                // copied by an earlier run, and updated there since, or data that is already there
+                Query existing = new Query(Criteria.where("_id").in(notCopied));
+                existing.fields().include("checksum");
+                for (Document session : this.mongoTemplate.find(existing, Document.class, to)) {
+                    copied.put(session.get("_id"), session.get("checksum"));
+                    copiedBefore.add(session.get("_id"));
+                    notCopied.remove(session.get("_id"));
+                }
+                duplicates.addAll(notCopied);
+            }
+            // a session updated since it was read is kept, and copied again by the next batch
+            BulkOperations remove = this.mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, from);
+            boolean removing = false;
+            for (Document session : batch) {
+                if (!duplicates.contains(session.get("_id"))) {
+                    if (!copiedBefore.contains(session.get("_id"))) {
+                        copied.put(session.get("_id"), session.get("checksum"));
+                    }
+                    remove.remove(new Query(Criteria.where("_id").is(session.get("_id"))
+                        .and("checksum").is(session.get("checksum"))));
+                    removing = true;
+                }
+            }
+            if (removing) {
+                moved += remove.execute().getDeletedCount();
+            }
+        }
+        for (Object id : duplicates) {
+            LOG.warn("Session '{}' of '{}' was left in '{}', its data is already in '{}'; it is still read from there",
+                id, source, from, to);
+        }
+        LOG.info("Moved {} sessions of '{}' from '{}' to '{}'", moved, source, from, to);
+        return duplicates.size();
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.domain.internal;
+
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.types.ObjectId;
+import org.cbioportal.session_service.domain.Session;
+import org.cbioportal.session_service.domain.SessionType;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.query.BasicQuery;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Queries and updates shared by the blocking and reactive session repositories.
+ */
+final class SessionQueries {
+
+    private SessionQueries() {}
+
+    static Query bySourceAndType(String source, SessionType type) {
+        return new Query(Criteria.where("source").is(source).and("type").is(type));
+    }
+
+    static Query bySourceAndTypeAndId(String source, SessionType type, String id) {
+        return new Query(Criteria.where("source").is(source).and("type").is(type).and("id").is(id));
+    }
+
+    static Query bySourceAndTypeAndChecksum(String source, SessionType type, String checksum) {
+        return new Query(Criteria.where("source").is(source).and("type").is(type).and("checksum").is(checksum));
+    }
+
+    /**
+     * Matches the session only if it has one of the given checksums, or any
+     * checksum if checksums is null.
+     */
+    static Query bySourceAndTypeAndIdAndChecksumIn(String source, SessionType type, String id,
+        Collection<String> checksums) {
+        Query query = bySourceAndTypeAndId(source, type, id);
+        if (checksums != null) {
+            query.addCriteria(Criteria.where("checksum").in(checksums));
+        }
+        return query;
+    }
+
+    static Query bySourceAndQuery(String source, String query) {
+        BasicQuery basicQuery = new BasicQuery(query);
+        basicQuery.addCriteria(Criteria.where("source").is(source));
+        return basicQuery;
+    }
+
+    /**
+     * Only returns the given fields (e.g. data.name) of the session data.
+     * The id, source, type and checksum are always returned. Fields of
+     * compressed sessions can only be projected once they are restored,
+     * so their compressed data is returned too.
+     */
+    static Query project(Query query, List<String> fields, boolean compressed) {
+        if (fields != null && !fields.isEmpty()) {
+            query.fields().include("source", "type", "checksum");
+            for (String field : fields) {
+                query.fields().include(field);
+            }
+            if (compressed) {
+                query.fields().include(SessionDataCompression.COMPRESSED_DATA_FIELD,
+                    SessionDataCompression.COMPRESSION_FIELD);
+            }
+        }
+        return query;
+    }
+
+    /**
+     * Sets the data and checksum of the session, compressed as it would be
+     * on save, and removes the compressed data it replaces.
+     */
+    static Update setData(Session session, SessionDataCompression compression) {
+        Update update = new Update().set("checksum", session.getChecksum());
+        // the id is given so that compress leaves it as it is
+        Document stored = new Document("_id", session.getId()).append("data", session.getData());
+        if (compression.compress(session, stored)) {
+            update.set("data", stored.get("data"))
+                .set(SessionDataCompression.COMPRESSED_DATA_FIELD, stored.get(SessionDataCompression.COMPRESSED_DATA_FIELD))
+                .set(SessionDataCompression.COMPRESSION_FIELD, stored.get(SessionDataCompression.COMPRESSION_FIELD));
+        } else {
+            update.set("data", session.getData())
+                .unset(SessionDataCompression.COMPRESSED_DATA_FIELD)
+                .unset(SessionDataCompression.COMPRESSION_FIELD);
+        }
+        return update;
+    }
+
+    /**
+     * Makes the change of a merge patch to the session, which holds the
+     * patched data: in place with $set and $unset on the changed fields if
+     * possible, otherwise like setData.
+     */
+    static Update patch(Session session, SessionMergePatch patch, SessionDataCompression compression) {
+        if (!patch.isInPlace() || compression.isEnabled(session.getType())) {
+            return setData(session, compression);
+        }
+        Update update = new Update().set("checksum", session.getChecksum());
+        patch.getSet().forEach(update::set);
+        patch.getUnset().forEach(update::unset);
+        return update;
+    }
+
+    /**
+     * Keyset pagination: sessions are returned in _id order starting after
+     * the given id, so the cost of a page does not depend on its position.
+     * A limit of 0 means no limit.
+     */
+    static Query page(Query query, String after, int limit) {
+        if (after != null) {
+            query.addCriteria(Criteria.where("_id").gt(new ObjectId(after)));
+        }
+        if (isPaged(after, limit)) {
+            query.with(Sort.by(Sort.Direction.ASC, "_id"));
+        }
+        if (limit > 0) {
+            query.limit(limit);
+        }
+        return query;
+    }
+
+    static boolean isPaged(String after, int limit) {
+        return after != null || limit > 0;
+    }
+
+    /**
+     * Merges the page read from the collection of a source with the one
+     * read from its fallback collection into one page: in id order and up
+     * to the limit if paged, otherwise one after the other.
+     */
+    static <T> List<T> merge(List<T> results, List<T> fallbackResults, Function<T, String> id,
+        String after, int limit) {
+        if (fallbackResults.isEmpty()) {
+            return results;
+        }
+        List<T> merged = new ArrayList<T>(results.size() + fallbackResults.size());
+        merged.addAll(results);
+        merged.addAll(fallbackResults);
+        if (isPaged(after, limit)) {
+            merged.sort(Comparator.comparing(id));
+            if (limit > 0 && merged.size() > limit) {
+                return new ArrayList<T>(merged.subList(0, limit));
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Merges two streams like merge does for lists. Closing the merged
+     * stream closes both.
+     */
+    static <T> Stream<T> merge(Stream<T> results, Stream<T> fallbackResults, Function<T, String> id,
+        String after, int limit) {
+        if (!isPaged(after, limit)) {
+            return Stream.concat(results, fallbackResults);
+        }
+        Iterator<T> first = results.iterator();
+        Iterator<T> second = fallbackResults.iterator();
+        Iterator<T> merged = new Iterator<T>() {
+            private T head;
+            private T fallbackHead;
+
+            @Override
+            public boolean hasNext() {
+                return head != null || fallbackHead != null || first.hasNext() || second.hasNext();
+            }
+
+            @Override
+            public T next() {
+                if (head == null && first.hasNext()) {
+                    head = first.next();
+                }
+                if (fallbackHead == null && second.hasNext()) {
+                    fallbackHead = second.next();
+                }
+                if (head == null && fallbackHead == null) {
+                    throw new NoSuchElementException();
+                }
+                T next;
+                if (fallbackHead == null || head != null && id.apply(head).compareTo(id.apply(fallbackHead)) <= 0) {
+                    next = head;
+                    head = null;
+                } else {
+                    next = fallbackHead;
+                    fallbackHead = null;
+                }
+                return next;
+            }
+        };
+        Stream<T> stream = StreamSupport.stream(Spliterators.spliteratorUnknownSize(merged, Spliterator.ORDERED), false)
+            .onClose(results::close)
+            .onClose(fallbackResults::close);
+        return limit > 0 ? stream.limit(limit) : stream;
+    }
+
+    /**
+     * The id of a raw session as Session.getId has it, in _id order for
+     * object ids.
+     */
+    static String idOf(RawBsonDocument session) {
+        BsonValue id = session.get("_id");
+        return id.isObjectId() ? id.asObjectId().getValue().toHexString() : id.toString();
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.domain.internal;
+
+import org.bson.Document;
+import org.cbioportal.session_service.domain.SessionType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.task.TaskExecutionAutoConfiguration;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.CompoundIndexDefinition;
+import org.springframework.data.mongodb.core.index.IndexInfo;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records the shapes of the queries on session data, the fields a query
+ * matches on, and reports whether the collection has an index for them.
+ * With session.index-advisor.create-indexes it creates an index on
+ * source and the fields of a shape once it has been queried
+ * session.index-advisor.min-queries times and no index starts with one
+ * of its fields.
+ */
+@Component
+public class SessionQueryAdvisor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SessionQueryAdvisor.class);
+
+    private static final List<String> LOGICAL_OPERATORS = List.of("$and", "$or", "$nor");
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private SessionIndexes sessionIndexes;
+
+    @Autowired
+    private SessionCollections sessionCollections;
+
+    @Autowired
+    @Qualifier(TaskExecutionAutoConfiguration.APPLICATION_TASK_EXECUTOR_BEAN_NAME)
+    private AsyncTaskExecutor taskExecutor;
+
+    @Value("${session.index-advisor.enabled:false}")
+    private boolean enabled;
+
+    @Value("${session.index-advisor.create-indexes:false}")
+    private boolean createIndexes;
+
+    @Value("${session.index-advisor.min-queries:1000}")
+    private long minQueries;
+
+    // bounds the memory used for shapes of ad hoc queries
+    @Value("${session.index-advisor.max-shapes:1000}")
+    private int maxShapes;
+
+    private final Map<SessionType, Map<List<String>, AtomicLong>> shapes =
+        new EnumMap<SessionType, Map<List<String>, AtomicLong>>(SessionType.class);
+
+    private final AtomicInteger shapeCount = new AtomicInteger();
+
+    public SessionQueryAdvisor() {
+        for (SessionType type : SessionType.values()) {
+            shapes.put(type, new ConcurrentHashMap<List<String>, AtomicLong>());
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void record(SessionType type, String query) {
+        if (!enabled) {
+            return;
+        }
+        List<String> shape;
+        try {
+            shape = shape(Document.parse(query));
+        } catch (RuntimeException e) {
+            // invalid queries are rejected when they are run
+            return;
+        }
+        if (shape.isEmpty()) {
+            return;
+        }
+        Map<List<String>, AtomicLong> typeShapes = shapes.get(type);
+        AtomicLong count = typeShapes.get(shape);
+        if (count == null) {
+            if (shapeCount.get() >= maxShapes) {
+                return;
+            }
+            count = typeShapes.computeIfAbsent(shape, key -> {
+                shapeCount.incrementAndGet();
+                return new AtomicLong();
+            });
+        }
+        if (count.incrementAndGet() == minQueries && createIndexes) {
+            taskExecutor.execute(() -> createIndexIfMissing(type, shape));
+        }
+    }
+
+    /**
+     * The queried shapes of each type, most frequent first, and the
+     * configured indexes. A shape is indexed if an index covers it in
+     * every existing collection of the type, which is also reported per
+     * collection.
+     */
+    public Map<String, Object> getReport() {
+        Map<String, Object> report = new LinkedHashMap<String, Object>();
+        report.put("enabled", enabled);
+        report.put("createIndexes", createIndexes);
+        report.put("minQueries", minQueries);
+        Map<String, Object> types = new LinkedHashMap<String, Object>();
+        for (SessionType type : SessionType.values()) {
+            List<Map.Entry<List<String>, AtomicLong>> typeShapes =
+                new ArrayList<Map.Entry<List<String>, AtomicLong>>(shapes.get(type).entrySet());
+            List<List<String>> configured = sessionIndexes.getIndexes(type.toString());
+            if (typeShapes.isEmpty() && configured.isEmpty()) {
+                continue;
+            }
+            typeShapes.sort((a, b) -> Long.compare(b.getValue().get(), a.getValue().get()));
+            // the shared collection and those of partitioned sources are indexed separately
+            Map<String, List<IndexInfo>> indexes = new LinkedHashMap<String, List<IndexInfo>>();
+            for (String collectionName : sessionCollections.getCollections(type)) {
+                if (mongoTemplate.collectionExists(collectionName)) {
+                    indexes.put(collectionName, mongoTemplate.indexOps(collectionName).getIndexInfo());
+                }
+            }
+            List<Map<String, Object>> shapeReports = new ArrayList<Map<String, Object>>();
+            for (Map.Entry<List<String>, AtomicLong> shape : typeShapes) {
+                Map<String, Boolean> collections = new LinkedHashMap<String, Boolean>();
+                indexes.forEach((collectionName, collectionIndexes) ->
+                    collections.put(collectionName, SessionIndexes.isIndexed(shape.getKey(), collectionIndexes)));
+                Map<String, Object> shapeReport = new LinkedHashMap<String, Object>();
+                shapeReport.put("fields", shape.getKey());
+                shapeReport.put("queries", shape.getValue().get());
+                shapeReport.put("indexed", !collections.isEmpty() && !collections.containsValue(false));
+                shapeReport.put("collections", collections);
+                shapeReports.add(shapeReport);
+            }
+            Map<String, Object> typeReport = new LinkedHashMap<String, Object>();
+            typeReport.put("configuredIndexes", configured);
+            typeReport.put("shapes", shapeReports);
+            types.put(type.toString(), typeReport);
+        }
+        report.put("types", types);
+        return report;
+    }
+
+    /**
+     * The fields the query matches on, sorted. Fields in $and, $or and $nor
+     * clauses count too, other top level operators such as $expr are left out.
+     */
+    static List<String> shape(Document query) {
+        TreeSet<String> fields = new TreeSet<String>();
+        addFields(query, fields);
+        return Collections.unmodifiableList(new ArrayList<String>(fields));
+    }
+
+    private static void addFields(Document query, TreeSet<String> fields) {
+        for (Map.Entry<String, Object> entry : query.entrySet()) {
+            if (LOGICAL_OPERATORS.contains(entry.getKey()) && entry.getValue() instanceof List) {
+                for (Object clause : (List<?>) entry.getValue()) {
+                    if (clause instanceof Document) {
+                        addFields((Document) clause, fields);
+                    }
+                }
+            } else if (!entry.getKey().startsWith("$")) {
+                fields.add(entry.getKey());
+            }
+        }
+    }
+
+    private void createIndexIfMissing(SessionType type, List<String> shape) {
+        for (String collectionName : sessionCollections.getCollections(type)) {
+            try {
+                if (!SessionIndexes.isIndexed(shape, getIndexInfo(collectionName))) {
+                    LOG.info("Creating index on {} of collection '{}' after {} queries", shape, collectionName,
+                        minQueries);
+                    mongoTemplate.indexOps(collectionName).ensureIndex(
+                        new CompoundIndexDefinition(SessionIndexes.keys(shape)));
+                }
+            } catch (DataAccessException e) {
+                LOG.warn("Could not create index on {} of collection '{}': {}", shape, collectionName,
+                    e.getMessage());
+            }
+        }
+    }
+
+    private List<IndexInfo> getIndexInfo(String collectionName) {
+        if (!mongoTemplate.collectionExists(collectionName)) {
+            return Collections.emptyList();
+        }
+        return mongoTemplate.indexOps(collectionName).getIndexInfo();
+    }
+}
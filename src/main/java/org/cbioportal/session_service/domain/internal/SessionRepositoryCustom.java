@@ -32,10 +32,14 @@
 
 package org.cbioportal.session_service.domain.internal;
 
+import org.bson.Document;
+import org.bson.RawBsonDocument;
 import org.cbioportal.session_service.domain.Session;
 import org.cbioportal.session_service.domain.SessionType;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.stream.Stream;
 
 /**
  * @author Manda Wilson 
@@ -44,16 +48,56 @@ public interface SessionRepositoryCustom {
 
     void saveSession(Session session);
 
+    boolean upsertSession(Session session);
+
+    boolean updateSessionData(Session session, Collection<String> checksums);
+
+    void updateSessionsData(String source, SessionType type, List<Session> sessions);
+
+    boolean patchSessionData(Session session, String checksum, SessionMergePatch patch);
+
+    void insertSessions(String source, SessionType type, List<Session> sessions);
+
     Session findOneBySourceAndTypeAndData(String source, SessionType type, Object data);
 
     Session findOneBySourceAndTypeAndChecksum(String source, SessionType type, String checksum);
 
     Session findOneBySourceAndTypeAndId(String source, SessionType type, String id);
 
+    RawBsonDocument findRawBySourceAndTypeAndId(String source, SessionType type, String id);
+
+    Document findDocumentBySourceAndTypeAndId(String source, SessionType type, String id);
+
+    List<RawBsonDocument> findRawBySourceAndType(String source, SessionType type, String after, int limit);
+
+    List<RawBsonDocument> findRawBySourceAndTypeAndQuery(String source, SessionType type, String query,
+        List<String> fields, String after, int limit);
+
+    RawBsonDocument findCompressedBySourceAndTypeAndId(String source, SessionType type, String id);
+
+    Session findChecksumBySourceAndTypeAndId(String source, SessionType type, String id);
+
+    List<Session> findChecksumsBySourceAndType(String source, SessionType type, String after, int limit);
+
+    List<Session> findChecksumsBySourceAndTypeAndQuery(String source, SessionType type, String query,
+        String after, int limit);
+
+    List<Session> findBySourceAndTypeAndIdIn(String source, SessionType type, Collection<String> ids);
+
     List<Session> findBySourceAndType(String source, SessionType type);
 
+    List<Session> findBySourceAndType(String source, SessionType type, String after, int limit);
+
     long deleteBySourceAndTypeAndId(String source, SessionType type, String id);
 
     List<Session> findBySourceAndTypeAndQuery(String source, SessionType type, String query);
 
+    List<Session> findBySourceAndTypeAndQuery(String source, SessionType type, String query, List<String> fields,
+        String after, int limit);
+
+    Stream<Session> streamBySourceAndType(String source, SessionType type, String after, int limit);
+
+    Stream<Session> streamBySourceAndTypeAndQuery(String source, SessionType type, String query, List<String> fields,
+        String after, int limit);
+
 }
@@ -33,17 +33,45 @@
 package org.cbioportal.session_service.domain.internal;
 
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.types.ObjectId;
 import org.cbioportal.session_service.domain.Session;
 import org.cbioportal.session_service.domain.SessionType;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.convert.QueryMapper;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentEntity;
 
-import org.springframework.data.mongodb.core.index.CompoundIndexDefinition;
 import org.springframework.data.mongodb.core.query.Query;
-import org.springframework.data.mongodb.core.query.BasicQuery;
 import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Update;
 
+import com.mongodb.ErrorCategory;
+import jakarta.validation.ConstraintViolation;
+import jakarta.validation.ConstraintViolationException;
+import jakarta.validation.Validator;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.FindIterable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import static org.cbioportal.session_service.domain.internal.SessionQueries.*;
 
 /**
  * This is necessary because we are saving objects from one domain
@@ -55,52 +83,481 @@ public class SessionRepositoryImpl implements SessionRepositoryCustom {
 
     @Autowired
     private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private SessionCollectionManager sessionCollectionManager;
+
+    @Autowired
+    private SessionCollections sessionCollections;
+
+    @Autowired
+    private Validator validator;
+
+    @Autowired
+    private SessionDataCompression sessionDataCompression;
+
+    @Autowired
+    private SessionMetrics sessionMetrics;
     
     @Override
     public void saveSession(Session session) {
-        if (!this.mongoTemplate.collectionExists(session.getType().toString())) {
-            this.mongoTemplate.createCollection(session.getType().toString());
-            Document indexKeys = new Document();
-            indexKeys.append("source", 1);
-            indexKeys.append("type", 1);
-            indexKeys.append("checksum", 1);
-            this.mongoTemplate.indexOps(session.getType().toString()).ensureIndex(
-                new CompoundIndexDefinition(indexKeys).unique());
-        } 
-        this.mongoTemplate.save(session, session.getType().toString());
+        this.sessionCollectionManager.ensureCollection(collection(session.getSource(), session.getType()));
+        time("save", session.getSource(), session.getType(),
+            () -> this.mongoTemplate.save(session, collection(session.getSource(), session.getType())));
+    }
+
+    /**
+     * Inserts the session unless a session with the same source, type and
+     * checksum exists, in one atomic findAndModify, and sets the id of the
+     * inserted or existing session. Returns false if the session existed.
+     */
+    @Override
+    public boolean upsertSession(Session session) {
+        // findAndModify does not publish the events that trigger validation on save
+        validate(session);
+        this.sessionCollectionManager.ensureCollection(collection(session.getSource(), session.getType()));
+        Query query = bySourceAndTypeAndChecksum(session.getSource(), session.getType(), session.getChecksum());
+        // only the id is needed back, not the (possibly large) data of an existing session
+        query.fields().include("_id");
+        // the partition migration copies a session before it removes it, so
+        // one not found here is found in the collection of the source below
+        String fallback = this.sessionCollections.getFallbackCollection(session.getSource(), session.getType());
+        if (fallback != null) {
+            Session existing = time("find_one", session.getSource(), session.getType(),
+                () -> this.mongoTemplate.findOne(query, Session.class, fallback));
+            if (existing != null) {
+                session.setId(existing.getId());
+                return false;
+            }
+        }
+        Update update = new Update();
+        // the id to insert with, an existing session is returned with its own id
+        ObjectId id = new ObjectId();
+        Document stored = new Document("_id", id).append("data", session.getData());
+        // findAndModify does not publish the save events that compress large sessions either
+        if (this.sessionDataCompression.compress(session, stored)) {
+            stored.forEach(update::setOnInsert);
+        } else {
+            update.setOnInsert("_id", id);
+            update.setOnInsert("data", session.getData());
+        }
+        Session saved = time("upsert", session.getSource(), session.getType(),
+            () -> this.mongoTemplate.findAndModify(query, update,
+                FindAndModifyOptions.options().upsert(true).returnNew(true),
+                Session.class, collection(session.getSource(), session.getType())));
+        session.setId(saved.getId());
+        return saved.getId().equals(id.toHexString());
+    }
+
+    /**
+     * Replaces the data and checksum of the session with the given id in
+     * one atomic update, without reading it first. If checksums is not
+     * null, the session is only updated if it has one of these checksums.
+     * Returns whether a session was updated.
+     */
+    @Override
+    public boolean updateSessionData(Session session, Collection<String> checksums) {
+        // updates do not publish the save events either
+        validate(session);
+        Query query = bySourceAndTypeAndIdAndChecksumIn(session.getSource(), session.getType(), session.getId(),
+            checksums);
+        Update update = setData(session, this.sessionDataCompression);
+        return withFallback(session.getSource(), session.getType(),
+            collectionName -> time("update", session.getSource(), session.getType(),
+                () -> this.mongoTemplate.updateFirst(query, update, Session.class,
+                    collectionName).getMatchedCount() > 0),
+            Boolean::booleanValue);
+    }
+
+    /**
+     * Replaces the data and checksum of the sessions with a single unordered
+     * bulk write, as updateSessionData does for one session. Sessions that no
+     * longer exist are skipped.
+     */
+    @Override
+    public void updateSessionsData(String source, SessionType type, List<Session> sessions) {
+        if (sessions.isEmpty()) {
+            return;
+        }
+        for (Session session : sessions) {
+            validate(session);
+        }
+        List<Update> updates = new ArrayList<Update>();
+        for (Session session : sessions) {
+            updates.add(setData(session, this.sessionDataCompression));
+        }
+        // sessions the partition migration has not moved are updated where they are
+        withFallback(source, type, collectionName -> {
+            BulkOperations bulk = this.mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Session.class,
+                collectionName);
+            for (int i = 0; i < sessions.size(); i++) {
+                bulk.updateOne(bySourceAndTypeAndId(source, type, sessions.get(i).getId()), updates.get(i));
+            }
+            return time("update_batch", source, type, () -> bulk.execute()).getMatchedCount();
+        }, matched -> matched == sessions.size());
+    }
+
+    /**
+     * Makes the change of the merge patch to the session if its checksum is
+     * still the given one. The session holds the patched data. Returns
+     * whether the session was updated.
+     */
+    @Override
+    public boolean patchSessionData(Session session, String checksum, SessionMergePatch patch) {
+        validate(session);
+        Query query = bySourceAndTypeAndIdAndChecksumIn(session.getSource(), session.getType(), session.getId(),
+            List.of(checksum));
+        Update update = patch(session, patch, this.sessionDataCompression);
+        return withFallback(session.getSource(), session.getType(),
+            collectionName -> time("patch", session.getSource(), session.getType(),
+                () -> this.mongoTemplate.updateFirst(query, update, Session.class,
+                    collectionName).getMatchedCount() > 0),
+            Boolean::booleanValue);
+    }
+
+    /**
+     * Inserts the sessions with a single unordered bulk write and sets
+     * their ids. Like saveSession followed by a lookup on DuplicateKeyException,
+     * a session whose checksum already exists, in the database or earlier in
+     * the list, gets the id of the existing session instead.
+     */
+    @Override
+    public void insertSessions(String source, SessionType type, List<Session> sessions) {
+        Map<String, Session> sessionsByChecksum = new LinkedHashMap<String, Session>();
+        for (Session session : sessions) {
+            if (!sessionsByChecksum.containsKey(session.getChecksum())) {
+                // assign ids up front since the bulk write does not report them back
+                session.setId(new ObjectId().toHexString());
+                sessionsByChecksum.put(session.getChecksum(), session);
+            }
+        }
+        // sessions the partition migration has not moved are not inserted again
+        List<String> existingChecksums = new ArrayList<String>();
+        String fallback = this.sessionCollections.getFallbackCollection(source, type);
+        if (fallback != null && !sessionsByChecksum.isEmpty()) {
+            for (Session existing : findChecksums(source, type, sessionsByChecksum.keySet(), fallback)) {
+                sessionsByChecksum.get(existing.getChecksum()).setId(existing.getId());
+                existingChecksums.add(existing.getChecksum());
+            }
+        }
+        List<Session> toInsert = new ArrayList<Session>(sessionsByChecksum.values());
+        toInsert.removeIf(session -> existingChecksums.contains(session.getChecksum()));
+        List<String> duplicateChecksums = new ArrayList<String>();
+        if (!toInsert.isEmpty()) {
+            this.sessionCollectionManager.ensureCollection(collection(source, type));
+            try {
+                time("insert", source, type,
+                    () -> this.mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Session.class,
+                            collection(source, type))
+                        .insert(toInsert)
+                        .execute());
+            } catch (BulkOperationException e) {
+                for (BulkWriteError error : e.getErrors()) {
+                    if (ErrorCategory.fromErrorCode(error.getCode()) != ErrorCategory.DUPLICATE_KEY) {
+                        throw e;
+                    }
+                    duplicateChecksums.add(toInsert.get(error.getIndex()).getChecksum());
+                }
+            }
+        }
+        if (!duplicateChecksums.isEmpty()) {
+            Map<String, String> existingIds = new HashMap<String, String>();
+            for (Session existing : findChecksums(source, type, duplicateChecksums, collection(source, type))) {
+                existingIds.put(existing.getChecksum(), existing.getId());
+            }
+            for (String checksum : duplicateChecksums) {
+                sessionsByChecksum.get(checksum).setId(existingIds.get(checksum));
+            }
+        }
+        for (Session session : sessions) {
+            session.setId(sessionsByChecksum.get(session.getChecksum()).getId());
+        }
+        this.sessionMetrics.recordDedupe(SessionMetrics.IN_BATCH, source, type,
+            sessions.size() - sessionsByChecksum.size());
+        this.sessionMetrics.recordDedupe(SessionMetrics.EXISTING, source, type, existingChecksums.size());
+        this.sessionMetrics.recordDedupe(SessionMetrics.DUPLICATE_KEY, source, type, duplicateChecksums.size());
+    }
+
+    private List<Session> findChecksums(String source, SessionType type, Collection<String> checksums,
+        String collectionName) {
+        Query query = bySourceAndType(source, type);
+        query.addCriteria(Criteria.where("checksum").in(checksums));
+        query.fields().include("checksum");
+        return time("find_checksums", source, type,
+            () -> this.mongoTemplate.find(query, Session.class, collectionName));
     }
 
     public Session findOneBySourceAndTypeAndData(String source, SessionType type, Object data) {
         Query query = new Query(Criteria.where("source").is(source).and("type").is(type).and("data").is(data));
-        return this.mongoTemplate.findOne(query, Session.class, type.toString());
+        return time("find_one", source, type,
+            () -> this.mongoTemplate.findOne(query, Session.class, collection(source, type)));
     }
 
     public Session findOneBySourceAndTypeAndChecksum(String source, SessionType type, String checksum) {
         Query query = new Query(Criteria.where("source").is(source).and("type").is(type).and("checksum").is(checksum));
-        return this.mongoTemplate.findOne(query, Session.class, type.toString());
+        return withFallback(source, type, collectionName -> time("find_one", source, type,
+            () -> this.mongoTemplate.findOne(query, Session.class, collectionName)), Objects::nonNull);
     }
 
     public Session findOneBySourceAndTypeAndId(String source, SessionType type, String id) {
-        return this.mongoTemplate.findOne(
-            new Query(Criteria.where("source").is(source).and("type").is(type).and("id").is(id)), 
-            Session.class, type.toString());
+        return withFallback(source, type, collectionName -> time("find_one", source, type,
+            () -> this.mongoTemplate.findOne(
+                new Query(Criteria.where("source").is(source).and("type").is(type).and("id").is(id)),
+                Session.class, collectionName)), Objects::nonNull);
+    }
+
+    /*
+     * The findRaw* methods return the stored BSON as is, without decoding it
+     * into a Document and mapping it onto a Session.
+     */
+
+    public RawBsonDocument findRawBySourceAndTypeAndId(String source, SessionType type, String id) {
+        Query query = new Query(Criteria.where("source").is(source).and("type").is(type).and("id").is(id)).limit(1);
+        List<RawBsonDocument> sessions = inflateRaw(withFallback(source, type,
+            collectionName -> time("find_one", source, type, () -> findRaw(query, collectionName)),
+            found -> !found.isEmpty()), null);
+        return sessions.isEmpty() ? null : sessions.get(0);
+    }
+
+    /**
+     * The stored session as a Document, with compressed data restored, for
+     * changes that need to read the current data as it was sent.
+     */
+    public Document findDocumentBySourceAndTypeAndId(String source, SessionType type, String id) {
+        RawBsonDocument session = findRawBySourceAndTypeAndId(source, type, id);
+        return session == null ? null : session.decode(new DocumentCodec());
+    }
+
+    public List<RawBsonDocument> findRawBySourceAndType(String source, SessionType type, String after, int limit) {
+        Query query = page(bySourceAndType(source, type), after, limit);
+        return withFallbackMerged(source, type, collectionName -> inflateRaw(time("find", source, type,
+            () -> findRaw(query, collectionName)), null), SessionQueries::idOf, after, limit);
+    }
+
+    public List<RawBsonDocument> findRawBySourceAndTypeAndQuery(String source, SessionType type, String query,
+        List<String> fields, String after, int limit) {
+        Query projected = page(project(bySourceAndQuery(source, query), fields,
+            this.sessionDataCompression.isEnabled(type)), after, limit);
+        return withFallbackMerged(source, type, collectionName -> inflateRaw(time("query", source, type,
+            () -> findRaw(projected, collectionName)), fields), SessionQueries::idOf, after, limit);
+    }
+
+    /**
+     * Returns the id, checksum and compressed JSON of the session, or null
+     * if the session is not stored compressed.
+     */
+    public RawBsonDocument findCompressedBySourceAndTypeAndId(String source, SessionType type, String id) {
+        if (!this.sessionDataCompression.isEnabled(type)) {
+            return null;
+        }
+        Query query = new Query(Criteria.where("source").is(source).and("type").is(type).and("id").is(id)).limit(1);
+        query.fields().include("checksum", SessionDataCompression.COMPRESSED_DATA_FIELD,
+            SessionDataCompression.COMPRESSION_FIELD);
+        List<RawBsonDocument> sessions = withFallback(source, type,
+            collectionName -> time("find_compressed", source, type, () -> findRaw(query, collectionName)),
+            found -> !found.isEmpty());
+        return sessions.isEmpty() || !sessions.get(0).containsKey(SessionDataCompression.COMPRESSED_DATA_FIELD)
+            ? null : sessions.get(0);
+    }
+
+    /**
+     * Raw documents skip the mapping events, so compressed sessions are
+     * restored here.
+     */
+    private List<RawBsonDocument> inflateRaw(List<RawBsonDocument> sessions, List<String> fields) {
+        for (int i = 0; i < sessions.size(); i++) {
+            if (sessions.get(i).containsKey(SessionDataCompression.COMPRESSED_DATA_FIELD)) {
+                Document session = sessions.get(i).decode(new DocumentCodec());
+                this.sessionDataCompression.inflate(session, fields);
+                sessions.set(i, new RawBsonDocument(session, new DocumentCodec()));
+            }
+        }
+        return sessions;
+    }
+
+    /**
+     * Runs the query like MongoTemplate.find would, mapping field names and
+     * values the same way, but reads the results as RawBsonDocument.
+     */
+    private List<RawBsonDocument> findRaw(Query query, String collectionName) {
+        MongoPersistentEntity<?> entity =
+            this.mongoTemplate.getConverter().getMappingContext().getPersistentEntity(Session.class);
+        QueryMapper queryMapper = new QueryMapper(this.mongoTemplate.getConverter());
+        return this.mongoTemplate.execute(collectionName, collection -> {
+            FindIterable<RawBsonDocument> results = collection.withDocumentClass(RawBsonDocument.class)
+                .find(queryMapper.getMappedObject(query.getQueryObject(), entity))
+                .projection(queryMapper.getMappedFields(query.getFieldsObject(), entity))
+                .sort(queryMapper.getMappedSort(query.getSortObject(), entity))
+                .limit(query.getLimit());
+            return results.into(new ArrayList<RawBsonDocument>());
+        });
+    }
+
+    /*
+     * The findChecksum* methods return sessions with only their id and
+     * checksum, e.g. to check an ETag without reading the session data.
+     */
+
+    public Session findChecksumBySourceAndTypeAndId(String source, SessionType type, String id) {
+        Query query = new Query(Criteria.where("source").is(source).and("type").is(type).and("id").is(id));
+        query.fields().include("checksum");
+        return withFallback(source, type, collectionName -> time("find_checksum", source, type,
+            () -> this.mongoTemplate.findOne(query, Session.class, collectionName)), Objects::nonNull);
+    }
+
+    public List<Session> findChecksumsBySourceAndType(String source, SessionType type, String after, int limit) {
+        Query query = page(bySourceAndType(source, type), after, limit);
+        query.fields().include("checksum");
+        return withFallbackMerged(source, type, collectionName -> time("find_checksums", source, type,
+            () -> this.mongoTemplate.find(query, Session.class, collectionName)), Session::getId, after, limit);
+    }
+
+    public List<Session> findChecksumsBySourceAndTypeAndQuery(String source, SessionType type, String query,
+        String after, int limit) {
+        Query basicQuery = page(bySourceAndQuery(source, query), after, limit);
+        basicQuery.fields().include("checksum");
+        return withFallbackMerged(source, type, collectionName -> time("query_checksums", source, type,
+            () -> this.mongoTemplate.find(basicQuery, Session.class, collectionName)), Session::getId, after, limit);
+    }
+
+    public List<Session> findBySourceAndTypeAndIdIn(String source, SessionType type, Collection<String> ids) {
+        List<Session> sessions = time("find_ids", source, type, () -> this.mongoTemplate.find(
+            new Query(Criteria.where("source").is(source).and("type").is(type).and("id").in(ids)),
+            Session.class, collection(source, type)));
+        String fallback = this.sessionCollections.getFallbackCollection(source, type);
+        if (fallback != null && sessions.size() < ids.size()) {
+            Set<String> missing = new HashSet<String>(ids);
+            sessions.forEach(session -> missing.remove(session.getId()));
+            sessions.addAll(time("find_ids", source, type, () -> this.mongoTemplate.find(
+                new Query(Criteria.where("source").is(source).and("type").is(type).and("id").in(missing)),
+                Session.class, fallback)));
+        }
+        return sessions;
     }
 
     public List<Session> findBySourceAndType(String source, SessionType type) {
-        return this.mongoTemplate.find(
-            new Query(Criteria.where("source").is(source).and("type").is(type)), 
-            Session.class, type.toString());
+        return findBySourceAndType(source, type, null, 0);
+    }
+
+    public List<Session> findBySourceAndType(String source, SessionType type, String after, int limit) {
+        Query query = page(bySourceAndType(source, type), after, limit);
+        return withFallbackMerged(source, type, collectionName -> time("find", source, type,
+            () -> this.mongoTemplate.find(query, Session.class, collectionName)), Session::getId, after, limit);
     }
 
     public long deleteBySourceAndTypeAndId(String source, SessionType type, String id) {
-        return this.mongoTemplate.remove(
-            new Query(Criteria.where("source").is(source).and("type").is(type).and("id").is(id)),
-            Session.class, type.toString()).getDeletedCount();
+        return withFallback(source, type, collectionName -> time("delete", source, type,
+            () -> this.mongoTemplate.remove(
+                new Query(Criteria.where("source").is(source).and("type").is(type).and("id").is(id)),
+                Session.class, collectionName).getDeletedCount()), deleted -> deleted > 0);
     }
 
     public List<Session> findBySourceAndTypeAndQuery(String source, SessionType type, String query) {
-        BasicQuery basicQuery = new BasicQuery(query);
-        basicQuery.addCriteria(Criteria.where("source").is(source));
-        return this.mongoTemplate.find(basicQuery, Session.class, type.toString());
+        return findBySourceAndTypeAndQuery(source, type, query, null, null, 0);
+    }
+
+    public List<Session> findBySourceAndTypeAndQuery(String source, SessionType type, String query,
+        List<String> fields, String after, int limit) {
+        Query projected = page(project(bySourceAndQuery(source, query), fields,
+            this.sessionDataCompression.isEnabled(type)), after, limit);
+        if (!isProjectedAndCompressed(type, fields)) {
+            return withFallbackMerged(source, type, collectionName -> time("query", source, type,
+                () -> this.mongoTemplate.find(projected, Session.class, collectionName)), Session::getId, after, limit);
+        }
+        return withFallbackMerged(source, type, collectionName -> {
+            List<Session> sessions = new ArrayList<Session>();
+            for (Document document : time("query", source, type,
+                () -> this.mongoTemplate.find(projected, Document.class, collectionName))) {
+                sessions.add(readProjected(document, fields));
+            }
+            return sessions;
+        }, Session::getId, after, limit);
+    }
+
+    /**
+     * The returned stream holds an open cursor and must be closed.
+     */
+    public Stream<Session> streamBySourceAndType(String source, SessionType type, String after, int limit) {
+        Query query = page(bySourceAndType(source, type), after, limit);
+        return streamWithFallback(source, type,
+            collectionName -> this.mongoTemplate.stream(query, Session.class, collectionName), after, limit);
+    }
+
+    /**
+     * The returned stream holds an open cursor and must be closed.
+     */
+    public Stream<Session> streamBySourceAndTypeAndQuery(String source, SessionType type, String query,
+        List<String> fields, String after, int limit) {
+        Query projected = page(project(bySourceAndQuery(source, query), fields,
+            this.sessionDataCompression.isEnabled(type)), after, limit);
+        if (!isProjectedAndCompressed(type, fields)) {
+            return streamWithFallback(source, type,
+                collectionName -> this.mongoTemplate.stream(projected, Session.class, collectionName), after, limit);
+        }
+        return streamWithFallback(source, type,
+            collectionName -> this.mongoTemplate.stream(projected, Document.class, collectionName)
+                .map(document -> readProjected(document, fields)), after, limit);
+    }
+
+    private void validate(Session session) {
+        Set<ConstraintViolation<Session>> violations = this.validator.validate(session);
+        if (!violations.isEmpty()) {
+            throw new ConstraintViolationException(violations);
+        }
+    }
+
+    private String collection(String source, SessionType type) {
+        return this.sessionCollections.getCollection(source, type);
+    }
+
+    /**
+     * Runs the call on the collection of the source and, if it did not find
+     * what it was looking for, on the fallback collection of the source,
+     * see SessionCollections.getFallbackCollection.
+     */
+    private <T> T withFallback(String source, SessionType type, Function<String, T> call, Predicate<T> found) {
+        T result = call.apply(collection(source, type));
+        String fallback = this.sessionCollections.getFallbackCollection(source, type);
+        return fallback == null || found.test(result) ? result : call.apply(fallback);
+    }
+
+    /**
+     * Runs the list or query on the collection of the source and, until the
+     * partition migration has moved all sessions of the source, on the
+     * fallback collection too, and merges the results, see SessionQueries.merge.
+     */
+    private <T> List<T> withFallbackMerged(String source, SessionType type, Function<String, List<T>> call,
+        Function<T, String> id, String after, int limit) {
+        List<T> results = call.apply(collection(source, type));
+        String fallback = this.sessionCollections.getFallbackCollection(source, type);
+        return fallback == null ? results : merge(results, call.apply(fallback), id, after, limit);
+    }
+
+    private Stream<Session> streamWithFallback(String source, SessionType type,
+        Function<String, Stream<Session>> call, String after, int limit) {
+        Stream<Session> results = call.apply(collection(source, type));
+        String fallback = this.sessionCollections.getFallbackCollection(source, type);
+        return fallback == null ? results : merge(results, call.apply(fallback), Session::getId, after, limit);
+    }
+
+    private <T> T time(String operation, String source, SessionType type, Supplier<T> call) {
+        return this.sessionMetrics.time(SessionMetrics.REPOSITORY, operation, source, type, call);
+    }
+
+    private void time(String operation, String source, SessionType type, Runnable call) {
+        this.sessionMetrics.time(SessionMetrics.REPOSITORY, operation, source, type, call);
+    }
+
+    private boolean isProjectedAndCompressed(SessionType type, List<String> fields) {
+        return fields != null && !fields.isEmpty() && this.sessionDataCompression.isEnabled(type);
+    }
+
+    /**
+     * Reading documents skips the load event that restores compressed
+     * sessions, which would not know the projection.
+     */
+    private Session readProjected(Document document, List<String> fields) {
+        this.sessionDataCompression.inflate(document, fields);
+        return this.mongoTemplate.getConverter().read(Session.class, document);
     }
 }
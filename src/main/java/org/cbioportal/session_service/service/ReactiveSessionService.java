@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.service;
+
+import org.bson.Document;
+import org.cbioportal.session_service.domain.Session;
+import org.cbioportal.session_service.domain.SessionKey;
+import org.cbioportal.session_service.domain.SessionType;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+
+/**
+ * Non-blocking variant of SessionService. Errors are signalled with the
+ * same exceptions SessionService throws.
+ */
+public interface ReactiveSessionService {
+    Mono<Session> addSession(String source, SessionType type, String data);
+    Mono<List<Session>> addSessions(String source, SessionType type, String data);
+    Flux<Session> getSessions(String source, SessionType type, String after, int limit);
+    Flux<Session> getSessionsByQuery(String source, SessionType type, String query, List<String> fields,
+        String after, int limit);
+    Mono<Session> getSession(String source, SessionType type, String id);
+    Mono<Document> getCompressedSession(String source, SessionType type, String id);
+    Mono<String> getSessionChecksum(String source, SessionType type, String id);
+    Flux<Session> getSessionChecksums(String source, SessionType type, String after, int limit);
+    Flux<Session> getSessionChecksumsByQuery(String source, SessionType type, String query, String after, int limit);
+    Mono<List<Session>> getSessions(String source, List<SessionKey> keys);
+    Mono<Void> updateSession(String source, SessionType type, String id, String data);
+    Mono<String> updateSession(String source, SessionType type, String id, String data, List<String> checksums);
+    Mono<String> patchSession(String source, SessionType type, String id, String patch, List<String> checksums);
+    Mono<Void> deleteSession(String source, SessionType type, String id);
+}
@@ -32,21 +32,45 @@
 
 package org.cbioportal.session_service.service;
 
+import org.bson.RawBsonDocument;
 import org.cbioportal.session_service.domain.Session;
+import org.cbioportal.session_service.domain.SessionKey;
 import org.cbioportal.session_service.domain.SessionType;
 import org.cbioportal.session_service.service.exception.*;
 
 import java.util.List;
+import java.util.stream.Stream;
 
 /**
  * @author Manda Wilson 
  */
 public interface SessionService {
     Session addSession(String source, SessionType type, String data) throws SessionInvalidException;
+    List<Session> addSessions(String source, SessionType type, String data) throws SessionInvalidException;
     List<Session> getSessions(String source, SessionType type);
+    List<Session> getSessions(String source, SessionType type, String after, int limit);
     List<Session> getSessionsByQuery(String source, SessionType type, String query);
+    List<Session> getSessionsByQuery(String source, SessionType type, String query, List<String> fields,
+        String after, int limit);
+    Stream<Session> streamSessions(String source, SessionType type, String after, int limit);
+    Stream<Session> streamSessionsByQuery(String source, SessionType type, String query, List<String> fields,
+        String after, int limit);
     Session getSession(String source, SessionType type, String id) throws SessionNotFoundException;
+    RawBsonDocument getRawSession(String source, SessionType type, String id) throws SessionNotFoundException;
+    List<RawBsonDocument> getRawSessions(String source, SessionType type, String after, int limit);
+    List<RawBsonDocument> getRawSessionsByQuery(String source, SessionType type, String query, List<String> fields,
+        String after, int limit);
+    RawBsonDocument getCompressedSession(String source, SessionType type, String id);
+    String getSessionChecksum(String source, SessionType type, String id) throws SessionNotFoundException;
+    List<Session> getSessionChecksums(String source, SessionType type, String after, int limit);
+    List<Session> getSessionChecksumsByQuery(String source, SessionType type, String query, String after, int limit);
+    List<Session> getSessions(String source, List<SessionKey> keys) throws SessionQueryInvalidException;
     void updateSession(String source, SessionType type, String id, String data) throws SessionInvalidException, 
         SessionNotFoundException;
+    String updateSession(String source, SessionType type, String id, String data, List<String> checksums)
+        throws SessionInvalidException, SessionNotFoundException, SessionPreconditionFailedException;
+    String patchSession(String source, SessionType type, String id, String patch, List<String> checksums)
+        throws SessionInvalidException, SessionNotFoundException, SessionPreconditionFailedException;
     void deleteSession(String source, SessionType type, String id) throws SessionNotFoundException;
+    void recordAccess(String source, SessionType type, String id);
 }
@@ -0,0 +1,347 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.service.internal;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.validation.ConstraintViolationException;
+import org.bson.BSONException;
+import org.bson.Document;
+import org.bson.json.JsonParseException;
+import org.cbioportal.session_service.domain.ChecksumAlgorithm;
+import org.cbioportal.session_service.domain.Session;
+import org.cbioportal.session_service.domain.SessionKey;
+import org.cbioportal.session_service.domain.SessionType;
+import org.cbioportal.session_service.domain.internal.ReactiveSessionRepository;
+import org.cbioportal.session_service.domain.internal.SessionDataCompression;
+import org.cbioportal.session_service.domain.internal.SessionMergePatch;
+import org.cbioportal.session_service.domain.internal.SessionQueryAdvisor;
+import org.cbioportal.session_service.service.ReactiveSessionService;
+import org.cbioportal.session_service.service.exception.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.core.env.Environment;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * SessionService on the reactive driver, see SessionServiceImpl for the
+ * behaviour of each method.
+ *
+ * Write-behind, insert batching, archiving and the session metrics are only
+ * implemented by the blocking service. The reactive mode does not start if
+ * any of the first three is configured, so that sessions are not read and
+ * written around them.
+ */
+@Service
+@Profile("reactive")
+public class ReactiveSessionServiceImpl implements ReactiveSessionService {
+
+    @Autowired
+    private Environment environment;
+
+    @Autowired
+    private ReactiveSessionRepository sessionRepository;
+
+    @Autowired
+    private SessionIdCache sessionIdCache;
+
+    @Autowired
+    private SessionQueryAdvisor sessionQueryAdvisor;
+
+    @Autowired
+    private SessionDataCompression sessionDataCompression;
+
+    @Autowired
+    private SessionQueryCache sessionQueryCache;
+
+    @Value("${session.batch.max-size:1000}")
+    private int maxBatchSize;
+
+    @Value("${session.checksum.algorithm:legacy_md5}")
+    private ChecksumAlgorithm checksumAlgorithm;
+
+    @Value("${session.patch.max-attempts:5}")
+    private int maxPatchAttempts;
+
+    @PostConstruct
+    public void init() {
+        List<String> unsupported = new ArrayList<String>();
+        List<String> properties = new ArrayList<String>(List.of("session.insert-batching.types"));
+        for (SessionType type : SessionType.values()) {
+            properties.add("session.write-behind.window." + type);
+            properties.add("session.archive.idle." + type);
+        }
+        for (String property : properties) {
+            if (StringUtils.hasText(environment.getProperty(property))) {
+                unsupported.add(property);
+            }
+        }
+        if (!unsupported.isEmpty()) {
+            throw new IllegalStateException("Not supported in reactive mode: " + String.join(", ", unsupported));
+        }
+    }
+
+    @Override
+    public Mono<Session> addSession(String source, SessionType type, String data) {
+        return Mono.defer(() -> {
+            Session session = buildSession(source, type, data);
+            long stamp = sessionIdCache.stamp();
+            String id = sessionIdCache.get(source, type, session.getChecksum());
+            if (id != null) {
+                session.setId(id);
+                return Mono.just(session);
+            }
+            return sessionRepository.upsertSession(session)
+                // two concurrent upserts of the same new session, the other one won
+                .onErrorResume(DuplicateKeyException.class,
+                    e -> sessionRepository.findOneBySourceAndTypeAndChecksum(source, type, session.getChecksum()))
+                // the upsert does not tell whether it inserted
+                .doOnNext(saved -> sessionQueryCache.invalidate(source, type))
+                .doOnNext(saved -> sessionIdCache.put(saved, stamp));
+        }).onErrorMap(this::isInvalidSession, this::toSessionInvalid);
+    }
+
+    @Override
+    public Mono<List<Session>> addSessions(String source, SessionType type, String data) {
+        return Mono.defer(() -> {
+            List<Session> sessions = new ArrayList<Session>();
+            for (Document document : SessionValidation.parseDocuments(data, maxBatchSize)) {
+                sessions.add(buildSession(source, type, document));
+            }
+            long stamp = sessionIdCache.stamp();
+            return sessionRepository.insertSessions(source, type, sessions)
+                .doOnNext(inserted -> sessionQueryCache.invalidate(source, type))
+                .doOnNext(inserted -> inserted.forEach(session -> sessionIdCache.put(session, stamp)));
+        }).onErrorMap(this::isInvalidSession, this::toSessionInvalid);
+    }
+
+    @Override
+    public Flux<Session> getSessions(String source, SessionType type, String after, int limit) {
+        return Flux.defer(() -> {
+            SessionValidation.validatePage(after, limit);
+            return sessionRepository.findBySourceAndType(source, type, after, limit);
+        });
+    }
+
+    @Override
+    public Flux<Session> getSessionsByQuery(String source, SessionType type, String query, List<String> fields,
+        String after, int limit) {
+        return Flux.defer(() -> {
+            SessionValidation.validatePage(after, limit);
+            SessionValidation.validateFields(fields);
+            SessionValidation.validateQuery(type, query, sessionDataCompression);
+            sessionQueryAdvisor.record(type, query);
+            return sessionQueryCache.getFlux(source, type, "query", query, fields, after, limit,
+                () -> sessionRepository.findBySourceAndTypeAndQuery(source, type, query, fields, after, limit));
+        }).onErrorMap(SessionValidation::isInvalidQuery, e -> new SessionQueryInvalidException(e.getMessage()));
+    }
+
+    @Override
+    public Mono<Session> getSession(String source, SessionType type, String id) {
+        return sessionRepository.findOneBySourceAndTypeAndId(source, type, id)
+            .switchIfEmpty(Mono.error(() -> new SessionNotFoundException(id)));
+    }
+
+    @Override
+    public Mono<Document> getCompressedSession(String source, SessionType type, String id) {
+        return sessionRepository.findCompressedBySourceAndTypeAndId(source, type, id);
+    }
+
+    @Override
+    public Mono<String> getSessionChecksum(String source, SessionType type, String id) {
+        return sessionRepository.findChecksumBySourceAndTypeAndId(source, type, id)
+            .map(Session::getChecksum)
+            .switchIfEmpty(Mono.error(() -> new SessionNotFoundException(id)));
+    }
+
+    @Override
+    public Flux<Session> getSessionChecksums(String source, SessionType type, String after, int limit) {
+        return Flux.defer(() -> {
+            SessionValidation.validatePage(after, limit);
+            return sessionRepository.findChecksumsBySourceAndType(source, type, after, limit);
+        });
+    }
+
+    @Override
+    public Flux<Session> getSessionChecksumsByQuery(String source, SessionType type, String query, String after,
+        int limit) {
+        return Flux.defer(() -> {
+            SessionValidation.validatePage(after, limit);
+            SessionValidation.validateQuery(type, query, sessionDataCompression);
+            sessionQueryAdvisor.record(type, query);
+            return sessionQueryCache.getFlux(source, type, "query_checksums", query, null, after, limit,
+                () -> sessionRepository.findChecksumsBySourceAndTypeAndQuery(source, type, query, after, limit));
+        }).onErrorMap(SessionValidation::isInvalidQuery, e -> new SessionQueryInvalidException(e.getMessage()));
+    }
+
+    /**
+     * Queries the collections of all requested types concurrently, and
+     * returns the sessions in the order of the keys.
+     */
+    @Override
+    public Mono<List<Session>> getSessions(String source, List<SessionKey> keys) {
+        if (keys.size() > maxBatchSize) {
+            return Mono.error(
+                new SessionQueryInvalidException("at most " + maxBatchSize + " sessions can be fetched at once"));
+        }
+        Map<SessionType, Set<String>> idsByType = new EnumMap<SessionType, Set<String>>(SessionType.class);
+        for (SessionKey key : keys) {
+            if (key == null || key.getType() == null || key.getId() == null) {
+                return Mono.error(new SessionQueryInvalidException("each session needs a type and an id"));
+            }
+            idsByType.computeIfAbsent(key.getType(), type -> new LinkedHashSet<String>()).add(key.getId());
+        }
+        return Flux.fromIterable(idsByType.entrySet())
+            .flatMap(entry -> sessionRepository.findBySourceAndTypeAndIdIn(source, entry.getKey(), entry.getValue()))
+            .collectMap(session -> new SessionKey(session.getType(), session.getId()))
+            .map(sessionsByKey -> {
+                List<Session> sessions = new ArrayList<Session>();
+                for (SessionKey key : keys) {
+                    Session session = sessionsByKey.remove(key);
+                    if (session != null) {
+                        sessions.add(session);
+                    }
+                }
+                return sessions;
+            });
+    }
+
+    @Override
+    public Mono<Void> updateSession(String source, SessionType type, String id, String data) {
+        return updateSession(source, type, id, data, null).then();
+    }
+
+    @Override
+    public Mono<String> updateSession(String source, SessionType type, String id, String data, List<String> checksums) {
+        return Mono.defer(() -> {
+            Session session = buildSession(source, type, data);
+            session.setId(id);
+            return sessionRepository.updateSessionData(session, checksums)
+                .flatMap(updated -> {
+                    if (updated) {
+                        sessionIdCache.evict(id);
+                        sessionQueryCache.invalidate(source, type);
+                        return Mono.just(session.getChecksum());
+                    }
+                    if (checksums == null) {
+                        return Mono.<String>error(new SessionNotFoundException(id));
+                    }
+                    return sessionRepository.findChecksumBySourceAndTypeAndId(source, type, id)
+                        .flatMap(existing -> Mono.<String>error(new SessionPreconditionFailedException(id)))
+                        .switchIfEmpty(Mono.error(() -> new SessionNotFoundException(id)));
+                });
+        }).onErrorMap(this::isInvalidSession, this::toSessionInvalid);
+    }
+
+    @Override
+    public Mono<String> patchSession(String source, SessionType type, String id, String patch, List<String> checksums) {
+        return Mono.defer(() -> patchSession(source, type, id, Document.parse(patch), checksums, maxPatchAttempts))
+            .onErrorMap(this::isInvalidSession, this::toSessionInvalid);
+    }
+
+    @Override
+    public Mono<Void> deleteSession(String source, SessionType type, String id) {
+        return sessionRepository.deleteBySourceAndTypeAndId(source, type, id)
+            .flatMap(numberDeleted -> {
+                sessionIdCache.evict(id);
+                if (numberDeleted > 0) {
+                    sessionQueryCache.invalidate(source, type);
+                }
+                // using unique id so never more than 1
+                return numberDeleted == 1 ? Mono.<Void>empty() : Mono.<Void>error(new SessionNotFoundException(id));
+            });
+    }
+
+    private Mono<String> patchSession(String source, SessionType type, String id, Document patch,
+        List<String> checksums, int attempts) {
+        if (attempts == 0) {
+            return Mono.error(new SessionPreconditionFailedException(id));
+        }
+        return sessionRepository.findDocumentBySourceAndTypeAndId(source, type, id)
+            .switchIfEmpty(Mono.error(() -> new SessionNotFoundException(id)))
+            .flatMap(stored -> {
+                String checksum = stored.getString("checksum");
+                if (checksums != null && !checksums.contains(checksum)) {
+                    return Mono.error(new SessionPreconditionFailedException(id));
+                }
+                SessionMergePatch mergePatch = new SessionMergePatch(stored.get("data", Document.class), patch);
+                if (mergePatch.isEmpty()) {
+                    return Mono.just(checksum);
+                }
+                Session session = buildSession(source, type, mergePatch.getData());
+                session.setId(id);
+                return sessionRepository.patchSessionData(session, checksum, mergePatch)
+                    .flatMap(patched -> {
+                        if (!patched) {
+                            // lost to a concurrent update, patch its data
+                            return patchSession(source, type, id, patch, checksums, attempts - 1);
+                        }
+                        sessionIdCache.evict(id);
+                        sessionQueryCache.invalidate(source, type);
+                        return Mono.just(session.getChecksum());
+                    });
+            });
+    }
+
+    private Session buildSession(String source, SessionType type, Object data) {
+        Session session = new Session();
+        session.setSource(source);
+        session.setType(type);
+        session.setData(data, checksumAlgorithm);
+        return session;
+    }
+
+    private boolean isInvalidSession(Throwable e) {
+        return e instanceof ConstraintViolationException || e instanceof JsonParseException
+            || e instanceof BSONException;
+    }
+
+    private SessionInvalidException toSessionInvalid(Throwable e) {
+        if (e instanceof ConstraintViolationException) {
+            return new SessionInvalidException(
+                SessionValidation.buildConstraintViolationExceptionMessage((ConstraintViolationException) e));
+        }
+        return new SessionInvalidException(e.getMessage());
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.service.internal;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.cbioportal.session_service.domain.SessionType;
+import org.cbioportal.session_service.domain.internal.SessionArchive;
+import org.cbioportal.session_service.domain.internal.SessionCollections;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.context.annotation.Profile;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Archiving of idle sessions of the types configured with
+ * session.archive.idle.{type}, e.g. main_session, of which only a small,
+ * recent part is ever read again.
+ *
+ * Reads of these types are recorded in memory and written as the last
+ * access time of the sessions every session.archive.access-flush-interval,
+ * one update per source and type. Every session.archive.interval, the
+ * sessions not accessed for their idle period are moved to the archive
+ * collection of their type, see SessionArchive; reads by id move them back.
+ *
+ * Only the blocking service reads from the archive, so the reactive mode
+ * does not start with archiving configured, see ReactiveSessionServiceImpl.
+ */
+@Component
+@Profile("!reactive")
+public class SessionArchiver {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SessionArchiver.class);
+
+    @Autowired
+    private Environment environment;
+
+    @Autowired
+    private SessionArchive sessionArchive;
+
+    @Autowired
+    private SessionCollections sessionCollections;
+
+    @Value("${session.archive.access-flush-interval:1m}")
+    private Duration accessFlushInterval;
+
+    @Value("${session.archive.interval:1h}")
+    private Duration interval;
+
+    @Value("${session.archive.batch-size:1000}")
+    private int batchSize;
+
+    private final Map<SessionType, Duration> idlePeriods = new EnumMap<SessionType, Duration>(SessionType.class);
+
+    // ids of the sessions read since the last flush, by type and source
+    private final Map<SessionType, Map<String, Set<String>>> accessed =
+        new EnumMap<SessionType, Map<String, Set<String>>>(SessionType.class);
+
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    public void init() {
+        for (SessionType type : SessionType.values()) {
+            String idle = environment.getProperty("session.archive.idle." + type);
+            if (idle != null) {
+                idlePeriods.put(type, DurationStyle.detectAndParse(idle));
+                accessed.put(type, new ConcurrentHashMap<String, Set<String>>());
+            }
+        }
+        if (idlePeriods.isEmpty()) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "session-archiver");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long flushMillis = accessFlushInterval.toMillis();
+        scheduler.scheduleWithFixedDelay(this::flushAccesses, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+        long archiveMillis = interval.toMillis();
+        scheduler.scheduleWithFixedDelay(this::archive, archiveMillis, archiveMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.shutdown();
+        scheduler.awaitTermination(30, TimeUnit.SECONDS);
+        flushAccesses();
+    }
+
+    public boolean isEnabled(SessionType type) {
+        return idlePeriods.containsKey(type);
+    }
+
+    public void recordAccess(String source, SessionType type, String id) {
+        Map<String, Set<String>> typeAccessed = accessed.get(type);
+        if (typeAccessed != null) {
+            typeAccessed.computeIfAbsent(source, key -> ConcurrentHashMap.newKeySet()).add(id);
+        }
+    }
+
+    /**
+     * Writes the recorded accesses. An access recorded while its source is
+     * being written may only be written with the next flush, which is well
+     * within any idle period.
+     */
+    public void flushAccesses() {
+        Date now = new Date();
+        for (Map.Entry<SessionType, Map<String, Set<String>>> typeAccessed : accessed.entrySet()) {
+            for (String source : typeAccessed.getValue().keySet()) {
+                Set<String> ids = typeAccessed.getValue().remove(source);
+                if (ids == null || ids.isEmpty()) {
+                    continue;
+                }
+                try {
+                    sessionArchive.recordAccess(source, typeAccessed.getKey(), ids, now);
+                } catch (RuntimeException e) {
+                    // keep the scheduled flushes running, the sessions are read again if they are in use
+                    LOG.error("could not record the access of " + ids.size() + " "
+                        + typeAccessed.getKey() + " sessions of " + source, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves the sessions that have been idle for longer than the idle period
+     * of their type to the archive. The idle cutoff is taken before pending
+     * accesses are written, so sessions read until now are kept.
+     */
+    public void archive() {
+        Date now = new Date();
+        flushAccesses();
+        for (Map.Entry<SessionType, Duration> idle : idlePeriods.entrySet()) {
+            Date idleSince = new Date(now.getTime() - idle.getValue().toMillis());
+            int archived = 0;
+            try {
+                for (String collectionName : sessionCollections.getCollections(idle.getKey())) {
+                    int moved;
+                    do {
+                        moved = sessionArchive.archive(collectionName, idleSince, batchSize);
+                        archived += moved;
+                    } while (moved == batchSize);
+                }
+            } catch (RuntimeException e) {
+                LOG.error("could not archive idle " + idle.getKey() + " sessions", e);
+            }
+            if (archived > 0) {
+                LOG.info("archived " + archived + " " + idle.getKey() + " sessions idle since " + idleSince);
+            }
+        }
+    }
+}
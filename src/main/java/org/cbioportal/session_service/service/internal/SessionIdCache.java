@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.service.internal;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import jakarta.annotation.PostConstruct;
+import org.cbioportal.session_service.domain.Session;
+import org.cbioportal.session_service.domain.SessionType;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of session ids by (source, type, checksum), so that adding
+ * a session that was added before does not need to go to the database.
+ *
+ * A session's checksum changes when it is updated, so updates and deletes
+ * must evict its id, after writing. The key of each cached id is kept as
+ * well, so that evicting does not search the cache. An id read before an
+ * eviction may already be stale, so put takes the stamp taken before the
+ * id was read, and skips the id if anything was evicted since.
+ */
+@Component
+public class SessionIdCache {
+
+    @Value("${session.id-cache.max-size:0}")
+    private long maxSize;
+
+    private Cache<String, String> cache;
+
+    // key of each id in the cache
+    private final Map<String, String> keys = new ConcurrentHashMap<String, String>();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        if (maxSize > 0) {
+            cache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                // called atomically with the eviction of the entry
+                .<String, String>evictionListener((key, id, cause) -> keys.remove(id, key))
+                .recordStats()
+                .build();
+        }
+    }
+
+    public String get(String source, SessionType type, String checksum) {
+        return cache == null ? null : cache.getIfPresent(key(source, type, checksum));
+    }
+
+    /**
+     * To be taken before the id of a session is read from the database, and
+     * passed to put.
+     */
+    public long stamp() {
+        return evictions.get();
+    }
+
+    public void put(Session session, long stamp) {
+        if (cache == null || session.getId() == null) {
+            return;
+        }
+        String key = key(session.getSource(), session.getType(), session.getChecksum());
+        String previous = keys.put(session.getId(), key);
+        if (previous != null && !previous.equals(key)) {
+            cache.asMap().remove(previous, session.getId());
+        }
+        String replaced = cache.asMap().put(key, session.getId());
+        if (replaced != null && !replaced.equals(session.getId())) {
+            keys.remove(replaced, key);
+        }
+        if (evictions.get() != stamp) {
+            // the session may have been updated after its id was read
+            cache.asMap().remove(key, session.getId());
+            keys.remove(session.getId(), key);
+        }
+    }
+
+    public void evict(String id) {
+        if (cache != null) {
+            evictions.incrementAndGet();
+            String key = keys.remove(id);
+            if (key != null) {
+                cache.asMap().remove(key, id);
+            }
+        }
+    }
+
+    private String key(String source, SessionType type, String checksum) {
+        return source + "/" + type + "/" + checksum;
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.service.internal;
+
+import jakarta.validation.ConstraintViolation;
+import jakarta.validation.ConstraintViolationException;
+import jakarta.validation.Validator;
+import org.cbioportal.session_service.domain.Session;
+import org.cbioportal.session_service.domain.SessionRepository;
+import org.cbioportal.session_service.domain.SessionType;
+import org.cbioportal.session_service.domain.internal.SessionMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Group commit of added sessions of the types listed in
+ * session.insert-batching.types, e.g. virtual_study,group.
+ *
+ * Concurrent adds of the same source and type are collected into one
+ * batch, which is written with a single unordered bulk write by
+ * SessionRepository.insertSessions. The first caller of a batch waits up
+ * to session.insert-batching.max-wait for others to join, or until the
+ * batch holds session.insert-batching.max-size sessions, and then writes
+ * it; the other callers wait for that write. Every caller gets the id of
+ * its own session back, or the id of the existing session with the same
+ * checksum, as with a single insert.
+ *
+ * Sessions are validated before they join a batch, so an invalid session
+ * only fails its own caller.
+ */
+@Component
+@Profile("!reactive")
+public class SessionInsertBatcher {
+
+    @Value("${session.insert-batching.types:}")
+    private Set<SessionType> types;
+
+    @Value("${session.insert-batching.max-size:64}")
+    private int maxSize;
+
+    @Value("${session.insert-batching.max-wait:2ms}")
+    private Duration maxWait;
+
+    @Autowired
+    private SessionRepository sessionRepository;
+
+    @Autowired
+    private SessionQueryCache sessionQueryCache;
+
+    @Autowired
+    private SessionMetrics sessionMetrics;
+
+    @Autowired
+    private Validator validator;
+
+    // by source/type
+    private final Map<String, Pipeline> pipelines = new ConcurrentHashMap<String, Pipeline>();
+
+    /**
+     * The open batch of a source and type. Not a monitor, since callers
+     * block in it while the batch fills, possibly on virtual threads.
+     */
+    private static class Pipeline {
+        final ReentrantLock lock = new ReentrantLock();
+        final Condition closed = lock.newCondition();
+        Batch open;
+    }
+
+    private static class Batch {
+        final List<Session> sessions = new ArrayList<Session>();
+        final CompletableFuture<Void> written = new CompletableFuture<Void>();
+    }
+
+    public boolean isEnabled(SessionType type) {
+        return types.contains(type);
+    }
+
+    /**
+     * Inserts the session together with concurrently added sessions of the
+     * same source and type, and sets its id once the batch is written.
+     */
+    public void insert(Session session) {
+        Set<ConstraintViolation<Session>> violations = validator.validate(session);
+        if (!violations.isEmpty()) {
+            throw new ConstraintViolationException(violations);
+        }
+        Pipeline pipeline = pipelines.computeIfAbsent(session.getSource() + "/" + session.getType(),
+            key -> new Pipeline());
+        Batch batch;
+        boolean leader = false;
+        pipeline.lock.lock();
+        try {
+            if (pipeline.open == null) {
+                pipeline.open = new Batch();
+                leader = true;
+            }
+            batch = pipeline.open;
+            batch.sessions.add(session);
+            if (batch.sessions.size() >= maxSize) {
+                pipeline.open = null;
+                pipeline.closed.signalAll();
+            }
+            if (leader) {
+                long nanos = maxWait.toNanos();
+                try {
+                    while (pipeline.open == batch && nanos > 0) {
+                        nanos = pipeline.closed.awaitNanos(nanos);
+                    }
+                } catch (InterruptedException e) {
+                    // write what has been collected so far
+                    Thread.currentThread().interrupt();
+                }
+                if (pipeline.open == batch) {
+                    pipeline.open = null;
+                }
+            }
+        } finally {
+            pipeline.lock.unlock();
+        }
+        if (leader) {
+            write(session.getSource(), session.getType(), batch);
+        } else {
+            try {
+                batch.written.join();
+            } catch (CompletionException e) {
+                // the exception the leader got from the write
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+    }
+
+    private void write(String source, SessionType type, Batch batch) {
+        try {
+            sessionMetrics.recordBatchSize("insert", source, type, batch.sessions.size());
+            sessionRepository.insertSessions(source, type, batch.sessions);
+            sessionQueryCache.invalidate(source, type);
+            batch.written.complete(null);
+        } catch (RuntimeException e) {
+            batch.written.completeExceptionally(e);
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.service.internal;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import jakarta.annotation.PostConstruct;
+import org.bson.Document;
+import org.cbioportal.session_service.domain.SessionType;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Cache of query results by source, type and query, so that the same
+ * query, e.g. for the virtual studies of a user, is not run again until
+ * a session of that source and type is written.
+ *
+ * Each (source, type) has a generation that writes through the service
+ * increment once they are done. Results are cached with the generation
+ * read before the query was run and are only returned while it is still
+ * current, so results of a query that raced with a write are not served.
+ * Entries also expire after a time to live, session.query-cache.ttl or
+ * session.query-cache.ttl.{type}, and are bounded by their number of
+ * sessions.
+ */
+@Component
+public class SessionQueryCache {
+
+    @Autowired
+    private Environment environment;
+
+    @Value("${session.query-cache.enabled:false}")
+    private boolean enabled;
+
+    @Value("${session.query-cache.max-sessions:100000}")
+    private long maxSessions;
+
+    @Value("${session.query-cache.ttl:60s}")
+    private String ttl;
+
+    private final Map<SessionType, Duration> ttls = new EnumMap<SessionType, Duration>(SessionType.class);
+
+    private final Map<String, AtomicLong> generations = new ConcurrentHashMap<String, AtomicLong>();
+
+    private Cache<String, Entry> cache;
+
+    private static class Entry {
+        private final SessionType type;
+        private final long generation;
+        private final List<?> results;
+
+        Entry(SessionType type, long generation, List<?> results) {
+            this.type = type;
+            this.generation = generation;
+            this.results = results;
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        Duration defaultTtl = DurationStyle.detectAndParse(ttl);
+        for (SessionType type : SessionType.values()) {
+            String typeTtl = environment.getProperty("session.query-cache.ttl." + type);
+            ttls.put(type, typeTtl == null ? defaultTtl : DurationStyle.detectAndParse(typeTtl));
+        }
+        cache = Caffeine.newBuilder()
+            .maximumWeight(maxSessions)
+            .weigher((String key, Entry entry) -> entry.results.size() + 1)
+            .expireAfter(new Expiry<String, Entry>() {
+                @Override
+                public long expireAfterCreate(String key, Entry entry, long currentTime) {
+                    return ttls.get(entry.type).toNanos();
+                }
+
+                @Override
+                public long expireAfterUpdate(String key, Entry entry, long currentTime, long currentDuration) {
+                    return ttls.get(entry.type).toNanos();
+                }
+
+                @Override
+                public long expireAfterRead(String key, Entry entry, long currentTime, long currentDuration) {
+                    return currentDuration;
+                }
+            })
+            .recordStats()
+            .build();
+    }
+
+    public boolean isEnabled() {
+        return cache != null;
+    }
+
+    /**
+     * The cached results of the query, or the results of the loader, which
+     * are then cached. The operation tells apart the queries that return
+     * different views of the sessions.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> List<T> get(String source, SessionType type, String operation, String query, List<String> fields,
+        String after, int limit, Supplier<List<T>> loader) {
+        String key = key(source, type, operation, query, fields, after, limit);
+        if (key == null) {
+            return loader.get();
+        }
+        long generation = generation(source, type).get();
+        List<?> cached = getIfCurrent(key, generation);
+        if (cached != null) {
+            return (List<T>) cached;
+        }
+        List<T> results = loader.get();
+        cache.put(key, new Entry(type, generation, Collections.unmodifiableList(results)));
+        return results;
+    }
+
+    /**
+     * Like get, for a query on the reactive driver. The results are
+     * collected before they are cached.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Flux<T> getFlux(String source, SessionType type, String operation, String query, List<String> fields,
+        String after, int limit, Supplier<Flux<T>> loader) {
+        String key = key(source, type, operation, query, fields, after, limit);
+        if (key == null) {
+            return loader.get();
+        }
+        long generation = generation(source, type).get();
+        List<?> cached = getIfCurrent(key, generation);
+        if (cached != null) {
+            return Flux.fromIterable((List<T>) cached);
+        }
+        return loader.get().collectList()
+            .doOnNext(results -> cache.put(key, new Entry(type, generation, Collections.unmodifiableList(results))))
+            .flatMapIterable(results -> results);
+    }
+
+    /**
+     * Invalidates the cached queries on sessions of the source and type,
+     * to be called once a write to them is done.
+     */
+    public void invalidate(String source, SessionType type) {
+        if (cache != null) {
+            generation(source, type).incrementAndGet();
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        stats.put("enabled", isEnabled());
+        if (cache != null) {
+            CacheStats cacheStats = cache.stats();
+            stats.put("maxSessions", maxSessions);
+            stats.put("ttl", ttls);
+            stats.put("size", cache.estimatedSize());
+            stats.put("hitCount", cacheStats.hitCount());
+            stats.put("missCount", cacheStats.missCount());
+            stats.put("hitRate", cacheStats.hitRate());
+            stats.put("evictionCount", cacheStats.evictionCount());
+        }
+        return stats;
+    }
+
+    private List<?> getIfCurrent(String key, long generation) {
+        Entry entry = cache.getIfPresent(key);
+        return entry != null && entry.generation == generation ? entry.results : null;
+    }
+
+    private AtomicLong generation(String source, SessionType type) {
+        return generations.computeIfAbsent(source + "/" + type, key -> new AtomicLong());
+    }
+
+    /**
+     * The cache key of the query, or null if it is not cached: the cache
+     * is disabled or the query does not parse, in which case the loader
+     * reports the error.
+     */
+    private String key(String source, SessionType type, String operation, String query, List<String> fields,
+        String after, int limit) {
+        if (cache == null) {
+            return null;
+        }
+        String normalizedQuery;
+        try {
+            // the same query with different white space or quoting is cached once
+            normalizedQuery = Document.parse(query).toJson();
+        } catch (RuntimeException e) {
+            return null;
+        }
+        return source + "/" + type + "/" + operation
+            + "?fields=" + (fields == null ? "" : String.join(",", fields))
+            + "&after=" + (after == null ? "" : after)
+            + "&limit=" + limit
+            + "&query=" + normalizedQuery;
+    }
+}
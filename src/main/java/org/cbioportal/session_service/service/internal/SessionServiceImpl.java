@@ -32,18 +32,49 @@
 
 package org.cbioportal.session_service.service.internal;
 
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
-import jakarta.validation.ConstraintViolation;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 import jakarta.validation.ConstraintViolationException;
 import org.bson.BSONException;
+import org.bson.BsonObjectId;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
 import org.bson.json.JsonParseException;
+import org.bson.types.ObjectId;
+import org.cbioportal.session_service.domain.ChecksumAlgorithm;
 import org.cbioportal.session_service.domain.Session;
+import org.cbioportal.session_service.domain.SessionKey;
 import org.cbioportal.session_service.domain.SessionRepository;
 import org.cbioportal.session_service.domain.SessionType;
+import org.cbioportal.session_service.domain.internal.SessionArchive;
+import org.cbioportal.session_service.domain.internal.SessionDataCompression;
+import org.cbioportal.session_service.domain.internal.SessionMergePatch;
+import org.cbioportal.session_service.domain.internal.SessionMetrics;
+import org.cbioportal.session_service.domain.internal.SessionQueryAdvisor;
 import org.cbioportal.session_service.service.SessionService;
 import org.cbioportal.session_service.service.exception.*;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.task.TaskExecutionAutoConfiguration;
+import org.springframework.context.annotation.Profile;
+import org.springframework.core.task.AsyncTaskExecutor;
 import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.InvalidDataAccessApiUsageException;
 import org.springframework.data.mongodb.UncategorizedMongoDbException;
 import org.springframework.http.converter.HttpMessageNotReadableException;
 import org.springframework.stereotype.Service;
@@ -52,94 +83,581 @@ import org.springframework.stereotype.Service;
  * @author Manda Wilson
  */
 @Service
+@Profile("!reactive")
 public class SessionServiceImpl implements SessionService {
 
     @Autowired
     private SessionRepository sessionRepository;
 
+    @Autowired
+    private SessionIdCache sessionIdCache;
+
+    @Autowired
+    private SessionMetrics sessionMetrics;
+
+    @Autowired
+    private SessionQueryAdvisor sessionQueryAdvisor;
+
+    @Autowired
+    private SessionDataCompression sessionDataCompression;
+
+    @Autowired
+    private SessionQueryCache sessionQueryCache;
+
+    @Autowired
+    private SessionWriteBehind sessionWriteBehind;
+
+    @Autowired
+    private SessionInsertBatcher sessionInsertBatcher;
+
+    @Autowired
+    private SessionArchiver sessionArchiver;
+
+    @Autowired
+    private SessionArchive sessionArchive;
+
+    @Autowired
+    @Qualifier(TaskExecutionAutoConfiguration.APPLICATION_TASK_EXECUTOR_BEAN_NAME)
+    private AsyncTaskExecutor taskExecutor;
+
+    @Value("${session.batch.max-size:1000}")
+    private int maxBatchSize;
+
+    @Value("${session.checksum.algorithm:legacy_md5}")
+    private ChecksumAlgorithm checksumAlgorithm;
+
+    // attempts of a patch that keeps losing to concurrent updates of the session
+    @Value("${session.patch.max-attempts:5}")
+    private int maxPatchAttempts;
+
     @Override
     public Session addSession(String source, SessionType type, String data) throws SessionInvalidException {
-        Session session = null;
-        try {
-            session = new Session();
-            session.setSource(source);
-            session.setType(type);
-            session.setData(data);
-
-            sessionRepository.saveSession(session);
-        } catch (DuplicateKeyException e) {
-            session = sessionRepository.findOneBySourceAndTypeAndChecksum(source,
-                type,
-                session.getChecksum());
-        } catch (ConstraintViolationException e) {
-            throw new SessionInvalidException(buildConstraintViolationExceptionMessage(e));
-        } catch (JsonParseException e) {
-            throw new SessionInvalidException(e.getMessage());
-        } catch (HttpMessageNotReadableException e) {
-            throw new SessionInvalidException(e.getMessage());
-        }
-        return session;
+        sessionMetrics.recordPayloadSize("add", source, type, data);
+        return sessionMetrics.time(SessionMetrics.SERVICE, "add", source, type, () -> {
+            long stamp = sessionIdCache.stamp();
+            Session session = null;
+            try {
+                session = new Session();
+                session.setSource(source);
+                session.setType(type);
+                session.setData(data, checksumAlgorithm);
+
+                String id = sessionIdCache.get(source, type, session.getChecksum());
+                if (id != null) {
+                    session.setId(id);
+                    sessionMetrics.recordDedupe(SessionMetrics.ID_CACHE, source, type, 1);
+                    return session;
+                }
+                if (sessionInsertBatcher.isEnabled(type)) {
+                    // written in one bulk write with concurrent adds of the same source and type
+                    sessionInsertBatcher.insert(session);
+                } else if (sessionRepository.upsertSession(session)) {
+                    sessionQueryCache.invalidate(source, type);
+                } else {
+                    sessionMetrics.recordDedupe(SessionMetrics.EXISTING, source, type, 1);
+                }
+            } catch (DuplicateKeyException e) {
+                // two concurrent upserts of the same new session, the other one won
+                sessionMetrics.recordDedupe(SessionMetrics.DUPLICATE_KEY, source, type, 1);
+                session = sessionRepository.findOneBySourceAndTypeAndChecksum(source,
+                    type,
+                    session.getChecksum());
+            } catch (ConstraintViolationException e) {
+                throw new SessionInvalidException(SessionValidation.buildConstraintViolationExceptionMessage(e));
+            } catch (JsonParseException e) {
+                throw new SessionInvalidException(e.getMessage());
+            } catch (HttpMessageNotReadableException e) {
+                throw new SessionInvalidException(e.getMessage());
+            }
+            sessionIdCache.put(session, stamp);
+            return session;
+        });
+    }
+
+    @Override
+    public List<Session> addSessions(String source, SessionType type, String data) throws SessionInvalidException {
+        sessionMetrics.recordPayloadSize("add_batch", source, type, data);
+        return sessionMetrics.time(SessionMetrics.SERVICE, "add_batch", source, type, () -> {
+            try {
+                List<Session> sessions = new ArrayList<Session>();
+                for (Document document : SessionValidation.parseDocuments(data, maxBatchSize)) {
+                    Session session = new Session();
+                    session.setSource(source);
+                    session.setType(type);
+                    session.setData(document, checksumAlgorithm);
+                    sessions.add(session);
+                }
+                long stamp = sessionIdCache.stamp();
+                sessionRepository.insertSessions(source, type, sessions);
+                sessionQueryCache.invalidate(source, type);
+                for (Session session : sessions) {
+                    sessionIdCache.put(session, stamp);
+                }
+                return sessions;
+            } catch (ConstraintViolationException e) {
+                throw new SessionInvalidException(SessionValidation.buildConstraintViolationExceptionMessage(e));
+            } catch (JsonParseException | BSONException e) {
+                throw new SessionInvalidException(e.getMessage());
+            }
+        });
     }
 
     @Override
     public List<Session> getSessions(String source, SessionType type) {
-        return sessionRepository.findBySourceAndType(source, type);
+        return getSessions(source, type, null, 0);
+    }
+
+    @Override
+    public List<Session> getSessions(String source, SessionType type, String after, int limit)
+        throws SessionQueryInvalidException {
+        return results("list", source, type, () -> {
+            SessionValidation.validatePage(after, limit);
+            sessionWriteBehind.flush(source, type);
+            return sessionRepository.findBySourceAndType(source, type, after, limit);
+        });
     }
 
     @Override
     public List<Session> getSessionsByQuery(String source, SessionType type, String query)
         throws SessionQueryInvalidException {
+        return getSessionsByQuery(source, type, query, null, null, 0);
+    }
+
+    @Override
+    public List<Session> getSessionsByQuery(String source, SessionType type, String query, List<String> fields,
+        String after, int limit) throws SessionQueryInvalidException {
+        return results("query", source, type, () -> {
+            SessionValidation.validatePage(after, limit);
+            sessionWriteBehind.flush(source, type);
+            SessionValidation.validateFields(fields);
+            SessionValidation.validateQuery(type, query, sessionDataCompression);
+            sessionQueryAdvisor.record(type, query);
+            return sessionQueryCache.get(source, type, "query", query, fields, after, limit, () -> {
+                try {
+                    return sessionRepository.findBySourceAndTypeAndQuery(source, type, query, fields, after, limit);
+                } catch (IllegalArgumentException | JsonParseException | BSONException e) {
+                    throw new SessionQueryInvalidException(e.getMessage());
+                } catch (UncategorizedMongoDbException | InvalidDataAccessApiUsageException e) {
+                    throw new SessionQueryInvalidException(e.getMessage());
+                }
+            });
+        });
+    }
+
+    @Override
+    public Stream<Session> streamSessions(String source, SessionType type, String after, int limit)
+        throws SessionQueryInvalidException {
+        SessionValidation.validatePage(after, limit);
+        sessionWriteBehind.flush(source, type);
+        return sessionRepository.streamBySourceAndType(source, type, after, limit);
+    }
+
+    @Override
+    public Stream<Session> streamSessionsByQuery(String source, SessionType type, String query, List<String> fields,
+        String after, int limit) throws SessionQueryInvalidException {
+        SessionValidation.validatePage(after, limit);
+        sessionWriteBehind.flush(source, type);
+        SessionValidation.validateFields(fields);
+        SessionValidation.validateQuery(type, query, sessionDataCompression);
+        sessionQueryAdvisor.record(type, query);
+        // the query is parsed and sent when the cursor is opened, so errors surface here
+        // before anything is written to the response
         try {
-            return sessionRepository.findBySourceAndTypeAndQuery(source, type, query);
+            return sessionRepository.streamBySourceAndTypeAndQuery(source, type, query, fields, after, limit);
         } catch (IllegalArgumentException | JsonParseException | BSONException e) {
             throw new SessionQueryInvalidException(e.getMessage());
-        } catch (UncategorizedMongoDbException e) {
+        } catch (UncategorizedMongoDbException | InvalidDataAccessApiUsageException e) {
             throw new SessionQueryInvalidException(e.getMessage());
         }
     }
 
     @Override
     public Session getSession(String source, SessionType type, String id) throws SessionNotFoundException {
-        Session session = sessionRepository.findOneBySourceAndTypeAndId(source, type, id);
+        return sessionMetrics.time(SessionMetrics.SERVICE, "get", source, type, () -> {
+            Session pending = sessionWriteBehind.get(source, type, id);
+            if (pending != null) {
+                return pending;
+            }
+            Session session = findOrPromote(source, type, id,
+                hotId -> sessionRepository.findOneBySourceAndTypeAndId(source, type, hotId));
+            if (session != null) {
+                session.setId(id);
+                return session;
+            }
+            throw new SessionNotFoundException(id);
+        });
+    }
+
+    @Override
+    public RawBsonDocument getRawSession(String source, SessionType type, String id) throws SessionNotFoundException {
+        return sessionMetrics.time(SessionMetrics.SERVICE, "get", source, type, () -> {
+            RawBsonDocument pending = sessionWriteBehind.getRaw(source, type, id);
+            if (pending != null) {
+                return pending;
+            }
+            RawBsonDocument session = findOrPromote(source, type, id,
+                hotId -> sessionRepository.findRawBySourceAndTypeAndId(source, type, hotId));
+            if (session != null) {
+                return withId(session, id);
+            }
+            throw new SessionNotFoundException(id);
+        });
+    }
+
+    /**
+     * Returns the session as stored compressed, with its checksum, or null if
+     * it is not found, not stored compressed or has a pending update.
+     */
+    @Override
+    public RawBsonDocument getCompressedSession(String source, SessionType type, String id) {
+        if (sessionWriteBehind.get(source, type, id) != null) {
+            return null;
+        }
+        RawBsonDocument session = sessionMetrics.time(SessionMetrics.SERVICE, "get_compressed", source, type,
+            () -> sessionRepository.findCompressedBySourceAndTypeAndId(source, type, id));
         if (session != null) {
-            return session;
+            sessionArchiver.recordAccess(source, type, id);
+        }
+        return session;
+    }
+
+    @Override
+    public List<RawBsonDocument> getRawSessions(String source, SessionType type, String after, int limit)
+        throws SessionQueryInvalidException {
+        return results("list", source, type, () -> {
+            SessionValidation.validatePage(after, limit);
+            sessionWriteBehind.flush(source, type);
+            return sessionRepository.findRawBySourceAndType(source, type, after, limit);
+        });
+    }
+
+    @Override
+    public List<RawBsonDocument> getRawSessionsByQuery(String source, SessionType type, String query,
+        List<String> fields, String after, int limit) throws SessionQueryInvalidException {
+        return results("query", source, type, () -> {
+            SessionValidation.validatePage(after, limit);
+            sessionWriteBehind.flush(source, type);
+            SessionValidation.validateFields(fields);
+            SessionValidation.validateQuery(type, query, sessionDataCompression);
+            sessionQueryAdvisor.record(type, query);
+            return sessionQueryCache.get(source, type, "raw_query", query, fields, after, limit, () -> {
+                try {
+                    return sessionRepository.findRawBySourceAndTypeAndQuery(source, type, query, fields, after, limit);
+                } catch (IllegalArgumentException | JsonParseException | BSONException e) {
+                    throw new SessionQueryInvalidException(e.getMessage());
+                } catch (UncategorizedMongoDbException | InvalidDataAccessApiUsageException e) {
+                    throw new SessionQueryInvalidException(e.getMessage());
+                }
+            });
+        });
+    }
+
+    @Override
+    public String getSessionChecksum(String source, SessionType type, String id) throws SessionNotFoundException {
+        return sessionMetrics.time(SessionMetrics.SERVICE, "get_checksum", source, type, () -> {
+            Session session = sessionWriteBehind.get(source, type, id);
+            if (session == null) {
+                session = findOrPromote(source, type, id,
+                    hotId -> sessionRepository.findChecksumBySourceAndTypeAndId(source, type, hotId));
+            }
+            if (session != null) {
+                return session.getChecksum();
+            }
+            throw new SessionNotFoundException(id);
+        });
+    }
+
+    @Override
+    public List<Session> getSessionChecksums(String source, SessionType type, String after, int limit)
+        throws SessionQueryInvalidException {
+        return results("list_checksums", source, type, () -> {
+            SessionValidation.validatePage(after, limit);
+            sessionWriteBehind.flush(source, type);
+            return sessionRepository.findChecksumsBySourceAndType(source, type, after, limit);
+        });
+    }
+
+    @Override
+    public List<Session> getSessionChecksumsByQuery(String source, SessionType type, String query, String after,
+        int limit) throws SessionQueryInvalidException {
+        return results("query_checksums", source, type, () -> {
+            SessionValidation.validatePage(after, limit);
+            sessionWriteBehind.flush(source, type);
+            SessionValidation.validateQuery(type, query, sessionDataCompression);
+            sessionQueryAdvisor.record(type, query);
+            return sessionQueryCache.get(source, type, "query_checksums", query, null, after, limit, () -> {
+                try {
+                    return sessionRepository.findChecksumsBySourceAndTypeAndQuery(source, type, query, after, limit);
+                } catch (IllegalArgumentException | JsonParseException | BSONException e) {
+                    throw new SessionQueryInvalidException(e.getMessage());
+                } catch (UncategorizedMongoDbException | InvalidDataAccessApiUsageException e) {
+                    throw new SessionQueryInvalidException(e.getMessage());
+                }
+            });
+        });
+    }
+
+    /**
+     * Looks up sessions of several types with one query per type, querying
+     * the collections in parallel. Sessions are returned in the order of
+     * the keys; keys that match no session are left out.
+     */
+    @Override
+    public List<Session> getSessions(String source, List<SessionKey> keys) throws SessionQueryInvalidException {
+        if (keys.size() > maxBatchSize) {
+            throw new SessionQueryInvalidException("at most " + maxBatchSize + " sessions can be fetched at once");
+        }
+        Map<SessionType, Set<String>> idsByType = new EnumMap<SessionType, Set<String>>(SessionType.class);
+        for (SessionKey key : keys) {
+            if (key == null || key.getType() == null || key.getId() == null) {
+                throw new SessionQueryInvalidException("each session needs a type and an id");
+            }
+            idsByType.computeIfAbsent(key.getType(), type -> new LinkedHashSet<String>()).add(key.getId());
+        }
+
+        List<CompletableFuture<List<Session>>> queries = new ArrayList<CompletableFuture<List<Session>>>();
+        for (Map.Entry<SessionType, Set<String>> entry : idsByType.entrySet()) {
+            Supplier<List<Session>> query = () -> results("fetch", source, entry.getKey(),
+                () -> sessionRepository.findBySourceAndTypeAndIdIn(source, entry.getKey(), entry.getValue()));
+            if (idsByType.size() == 1) {
+                queries.add(CompletableFuture.completedFuture(query.get()));
+            } else {
+                queries.add(CompletableFuture.supplyAsync(query, taskExecutor));
+            }
+        }
+
+        Map<SessionKey, Session> sessionsByKey = new HashMap<SessionKey, Session>();
+        try {
+            for (CompletableFuture<List<Session>> query : queries) {
+                for (Session session : query.join()) {
+                    sessionsByKey.put(new SessionKey(session.getType(), session.getId()), session);
+                }
+            }
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+
+        List<Session> sessions = new ArrayList<Session>();
+        Set<SessionKey> seen = new HashSet<SessionKey>();
+        for (SessionKey key : keys) {
+            if (!seen.add(key)) {
+                continue;
+            }
+            Session session = sessionsByKey.remove(key);
+            if (session != null) {
+                sessionArchiver.recordAccess(source, key.getType(), key.getId());
+            } else if (sessionArchiver.isEnabled(key.getType())) {
+                session = findOrPromote(source, key.getType(), key.getId(),
+                    hotId -> sessionRepository.findOneBySourceAndTypeAndId(source, key.getType(), hotId));
+                if (session != null) {
+                    session.setId(key.getId());
+                }
+            }
+            if (session != null) {
+                Session pending = sessionWriteBehind.get(source, key.getType(), key.getId());
+                sessions.add(pending != null ? pending : session);
+            }
         }
-        throw new SessionNotFoundException(id);
+        return sessions;
     }
 
     @Override
     public void updateSession(String source, SessionType type, String id, String data) throws SessionInvalidException,
         SessionNotFoundException {
-        Session savedSession = sessionRepository.findOneBySourceAndTypeAndId(source, type, id);
-        if (savedSession != null) {
+        updateSession(source, type, id, data, null);
+    }
+
+    /**
+     * Replaces the data of the session in a single update, conditioned on
+     * its current checksum being one of the given checksums unless they are
+     * null. Returns the new checksum.
+     */
+    @Override
+    public String updateSession(String source, SessionType type, String id, String data, List<String> checksums)
+        throws SessionInvalidException, SessionNotFoundException, SessionPreconditionFailedException {
+        sessionMetrics.recordPayloadSize("update", source, type, data);
+        return sessionMetrics.time(SessionMetrics.SERVICE, "update", source, type, () -> {
+            Session session = new Session();
+            session.setId(id);
+            session.setSource(source);
+            session.setType(type);
             try {
-                savedSession.setData(data);
-                sessionRepository.saveSession(savedSession);
+                session.setData(data, checksumAlgorithm);
+                if (sessionWriteBehind.isEnabled(type)) {
+                    sessionWriteBehind.update(session, checksums, () -> {
+                        Session stored = sessionRepository.findChecksumBySourceAndTypeAndId(source, type, id);
+                        return stored != null ? stored.getChecksum() : null;
+                    });
+                    // not archived before the pending update is written
+                    sessionArchiver.recordAccess(source, type, id);
+                    sessionIdCache.evict(id);
+                    return session.getChecksum();
+                }
+                if (!sessionRepository.updateSessionData(session, checksums)
+                    && !(promote(source, type, id) && sessionRepository.updateSessionData(session, checksums))) {
+                    // only a failed conditional update needs to tell a changed session from a missing one
+                    if (checksums != null
+                        && sessionRepository.findChecksumBySourceAndTypeAndId(source, type, id) != null) {
+                        throw new SessionPreconditionFailedException(id);
+                    }
+                    throw new SessionNotFoundException(id);
+                }
             } catch (ConstraintViolationException e) {
-                throw new SessionInvalidException(buildConstraintViolationExceptionMessage(e));
+                throw new SessionInvalidException(SessionValidation.buildConstraintViolationExceptionMessage(e));
             } catch (JsonParseException e) {
                 throw new SessionInvalidException(e.getMessage());
             }
-            return;
-        }
-        throw new SessionNotFoundException(id);
+            sessionArchiver.recordAccess(source, type, id);
+            sessionIdCache.evict(id);
+            sessionQueryCache.invalidate(source, type);
+            return session.getChecksum();
+        });
+    }
+
+    /**
+     * Applies a JSON merge patch to the session data. The current data is
+     * read to compute the new checksum, and the patch is written with $set
+     * and $unset on the changed fields if its checksum is still the same,
+     * otherwise it is applied again to the data of the concurrent update.
+     * Returns the new checksum.
+     */
+    @Override
+    public String patchSession(String source, SessionType type, String id, String patch, List<String> checksums)
+        throws SessionInvalidException, SessionNotFoundException, SessionPreconditionFailedException {
+        sessionMetrics.recordPayloadSize("patch", source, type, patch);
+        return sessionMetrics.time(SessionMetrics.SERVICE, "patch", source, type, () -> {
+            try {
+                Document patchDocument = Document.parse(patch);
+                // the patch applies to the stored data
+                sessionWriteBehind.flush(source, type);
+                for (int attempt = 0; attempt < maxPatchAttempts; attempt++) {
+                    Document stored = sessionRepository.findDocumentBySourceAndTypeAndId(source, type, id);
+                    if (stored == null && promote(source, type, id)) {
+                        stored = sessionRepository.findDocumentBySourceAndTypeAndId(source, type, id);
+                    }
+                    if (stored == null) {
+                        throw new SessionNotFoundException(id);
+                    }
+                    String checksum = stored.getString("checksum");
+                    if (checksums != null && !checksums.contains(checksum)) {
+                        throw new SessionPreconditionFailedException(id);
+                    }
+                    SessionMergePatch mergePatch = new SessionMergePatch(stored.get("data", Document.class), patchDocument);
+                    if (mergePatch.isEmpty()) {
+                        return checksum;
+                    }
+                    Session session = new Session();
+                    session.setId(id);
+                    session.setSource(source);
+                    session.setType(type);
+                    session.setData(mergePatch.getData(), checksumAlgorithm);
+                    if (sessionRepository.patchSessionData(session, checksum, mergePatch)) {
+                        sessionArchiver.recordAccess(source, type, id);
+                        sessionIdCache.evict(id);
+                        sessionQueryCache.invalidate(source, type);
+                        return session.getChecksum();
+                    }
+                }
+            } catch (ConstraintViolationException e) {
+                throw new SessionInvalidException(SessionValidation.buildConstraintViolationExceptionMessage(e));
+            } catch (JsonParseException | BSONException e) {
+                throw new SessionInvalidException(e.getMessage());
+            }
+            throw new SessionPreconditionFailedException(id);
+        });
     }
 
     @Override
     public void deleteSession(String source, SessionType type, String id) throws SessionNotFoundException {
-        long numberDeleted = sessionRepository.deleteBySourceAndTypeAndId(source, type, id);
-        if (numberDeleted != 1) { // using unique id so never more than 1
-            throw new SessionNotFoundException(id);
+        sessionMetrics.time(SessionMetrics.SERVICE, "delete", source, type, () -> {
+            sessionWriteBehind.remove(source, type, id);
+            long numberDeleted = sessionRepository.deleteBySourceAndTypeAndId(source, type, id);
+            if (numberDeleted == 0 && sessionArchiver.isEnabled(type)) {
+                numberDeleted = sessionArchive.deleteArchived(source, type, id);
+            }
+            sessionIdCache.evict(id);
+            if (numberDeleted > 0) {
+                sessionQueryCache.invalidate(source, type);
+            }
+            if (numberDeleted != 1) { // using unique id so never more than 1
+                throw new SessionNotFoundException(id);
+            }
+        });
+    }
+
+    /**
+     * Records a read of the session that did not go through the service,
+     * e.g. one served from a cache, so that it is not archived.
+     */
+    @Override
+    public void recordAccess(String source, SessionType type, String id) {
+        sessionArchiver.recordAccess(source, type, id);
+    }
+
+    /**
+     * Finds the session with find, or if it is not found, moves it back from
+     * the archive of its type and finds it under the id SessionArchive.promote
+     * returns. Records the access of sessions that are found.
+     */
+    private <T> T findOrPromote(String source, SessionType type, String id, Function<String, T> find) {
+        T session = find.apply(id);
+        if (session == null && sessionArchiver.isEnabled(type)) {
+            String hotId = promoteArchived(source, type, id);
+            if (hotId != null) {
+                session = find.apply(hotId);
+            }
+        }
+        if (session != null) {
+            sessionArchiver.recordAccess(source, type, id);
         }
+        return session;
     }
 
-    private String buildConstraintViolationExceptionMessage(ConstraintViolationException e) {
-        StringBuffer errors = new StringBuffer();
-        for (ConstraintViolation<?> violation : e.getConstraintViolations()) {
-            errors.append(violation.getMessage());
-            errors.append(";");
+    /**
+     * Moves the session back from the archive for a change. Returns false
+     * if it is not archived, or stays archived because another session has
+     * the same data.
+     */
+    private boolean promote(String source, SessionType type, String id) {
+        return sessionArchiver.isEnabled(type) && id.equals(promoteArchived(source, type, id));
+    }
+
+    /**
+     * SessionArchive.promote, and invalidates the queries cached while the
+     * session was archived if it was moved back.
+     */
+    private String promoteArchived(String source, SessionType type, String id) {
+        String hotId = sessionArchive.promote(source, type, id);
+        if (id.equals(hotId)) {
+            sessionQueryCache.invalidate(source, type);
         }
-        return errors.toString();
+        return hotId;
     }
 
+    /**
+     * The session read for an archived session under the id of a session
+     * with the same data, with the id it was requested by.
+     */
+    private RawBsonDocument withId(RawBsonDocument session, String id) {
+        BsonValue storedId = ObjectId.isValid(id) ? new BsonObjectId(new ObjectId(id)) : new BsonString(id);
+        if (storedId.equals(session.get("_id"))) {
+            return session;
+        }
+        Document document = session.decode(new DocumentCodec());
+        document.put("_id", ObjectId.isValid(id) ? new ObjectId(id) : id);
+        return new RawBsonDocument(document, new DocumentCodec());
+    }
+
+    /**
+     * Times a list or query operation and records the number of sessions
+     * it returns.
+     */
+    private <T> List<T> results(String operation, String source, SessionType type, Supplier<List<T>> call) {
+        List<T> results = sessionMetrics.time(SessionMetrics.SERVICE, operation, source, type, call);
+        sessionMetrics.recordResults(operation, source, type, results.size());
+        return results;
+    }
 }
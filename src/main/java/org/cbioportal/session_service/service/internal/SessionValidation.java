@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.service.internal;
+
+import jakarta.validation.ConstraintViolation;
+import jakarta.validation.ConstraintViolationException;
+import org.bson.BSONException;
+import org.bson.BsonType;
+import org.bson.Document;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.bson.json.JsonParseException;
+import org.bson.json.JsonReader;
+import org.bson.types.ObjectId;
+import org.cbioportal.session_service.domain.SessionType;
+import org.cbioportal.session_service.domain.internal.SessionDataCompression;
+import org.cbioportal.session_service.service.exception.SessionInvalidException;
+import org.cbioportal.session_service.service.exception.SessionQueryInvalidException;
+import org.springframework.dao.InvalidDataAccessApiUsageException;
+import org.springframework.data.mongodb.UncategorizedMongoDbException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks of session input shared by the servlet and reactive services.
+ */
+final class SessionValidation {
+
+    private SessionValidation() {}
+
+    /**
+     * Parses a JSON array of session data, decoding each element exactly
+     * like Document.parse so checksums match those of single sessions.
+     */
+    static List<Document> parseDocuments(String data, int maxBatchSize) throws SessionInvalidException {
+        List<Document> documents = new ArrayList<Document>();
+        JsonReader reader = new JsonReader(data);
+        DocumentCodec codec = new DocumentCodec();
+        reader.readStartArray();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            if (reader.getCurrentBsonType() != BsonType.DOCUMENT) {
+                throw new SessionInvalidException("expected an array of JSON objects, found "
+                    + reader.getCurrentBsonType() + " at index " + documents.size());
+            }
+            if (documents.size() == maxBatchSize) {
+                throw new SessionInvalidException("at most " + maxBatchSize + " sessions can be added at once");
+            }
+            documents.add(codec.decode(reader, DecoderContext.builder().build()));
+        }
+        reader.readEndArray();
+        return documents;
+    }
+
+    static void validatePage(String after, int limit) throws SessionQueryInvalidException {
+        if (after != null && !ObjectId.isValid(after)) {
+            throw new SessionQueryInvalidException("after must be a session id, got '" + after + "'");
+        }
+        if (limit < 0) {
+            throw new SessionQueryInvalidException("limit must not be negative, got " + limit);
+        }
+    }
+
+    static void validateFields(List<String> fields) throws SessionQueryInvalidException {
+        if (fields == null) {
+            return;
+        }
+        for (String field : fields) {
+            if (!(field.equals("data") || field.startsWith("data.")) || field.contains("$") || field.endsWith(".")) {
+                throw new SessionQueryInvalidException("fields must be paths in the session data like "
+                    + "'data.name', got '" + field + "'");
+            }
+        }
+    }
+
+    /**
+     * Rejects queries on fields that compressed sessions of the type do not
+     * keep, which would silently leave them out of the results.
+     */
+    static void validateQuery(SessionType type, String query, SessionDataCompression compression)
+        throws SessionQueryInvalidException {
+        if (!compression.isEnabled(type)) {
+            return;
+        }
+        List<String> fields;
+        try {
+            fields = compression.getUnqueryableFields(type, Document.parse(query));
+        } catch (RuntimeException e) {
+            // invalid queries are rejected when they are run
+            return;
+        }
+        if (!fields.isEmpty()) {
+            throw new SessionQueryInvalidException(type + " sessions are stored compressed and can only be queried "
+                + "on their retained fields " + compression.getRetainedFields(type) + ", got " + fields);
+        }
+    }
+
+    /**
+     * Whether the exception was caused by a query that cannot be parsed or
+     * that mongo rejects.
+     */
+    static boolean isInvalidQuery(Throwable e) {
+        return e instanceof IllegalArgumentException || e instanceof JsonParseException || e instanceof BSONException
+            || e instanceof UncategorizedMongoDbException || e instanceof InvalidDataAccessApiUsageException;
+    }
+
+    static String buildConstraintViolationExceptionMessage(ConstraintViolationException e) {
+        StringBuffer errors = new StringBuffer();
+        for (ConstraintViolation<?> violation : e.getConstraintViolations()) {
+            errors.append(violation.getMessage());
+            errors.append(";");
+        }
+        return errors.toString();
+    }
+}
@@ -0,0 +1,393 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.service.internal;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.validation.ConstraintViolation;
+import jakarta.validation.ConstraintViolationException;
+import jakarta.validation.Validator;
+import com.mongodb.ErrorCategory;
+import com.mongodb.bulk.BulkWriteError;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.cbioportal.session_service.domain.Session;
+import org.cbioportal.session_service.domain.SessionRepository;
+import org.cbioportal.session_service.domain.SessionType;
+import org.cbioportal.session_service.domain.internal.SessionMetrics;
+import org.cbioportal.session_service.service.exception.SessionNotFoundException;
+import org.cbioportal.session_service.service.exception.SessionPreconditionFailedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.context.annotation.Profile;
+import org.springframework.core.env.Environment;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Write-behind of session updates for the types configured with
+ * session.write-behind.window.{type}, e.g. settings, which clients update
+ * on almost every interaction.
+ *
+ * An update only replaces the pending data of the session in memory. The
+ * pending sessions of a type are written with one bulk write per source
+ * every window, so a session is written at most once per window however
+ * often it is updated. Reads by id see the pending data; lists and queries
+ * flush the pending sessions of their source and type first. Everything
+ * pending is flushed on shutdown.
+ *
+ * Sessions that could not be written, e.g. while mongo is down, are pending
+ * again unless they were updated since, and the scheduled flushes of their
+ * type back off until a write succeeds. Only updates that can never be
+ * written, like one that gives a session the data of another session, are
+ * dropped. Both are counted by session.write-behind.failures.
+ *
+ * Pending updates are only visible to this instance, so only enable this
+ * if all updates of a session go through the same instance.
+ */
+@Component
+@Profile("!reactive")
+public class SessionWriteBehind {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SessionWriteBehind.class);
+
+    private static final Duration MAX_BACKOFF = Duration.ofMinutes(5);
+
+    @Autowired
+    private Environment environment;
+
+    @Autowired
+    private SessionRepository sessionRepository;
+
+    @Autowired
+    private SessionQueryCache sessionQueryCache;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private Validator validator;
+
+    @Autowired
+    private SessionMetrics sessionMetrics;
+
+    private final Map<SessionType, Duration> windows = new EnumMap<SessionType, Duration>(SessionType.class);
+
+    // pending and flushing sessions of each type by source/id; a session is
+    // moved to flushing while it is written so that reads still find it
+    private final Map<SessionType, Map<String, Session>> pending =
+        new EnumMap<SessionType, Map<String, Session>>(SessionType.class);
+    private final Map<SessionType, Map<String, Session>> flushing =
+        new EnumMap<SessionType, Map<String, Session>>(SessionType.class);
+
+    // flushes of a type are serialized so that an older write cannot land
+    // after a newer one; not a monitor, since flushes block on mongo
+    private final Map<SessionType, ReentrantLock> flushLocks =
+        new EnumMap<SessionType, ReentrantLock>(SessionType.class);
+
+    // consecutive failed flushes of each type, and until when (System.nanoTime)
+    // the scheduled flushes of the type are skipped because of them
+    private final Map<SessionType, AtomicInteger> failures =
+        new EnumMap<SessionType, AtomicInteger>(SessionType.class);
+    private final Map<SessionType, AtomicLong> retryAfter =
+        new EnumMap<SessionType, AtomicLong>(SessionType.class);
+
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    public void init() {
+        for (SessionType type : SessionType.values()) {
+            String window = environment.getProperty("session.write-behind.window." + type);
+            if (window != null) {
+                windows.put(type, DurationStyle.detectAndParse(window));
+                pending.put(type, new ConcurrentHashMap<String, Session>());
+                flushing.put(type, new ConcurrentHashMap<String, Session>());
+                flushLocks.put(type, new ReentrantLock());
+                failures.put(type, new AtomicInteger());
+                retryAfter.put(type, new AtomicLong(System.nanoTime()));
+            }
+        }
+        if (windows.isEmpty()) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "session-write-behind");
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (Map.Entry<SessionType, Duration> window : windows.entrySet()) {
+            long millis = window.getValue().toMillis();
+            scheduler.scheduleWithFixedDelay(() -> {
+                if (System.nanoTime() - retryAfter.get(window.getKey()).get() >= 0) {
+                    flush(null, window.getKey());
+                }
+            }, millis, millis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.shutdown();
+        scheduler.awaitTermination(30, TimeUnit.SECONDS);
+        for (SessionType type : windows.keySet()) {
+            flush(null, type);
+            if (!pending.get(type).isEmpty()) {
+                LOG.error("Lost {} pending {} sessions that could not be written on shutdown",
+                    pending.get(type).size(), type);
+            }
+        }
+    }
+
+    public boolean isEnabled(SessionType type) {
+        return windows.containsKey(type);
+    }
+
+    /**
+     * Makes the session, which holds the new data, pending. If checksums is
+     * not null, only if the current checksum, pending or stored, is one of
+     * them. The stored checksum is only read if nothing is pending.
+     */
+    public void update(Session session, List<String> checksums, Supplier<String> storedChecksum) {
+        Set<ConstraintViolation<Session>> violations = validator.validate(session);
+        if (!violations.isEmpty()) {
+            throw new ConstraintViolationException(violations);
+        }
+        Map<String, Session> typePending = pending.get(session.getType());
+        Map<String, Session> typeFlushing = flushing.get(session.getType());
+        String key = key(session.getSource(), session.getId());
+        boolean updated = false;
+        while (!updated) {
+            boolean inMemory = typePending.containsKey(key) || typeFlushing.containsKey(key);
+            String stored = inMemory ? null : storedChecksum.get();
+            boolean[] retry = new boolean[1];
+            typePending.compute(key, (k, current) -> {
+                if (current == null) {
+                    current = typeFlushing.get(key);
+                }
+                if (current == null && inMemory) {
+                    // written in the meantime, read its stored checksum
+                    retry[0] = true;
+                    return null;
+                }
+                String checksum = current != null ? current.getChecksum() : stored;
+                if (checksum == null) {
+                    throw new SessionNotFoundException(session.getId());
+                }
+                if (checksums != null && !checksums.contains(checksum)) {
+                    throw new SessionPreconditionFailedException(session.getId());
+                }
+                return session;
+            });
+            updated = !retry[0];
+        }
+    }
+
+    /**
+     * The pending session, or null if there is none.
+     */
+    public Session get(String source, SessionType type, String id) {
+        if (!isEnabled(type)) {
+            return null;
+        }
+        String key = key(source, id);
+        Session session = pending.get(type).get(key);
+        return session != null ? session : flushing.get(type).get(key);
+    }
+
+    /**
+     * The pending session as it will be stored, or null if there is none.
+     */
+    public RawBsonDocument getRaw(String source, SessionType type, String id) {
+        Session session = get(source, type, id);
+        if (session == null) {
+            return null;
+        }
+        Document document = new Document();
+        mongoTemplate.getConverter().write(session, document);
+        return new RawBsonDocument(document, new DocumentCodec());
+    }
+
+    /**
+     * Drops the pending update of a session that is deleted, and the one
+     * being written, so that a failed flush does not make it pending again.
+     */
+    public void remove(String source, SessionType type, String id) {
+        if (isEnabled(type)) {
+            // flushing first, a flush only requeues sessions still in flushing
+            flushing.get(type).remove(key(source, id));
+            pending.get(type).remove(key(source, id));
+        }
+    }
+
+    /**
+     * Writes the pending sessions of the source, or of all sources if source
+     * is null, and type.
+     */
+    public void flush(String source, SessionType type) {
+        if (!isEnabled(type) || pending.get(type).isEmpty()) {
+            return;
+        }
+        Map<String, Session> typePending = pending.get(type);
+        Map<String, Session> typeFlushing = flushing.get(type);
+        ReentrantLock lock = flushLocks.get(type);
+        lock.lock();
+        try {
+            Map<String, List<Session>> sessionsBySource = new LinkedHashMap<String, List<Session>>();
+            Map<String, Session> flushed = new LinkedHashMap<String, Session>();
+            for (String key : typePending.keySet()) {
+                if (source != null && !key.startsWith(source + "/")) {
+                    continue;
+                }
+                Session session = typePending.get(key);
+                if (session == null) {
+                    continue;
+                }
+                typeFlushing.put(key, session);
+                // a newer update stays pending for the next flush
+                typePending.remove(key, session);
+                flushed.put(key, session);
+                sessionsBySource.computeIfAbsent(session.getSource(), s -> new ArrayList<Session>()).add(session);
+            }
+            boolean failed = false;
+            for (Map.Entry<String, List<Session>> sessions : sessionsBySource.entrySet()) {
+                try {
+                    sessionRepository.updateSessionsData(sessions.getKey(), type, sessions.getValue());
+                } catch (BulkOperationException e) {
+                    // the bulk write is unordered, so only the sessions with errors were not written
+                    List<Session> dropped = new ArrayList<Session>();
+                    List<Session> failedSessions = new ArrayList<Session>();
+                    for (BulkWriteError error : e.getErrors()) {
+                        Session session = sessions.getValue().get(error.getIndex());
+                        // an update to the data of another session, which violates the unique index
+                        if (ErrorCategory.fromErrorCode(error.getCode()) == ErrorCategory.DUPLICATE_KEY) {
+                            dropped.add(session);
+                        } else {
+                            failedSessions.add(session);
+                        }
+                    }
+                    if (e.getErrors().isEmpty()) {
+                        // e.g. a write concern error, which does not tell which sessions were written
+                        failedSessions = sessions.getValue();
+                    }
+                    drop(sessions.getKey(), type, dropped, e);
+                    failed |= retry(sessions.getKey(), type, failedSessions, e);
+                } catch (ConstraintViolationException e) {
+                    drop(sessions.getKey(), type, sessions.getValue(), e);
+                } catch (RuntimeException e) {
+                    // e.g. mongo is unavailable
+                    failed |= retry(sessions.getKey(), type, sessions.getValue(), e);
+                }
+                sessionQueryCache.invalidate(sessions.getKey(), type);
+            }
+            backOff(type, failed);
+            flushed.forEach(typeFlushing::remove);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Makes the sessions that could not be written pending again, unless
+     * they were updated or deleted since. Returns whether there were any.
+     */
+    private boolean retry(String source, SessionType type, List<Session> sessions, RuntimeException e) {
+        if (sessions.isEmpty()) {
+            return false;
+        }
+        Map<String, Session> typeFlushing = flushing.get(type);
+        for (Session session : sessions) {
+            pending.get(type).compute(key(source, session.getId()),
+                (key, current) -> current == null && typeFlushing.get(key) == session ? session : current);
+        }
+        LOG.warn("Could not write {} pending {} sessions of '{}', will retry: {}", sessions.size(), type, source,
+            e.getMessage());
+        sessionMetrics.recordWriteBehindFailures("retried", source, type, sessions.size());
+        return true;
+    }
+
+    private void drop(String source, SessionType type, Collection<Session> sessions, RuntimeException e) {
+        if (sessions.isEmpty()) {
+            return;
+        }
+        Set<String> ids = new HashSet<String>();
+        sessions.forEach(session -> ids.add(session.getId()));
+        LOG.error("Dropped updates of {} {} sessions of '{}' that cannot be written, ids {}: {}", ids.size(), type,
+            source, ids, e.getMessage());
+        sessionMetrics.recordWriteBehindFailures("dropped", source, type, sessions.size());
+    }
+
+    /**
+     * Doubles the time the scheduled flushes of the type wait after each
+     * failed flush, from one window up to MAX_BACKOFF.
+     */
+    private void backOff(SessionType type, boolean failed) {
+        if (!failed) {
+            failures.get(type).set(0);
+            retryAfter.get(type).set(System.nanoTime());
+            return;
+        }
+        int count = failures.get(type).incrementAndGet();
+        long delay = Math.min(windows.get(type).toNanos() << Math.min(count - 1, 10), MAX_BACKOFF.toNanos());
+        retryAfter.get(type).set(System.nanoTime() + delay);
+    }
+
+    private String key(String source, String id) {
+        // neither source nor id can contain '/' since both are path segments
+        return source + "/" + id;
+    }
+}
@@ -1,7 +1,12 @@
 package org.cbioportal.session_service.web;
 
+import org.cbioportal.session_service.domain.internal.SessionQueryAdvisor;
+import org.cbioportal.session_service.service.internal.SessionQueryCache;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.bind.annotation.*;
 
+import java.util.Map;
+
 /**
  * @author Hongxin Zhang
  */
@@ -9,6 +14,15 @@ import org.springframework.web.bind.annotation.*;
 @RequestMapping(value = "/info")
 public class InfoController {
 
+    @Autowired
+    private SessionJsonCache sessionJsonCache;
+
+    @Autowired
+    private SessionQueryAdvisor sessionQueryAdvisor;
+
+    @Autowired
+    private SessionQueryCache sessionQueryCache;
+
     public String getVersion() {
         return getClass().getPackage().getImplementationVersion();
     }
@@ -17,4 +31,19 @@ public class InfoController {
     public String getInfo() {
         return this.getVersion();
     }
+
+    @RequestMapping(method = RequestMethod.GET, value = "/cache")
+    public Map<String, Object> getCacheStats() {
+        return sessionJsonCache.getStats();
+    }
+
+    @RequestMapping(method = RequestMethod.GET, value = "/query-cache")
+    public Map<String, Object> getQueryCacheStats() {
+        return sessionQueryCache.getStats();
+    }
+
+    @RequestMapping(method = RequestMethod.GET, value = "/indexes")
+    public Map<String, Object> getIndexes() {
+        return sessionQueryAdvisor.getReport();
+    }
 }
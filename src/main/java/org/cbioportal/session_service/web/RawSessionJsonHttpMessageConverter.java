@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.web;
+
+import org.bson.RawBsonDocument;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Writes a RawSessionJsonHttpMessageConverter.Sessions response body as a
+ * JSON array with RawSessionJsonWriter, straight to the response stream.
+ */
+@Component
+public class RawSessionJsonHttpMessageConverter
+    extends AbstractHttpMessageConverter<RawSessionJsonHttpMessageConverter.Sessions> {
+
+    /**
+     * Sessions as read from the database, to be written as a JSON array.
+     */
+    public static class Sessions {
+        private final List<RawBsonDocument> sessions;
+
+        public Sessions(List<RawBsonDocument> sessions) {
+            this.sessions = sessions;
+        }
+
+        public List<RawBsonDocument> getSessions() {
+            return sessions;
+        }
+    }
+
+    private final RawSessionJsonWriter rawSessionJsonWriter;
+
+    public RawSessionJsonHttpMessageConverter(RawSessionJsonWriter rawSessionJsonWriter) {
+        super(MediaType.APPLICATION_JSON);
+        this.rawSessionJsonWriter = rawSessionJsonWriter;
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return Sessions.class.isAssignableFrom(clazz);
+    }
+
+    @Override
+    protected boolean canRead(MediaType mediaType) {
+        return false;
+    }
+
+    @Override
+    protected Sessions readInternal(Class<? extends Sessions> clazz, HttpInputMessage inputMessage) {
+        throw new HttpMessageNotReadableException("Sessions can only be written", inputMessage);
+    }
+
+    @Override
+    protected void writeInternal(Sessions sessions, HttpOutputMessage outputMessage) throws IOException {
+        rawSessionJsonWriter.writeSessions(sessions.getSessions(), outputMessage.getBody());
+    }
+}
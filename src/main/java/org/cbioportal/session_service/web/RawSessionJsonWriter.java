@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.web;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonValue;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonTypeClassMap;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.List;
+
+/**
+ * Writes sessions read as RawBsonDocument in the JSON shape of
+ * Session.Views.Full, walking the BSON with a reader and emitting JSON
+ * tokens as it goes, without building a Document or a Session.
+ *
+ * The output is the same as Jackson's for a Session: common JSON types
+ * are written directly, anything else (e.g. dates) is decoded like
+ * Document would and handed to the ObjectMapper.
+ */
+@Component
+public class RawSessionJsonWriter {
+
+    private static final CodecRegistry CODEC_REGISTRY = Bson.DEFAULT_CODEC_REGISTRY;
+    private static final BsonTypeClassMap BSON_TYPE_CLASS_MAP = new BsonTypeClassMap();
+    private static final DecoderContext DECODER_CONTEXT = DecoderContext.builder().build();
+
+    private final ObjectMapper objectMapper;
+
+    public RawSessionJsonWriter(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+    }
+
+    public byte[] toJson(RawBsonDocument session) {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(session.getByteBuffer().remaining());
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(outputStream)) {
+            writeSession(session, generator);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return outputStream.toByteArray();
+    }
+
+    public void writeSessions(List<RawBsonDocument> sessions, OutputStream outputStream) throws IOException {
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(outputStream)) {
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            generator.writeStartArray();
+            for (RawBsonDocument session : sessions) {
+                writeSession(session, generator);
+            }
+            generator.writeEndArray();
+        }
+    }
+
+    public static String getId(RawBsonDocument session) {
+        BsonValue id = session.get("_id");
+        return id.isObjectId() ? id.asObjectId().getValue().toHexString() : id.asString().getValue();
+    }
+
+    public static String getChecksum(RawBsonDocument session) {
+        return session.containsKey("checksum") ? session.getString("checksum").getValue() : null;
+    }
+
+    private void writeSession(RawBsonDocument session, JsonGenerator generator) throws IOException {
+        // same properties and order as Jackson writes for Session with the Full view
+        generator.writeStartObject();
+        generator.writeStringField("id", getId(session));
+        BsonValue data = session.get("data");
+        if (data != null) {
+            generator.writeFieldName("data");
+            if (data instanceof RawBsonDocument) {
+                try (BsonReader reader = new BsonBinaryReader(((RawBsonDocument) data).getByteBuffer().asNIO())) {
+                    reader.readBsonType();
+                    writeValue(reader, generator);
+                }
+            } else {
+                generator.writeObject(data);
+            }
+        }
+        if (session.containsKey("source")) {
+            generator.writeStringField("source", session.getString("source").getValue());
+        }
+        if (session.containsKey("type")) {
+            generator.writeStringField("type", session.getString("type").getValue());
+        }
+        generator.writeEndObject();
+    }
+
+    private void writeValue(BsonReader reader, JsonGenerator generator) throws IOException {
+        switch (reader.getCurrentBsonType()) {
+            case DOCUMENT:
+                reader.readStartDocument();
+                generator.writeStartObject();
+                while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                    generator.writeFieldName(reader.readName());
+                    writeValue(reader, generator);
+                }
+                reader.readEndDocument();
+                generator.writeEndObject();
+                break;
+            case ARRAY:
+                reader.readStartArray();
+                generator.writeStartArray();
+                while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                    writeValue(reader, generator);
+                }
+                reader.readEndArray();
+                generator.writeEndArray();
+                break;
+            case STRING:
+                generator.writeString(reader.readString());
+                break;
+            case INT32:
+                generator.writeNumber(reader.readInt32());
+                break;
+            case INT64:
+                generator.writeNumber(reader.readInt64());
+                break;
+            case DOUBLE:
+                generator.writeNumber(reader.readDouble());
+                break;
+            case BOOLEAN:
+                generator.writeBoolean(reader.readBoolean());
+                break;
+            case NULL:
+                reader.readNull();
+                generator.writeNull();
+                break;
+            default:
+                // decode like DocumentCodec and serialize like any other value of a Document
+                Class<?> valueClass = BSON_TYPE_CLASS_MAP.get(reader.getCurrentBsonType());
+                generator.writeObject(CODEC_REGISTRY.get(valueClass).decode(reader, DECODER_CONTEXT));
+        }
+    }
+}
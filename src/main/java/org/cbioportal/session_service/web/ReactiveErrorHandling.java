@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.web;
+
+import org.cbioportal.session_service.service.exception.*;
+import org.springframework.beans.TypeMismatchException;
+import org.springframework.boot.web.error.ErrorAttributeOptions;
+import org.springframework.boot.web.reactive.error.DefaultErrorAttributes;
+import org.springframework.boot.web.reactive.error.ErrorAttributes;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+import org.springframework.core.MethodParameter;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.method.annotation.MethodArgumentTypeMismatchException;
+import org.springframework.web.reactive.function.server.ServerRequest;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.ServerWebInputException;
+import org.springframework.web.server.WebFilter;
+
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Renders the errors of ReactiveSessionServiceController like those of
+ * SessionServiceController: the same HTTP statuses, and the same exception
+ * types for invalid session types and missing or unreadable request bodies.
+ */
+@Configuration
+@Profile("reactive")
+public class ReactiveErrorHandling {
+
+    private static final Map<Class<? extends Throwable>, HttpStatus> STATUSES =
+        new LinkedHashMap<Class<? extends Throwable>, HttpStatus>();
+
+    static {
+        STATUSES.put(SessionInvalidException.class, HttpStatus.BAD_REQUEST);
+        STATUSES.put(SessionQueryInvalidException.class, HttpStatus.BAD_REQUEST);
+        STATUSES.put(SessionNotFoundException.class, HttpStatus.NOT_FOUND);
+        STATUSES.put(SessionPreconditionFailedException.class, HttpStatus.PRECONDITION_FAILED);
+        STATUSES.put(MethodArgumentTypeMismatchException.class, HttpStatus.BAD_REQUEST);
+        STATUSES.put(HttpMessageNotReadableException.class, HttpStatus.BAD_REQUEST);
+    }
+
+    @Bean
+    public ErrorAttributes errorAttributes() {
+        return new DefaultErrorAttributes() {
+            @Override
+            public Map<String, Object> getErrorAttributes(ServerRequest request, ErrorAttributeOptions options) {
+                Map<String, Object> attributes = super.getErrorAttributes(request, options);
+                HttpStatus status = STATUSES.get(getError(request).getClass());
+                if (status != null) {
+                    attributes.put("status", status.value());
+                    attributes.put("error", status.getReasonPhrase());
+                }
+                return attributes;
+            }
+        };
+    }
+
+    /**
+     * WebFlux reports request binding failures as ServerWebInputException,
+     * Spring MVC with the more specific exceptions mapped here.
+     */
+    @Bean
+    public WebFilter inputExceptionWebFilter() {
+        return (exchange, chain) -> chain.filter(exchange)
+            .onErrorMap(ServerWebInputException.class, e -> toServletException(exchange, e));
+    }
+
+    private Throwable toServletException(ServerWebExchange exchange, ServerWebInputException e) {
+        MethodParameter parameter = e.getMethodParameter();
+        if (parameter == null) {
+            return e;
+        }
+        if (e.getCause() instanceof TypeMismatchException) {
+            TypeMismatchException cause = (TypeMismatchException) e.getCause();
+            return new MethodArgumentTypeMismatchException(cause.getValue(), cause.getRequiredType(),
+                parameter.getParameterName(), parameter, cause.getCause());
+        }
+        if (parameter.hasParameterAnnotation(RequestBody.class)) {
+            HttpInputMessage inputMessage = new HttpInputMessage() {
+                @Override
+                public InputStream getBody() {
+                    return InputStream.nullInputStream();
+                }
+
+                @Override
+                public HttpHeaders getHeaders() {
+                    return exchange.getRequest().getHeaders();
+                }
+            };
+            return new HttpMessageNotReadableException(e.getReason(), e, inputMessage);
+        }
+        return e;
+    }
+}
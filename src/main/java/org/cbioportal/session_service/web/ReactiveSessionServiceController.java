@@ -0,0 +1,307 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.web;
+
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.cbioportal.session_service.domain.*;
+import org.cbioportal.session_service.domain.internal.SessionDataCompression;
+import org.cbioportal.session_service.service.ReactiveSessionService;
+
+import org.springframework.web.bind.annotation.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.config.web.server.ServerHttpSecurity;
+import org.springframework.security.web.server.SecurityWebFilterChain;
+
+import com.fasterxml.jackson.annotation.JsonView;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.cbioportal.session_service.web.SessionWebSupport.*;
+
+/**
+ * The REST API of SessionServiceController on Spring WebFlux, used when the
+ * "reactive" profile is active. Errors are rendered by ReactiveErrorHandling
+ * with the same statuses as the servlet controller.
+ */
+@Profile("reactive")
+@RestController
+@RequestMapping(value = "/api/sessions/")
+public class ReactiveSessionServiceController {
+
+    @Autowired
+    private ReactiveSessionService sessionService;
+
+    @Autowired
+    private SessionDataCompression sessionDataCompression;
+
+    @RequestMapping(method = RequestMethod.POST, value={"/{source}/{type}", "/{source}/{type}/"})
+    @JsonView(Session.Views.IdOnly.class)
+    public Mono<Session> addSession(@PathVariable String source,
+        @PathVariable SessionType type,
+        @RequestBody String data) {
+        return sessionService.addSession(source, type, data);
+    }
+
+    @RequestMapping(method = RequestMethod.POST, value={"/{source}/{type}/batch", "/{source}/{type}/batch/"})
+    @JsonView(Session.Views.IdOnly.class)
+    public Mono<List<Session>> addSessions(@PathVariable String source,
+        @PathVariable SessionType type,
+        @RequestBody String data) {
+        return sessionService.addSessions(source, type, data);
+    }
+
+    @RequestMapping(method = RequestMethod.GET, value={"/{source}/{type}", "/{source}/{type}/"})
+    @JsonView(Session.Views.Full.class)
+    public Mono<ResponseEntity<List<Session>>> getSessions(@PathVariable String source,
+        @PathVariable SessionType type,
+        @RequestParam(name="after", required=false) String after,
+        @RequestParam(name="limit", defaultValue="0") int limit,
+        @RequestHeader(name=HttpHeaders.IF_NONE_MATCH, required=false) String ifNoneMatch) {
+        Mono<ResponseEntity<List<Session>>> response = sessionService.getSessions(source, type, after, limit)
+            .collectList()
+            .map(sessions -> pageResponse(sessions, null, limit));
+        if (ifNoneMatch == null) {
+            return response;
+        }
+        return sessionService.getSessionChecksums(source, type, after, limit)
+            .collectList()
+            .flatMap(sessions -> notModifiedOr(ifNoneMatch, buildListETag(sessions, null), response));
+    }
+
+    @RequestMapping(method = RequestMethod.GET, value={"/{source}/{type}/query", "/{source}/{type}/query/"})
+    @JsonView(Session.Views.Full.class)
+    public Mono<ResponseEntity<List<Session>>> getSessionsByQuery(@PathVariable String source,
+        @PathVariable SessionType type,
+        @RequestParam(name="field") String field,
+        @RequestParam(name="value") String value,
+        @RequestParam(name="fields", required=false) List<String> fields,
+        @RequestParam(name="after", required=false) String after,
+        @RequestParam(name="limit", defaultValue="0") int limit,
+        @RequestHeader(name=HttpHeaders.IF_NONE_MATCH, required=false) String ifNoneMatch) {
+        String query = buildFieldQuery(field, value);
+        Mono<ResponseEntity<List<Session>>> response =
+            sessionService.getSessionsByQuery(source, type, query, fields, after, limit)
+                .collectList()
+                .map(sessions -> pageResponse(sessions, fields, limit));
+        if (ifNoneMatch == null) {
+            return response;
+        }
+        return sessionService.getSessionChecksumsByQuery(source, type, query, after, limit)
+            .collectList()
+            .flatMap(sessions -> notModifiedOr(ifNoneMatch, buildListETag(sessions, fields), response));
+    }
+
+    @RequestMapping(method = RequestMethod.POST, value = {"/{source}/{type}/query/fetch", "/{source}/{type}/query/fetch/"})
+    @JsonView(Session.Views.Full.class)
+    public Mono<ResponseEntity<List<Session>>> fetchSessionsByQuery(@PathVariable String source,
+        @PathVariable SessionType type,
+        @RequestBody String query,
+        @RequestParam(name="fields", required=false) List<String> fields,
+        @RequestParam(name="after", required=false) String after,
+        @RequestParam(name="limit", defaultValue="0") int limit) {
+        return sessionService.getSessionsByQuery(source, type, query, fields, after, limit)
+            .collectList()
+            .map(sessions -> pageResponse(sessions, fields, limit));
+    }
+
+    // streaming variants, selected with "Accept: application/x-ndjson"
+
+    @RequestMapping(method = RequestMethod.GET, value={"/{source}/{type}", "/{source}/{type}/"},
+        produces = APPLICATION_NDJSON_VALUE)
+    @JsonView(Session.Views.Full.class)
+    public Flux<Session> streamSessions(@PathVariable String source,
+        @PathVariable SessionType type,
+        @RequestParam(name="after", required=false) String after,
+        @RequestParam(name="limit", defaultValue="0") int limit) {
+        return sessionService.getSessions(source, type, after, limit);
+    }
+
+    @RequestMapping(method = RequestMethod.GET, value={"/{source}/{type}/query", "/{source}/{type}/query/"},
+        produces = APPLICATION_NDJSON_VALUE)
+    @JsonView(Session.Views.Full.class)
+    public Flux<Session> streamSessionsByQuery(@PathVariable String source,
+        @PathVariable SessionType type,
+        @RequestParam(name="field") String field,
+        @RequestParam(name="value") String value,
+        @RequestParam(name="fields", required=false) List<String> fields,
+        @RequestParam(name="after", required=false) String after,
+        @RequestParam(name="limit", defaultValue="0") int limit) {
+        return sessionService.getSessionsByQuery(source, type, buildFieldQuery(field, value), fields, after, limit);
+    }
+
+    @RequestMapping(method = RequestMethod.POST, value = {"/{source}/{type}/query/fetch", "/{source}/{type}/query/fetch/"},
+        produces = APPLICATION_NDJSON_VALUE)
+    @JsonView(Session.Views.Full.class)
+    public Flux<Session> streamFetchSessionsByQuery(@PathVariable String source,
+        @PathVariable SessionType type,
+        @RequestBody String query,
+        @RequestParam(name="fields", required=false) List<String> fields,
+        @RequestParam(name="after", required=false) String after,
+        @RequestParam(name="limit", defaultValue="0") int limit) {
+        return sessionService.getSessionsByQuery(source, type, query, fields, after, limit);
+    }
+
+    @RequestMapping(value = {"/{source}/{type}/{id}", "/{source}/{type}/{id}/"}, method = RequestMethod.GET)
+    @JsonView(Session.Views.Full.class)
+    public Mono<ResponseEntity<Object>> getSession(@PathVariable String source,
+        @PathVariable SessionType type,
+        @PathVariable String id,
+        @RequestHeader(name=HttpHeaders.IF_NONE_MATCH, required=false) String ifNoneMatch,
+        @RequestHeader(name=HttpHeaders.ACCEPT_ENCODING, required=false) String acceptEncoding) {
+        // see SessionServiceController.getSession
+        boolean gzip = acceptsGzip(acceptEncoding) && sessionDataCompression.isEnabled(type);
+        Mono<ResponseEntity<Object>> response = sessionService.getSession(source, type, id)
+            .map(session -> ResponseEntity.ok()
+                .eTag(buildETag(session.getChecksum()))
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(session));
+        if (gzip) {
+            response = sessionService.getCompressedSession(source, type, id)
+                .filter(compressed -> SessionDataCompression.GZIP.equals(
+                    compressed.getString(SessionDataCompression.COMPRESSION_FIELD)))
+                .map(compressed -> compressedResponse(compressed))
+                .switchIfEmpty(response);
+        }
+        if (ifNoneMatch != null) {
+            // revalidate against the checksum alone, the session data is not read
+            Mono<ResponseEntity<Object>> fullResponse = response;
+            response = sessionService.getSessionChecksum(source, type, id).flatMap(checksum -> {
+                String eTag = buildETag(checksum);
+                if (eTagMatches(ifNoneMatch, eTag)) {
+                    return Mono.just(ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                        .eTag(gzip ? "W/" + eTag : eTag).build());
+                }
+                return fullResponse;
+            });
+        }
+        return response;
+    }
+
+    /**
+     * Returns the sessions for a list of {"type": ..., "id": ...} keys as
+     * {"sessions": [...], "missing": [...]}, see SessionServiceController.fetchSessions.
+     */
+    @RequestMapping(method = RequestMethod.POST, value = {"/{source}/fetch", "/{source}/fetch/"})
+    @JsonView(Session.Views.Full.class)
+    public Mono<Map<String, List<?>>> fetchSessions(@PathVariable String source,
+        @RequestBody List<SessionKey> keys) {
+        return sessionService.getSessions(source, keys).map(sessions -> {
+            Set<SessionKey> found = new HashSet<SessionKey>();
+            for (Session session : sessions) {
+                found.add(new SessionKey(session.getType(), session.getId()));
+            }
+            List<SessionKey> missing = new ArrayList<SessionKey>();
+            for (SessionKey key : keys) {
+                if (!found.contains(key)) {
+                    missing.add(key);
+                }
+            }
+            Map<String, List<?>> response = new LinkedHashMap<String, List<?>>();
+            response.put("sessions", sessions);
+            response.put("missing", missing);
+            return response;
+        });
+    }
+
+    @RequestMapping(value = {"/{source}/{type}/{id}", "/{source}/{type}/{id}/"}, method = RequestMethod.PUT)
+    public Mono<ResponseEntity<Void>> updateSession(@PathVariable String source,
+        @PathVariable SessionType type,
+        @PathVariable String id,
+        @RequestBody String data,
+        @RequestHeader(name=HttpHeaders.IF_MATCH, required=false) String ifMatch) {
+        return sessionService.updateSession(source, type, id, data, ifMatchChecksums(ifMatch))
+            .map(checksum -> ResponseEntity.ok().eTag(buildETag(checksum)).<Void>build());
+    }
+
+    @RequestMapping(value = {"/{source}/{type}/{id}", "/{source}/{type}/{id}/"}, method = RequestMethod.PATCH)
+    public Mono<ResponseEntity<Void>> patchSession(@PathVariable String source,
+        @PathVariable SessionType type,
+        @PathVariable String id,
+        @RequestBody String patch,
+        @RequestHeader(name=HttpHeaders.IF_MATCH, required=false) String ifMatch) {
+        return sessionService.patchSession(source, type, id, patch, ifMatchChecksums(ifMatch))
+            .map(checksum -> ResponseEntity.ok().eTag(buildETag(checksum)).<Void>build());
+    }
+
+    @RequestMapping(value = {"/{source}/{type}/{id}", "/{source}/{type}/{id}/"}, method = RequestMethod.DELETE)
+    public Mono<Void> deleteSession(@PathVariable String source,
+        @PathVariable SessionType type,
+        @PathVariable String id) {
+        return sessionService.deleteSession(source, type, id);
+    }
+
+    private <T> Mono<ResponseEntity<T>> notModifiedOr(String ifNoneMatch, String eTag,
+        Mono<ResponseEntity<T>> response) {
+        if (eTagMatches(ifNoneMatch, eTag)) {
+            return Mono.just(ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(eTag).<T>build());
+        }
+        return response;
+    }
+
+    private ResponseEntity<Object> compressedResponse(Document compressed) {
+        // the ETag is weak since it is shared with the uncompressed response
+        String eTag = buildETag(compressed.getString("checksum"));
+        return ResponseEntity.ok()
+            .eTag("W/" + eTag)
+            .header(HttpHeaders.CONTENT_ENCODING, "gzip")
+            .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING)
+            .contentType(MediaType.APPLICATION_JSON)
+            .body(compressed.get(SessionDataCompression.COMPRESSED_DATA_FIELD, Binary.class).getData());
+    }
+
+    @Bean
+    public SecurityWebFilterChain securityWebFilterChain(ServerHttpSecurity http) {
+        return http
+            .csrf(csrf -> csrf.disable())
+            .authorizeExchange(exchanges -> exchanges
+                .pathMatchers("/api/sessions/**").permitAll()
+                .anyExchange().permitAll()
+            )
+            .build();
+    }
+}
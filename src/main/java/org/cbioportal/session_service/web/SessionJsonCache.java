@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.web;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import jakarta.annotation.PostConstruct;
+import org.cbioportal.session_service.domain.SessionType;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+/**
+ * Read-through cache of the serialized JSON returned by
+ * GET /api/sessions/{source}/{type}/{id}.
+ *
+ * Entries are bounded by their size in bytes and evicted with Caffeine's
+ * W-TinyLFU policy. Writes through the controller invalidate the entry
+ * for the session they touch. The session checksum is kept with the JSON
+ * so it can be used as ETag.
+ */
+@Component
+public class SessionJsonCache {
+
+    @Value("${session.cache.enabled:false}")
+    private boolean enabled;
+
+    @Value("${session.cache.max-bytes:67108864}")
+    private long maxBytes;
+
+    private AsyncCache<String, Entry> cache;
+
+    public static class Entry {
+        private final String checksum;
+        private final byte[] json;
+
+        public Entry(String checksum, byte[] json) {
+            this.checksum = checksum;
+            this.json = json;
+        }
+
+        public String getChecksum() {
+            return checksum;
+        }
+
+        public byte[] getJson() {
+            return json;
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        if (enabled) {
+            cache = Caffeine.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((String key, Entry entry) -> key.length() + entry.getChecksum().length() + entry.getJson().length)
+                .recordStats()
+                .buildAsync();
+        }
+    }
+
+    public boolean isEnabled() {
+        return cache != null;
+    }
+
+    public Entry getIfPresent(String source, SessionType type, String id) {
+        if (cache == null) {
+            return null;
+        }
+        // a session that is still being loaded is not present yet
+        CompletableFuture<Entry> entry = cache.getIfPresent(key(source, type, id));
+        return entry != null && entry.isDone() && !entry.isCompletedExceptionally() ? entry.join() : null;
+    }
+
+    public Entry get(String source, SessionType type, String id, Supplier<Entry> loader) {
+        if (cache == null) {
+            return loader.get();
+        }
+        // The loader runs on the calling thread outside of the cache's locks:
+        // a load reads from mongo, and blocking while holding a monitor would
+        // pin the carrier of a virtual thread. Concurrent reads of the same
+        // session wait for the first load. An invalidate racing with a load
+        // removes it, so a (possibly stale) result is not kept.
+        CompletableFuture<Entry> loading = new CompletableFuture<Entry>();
+        CompletableFuture<Entry> entry = cache.get(key(source, type, id), (key, executor) -> loading);
+        if (entry == loading) {
+            try {
+                loading.complete(loader.get());
+            } catch (RuntimeException e) {
+                // failed loads are removed from the cache
+                loading.completeExceptionally(e);
+                throw e;
+            }
+        }
+        try {
+            return entry.join();
+        } catch (CompletionException e) {
+            // e.g. SessionNotFoundException thrown by the load of another request
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+    }
+
+    public void invalidate(String source, SessionType type, String id) {
+        if (cache != null) {
+            cache.synchronous().invalidate(key(source, type, id));
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        stats.put("enabled", isEnabled());
+        if (cache != null) {
+            CacheStats cacheStats = cache.synchronous().stats();
+            stats.put("maxBytes", maxBytes);
+            stats.put("size", cache.synchronous().estimatedSize());
+            stats.put("hitCount", cacheStats.hitCount());
+            stats.put("missCount", cacheStats.missCount());
+            stats.put("hitRate", cacheStats.hitRate());
+            stats.put("evictionCount", cacheStats.evictionCount());
+            stats.put("evictionWeight", cacheStats.evictionWeight());
+        }
+        return stats;
+    }
+
+    private String key(String source, SessionType type, String id) {
+        // neither source, type nor id can contain '/' since all three are path segments
+        return source + "/" + type + "/" + id;
+    }
+}
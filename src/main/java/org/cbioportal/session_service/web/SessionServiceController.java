@@ -32,40 +32,79 @@
 
 package org.cbioportal.session_service.web;
 
+import org.bson.RawBsonDocument;
 import org.cbioportal.session_service.domain.*;
+import org.cbioportal.session_service.domain.internal.SessionDataCompression;
 import org.cbioportal.session_service.service.exception.*;
 import org.cbioportal.session_service.service.SessionService;
 
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.method.annotation.MethodArgumentTypeMismatchException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Profile;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.web.SecurityFilterChain;
+import org.springframework.util.DigestUtils;
 
 import com.fasterxml.jackson.annotation.JsonView;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 
 import jakarta.servlet.http.HttpServletResponse;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import static org.cbioportal.session_service.web.SessionWebSupport.*;
+
 /**
  * @author Manda Wilson 
  */
+@Profile("!reactive")
 @RestController // shorthand for @Controller, @ResponseBody
 @RequestMapping(value = "/api/sessions/")
 public class SessionServiceController {
+
     @Value("${security.basic.enabled:false}")
     private boolean securityEnabled;
 
     @Autowired
     private SessionService sessionService;
 
+    @Autowired
+    private SessionJsonCache sessionJsonCache;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private RawSessionJsonWriter rawSessionJsonWriter;
+
+    @Autowired
+    private SessionDataCompression sessionDataCompression;
+
+    // serve reads from the raw BSON of the stored documents instead of mapping them to sessions first
+    @Value("${session.read.raw-bson:false}")
+    private boolean rawBson;
+
     @RequestMapping(method = RequestMethod.POST, value={"/{source}/{type}", "/{source}/{type}/"})
     @JsonView(Session.Views.IdOnly.class)
     public Session addSession(@PathVariable String source, 
@@ -74,45 +113,214 @@ public class SessionServiceController {
         return sessionService.addSession(source, type, data);
     }
 
+    @RequestMapping(method = RequestMethod.POST, value={"/{source}/{type}/batch", "/{source}/{type}/batch/"})
+    @JsonView(Session.Views.IdOnly.class)
+    public List<Session> addSessions(@PathVariable String source,
+        @PathVariable SessionType type,
+        @RequestBody String data) {
+        return sessionService.addSessions(source, type, data);
+    }
+
     @RequestMapping(method = RequestMethod.GET, value={"/{source}/{type}", "/{source}/{type}/"})
     @JsonView(Session.Views.Full.class)
-    public Iterable<Session> getSessions(@PathVariable String source, 
-        @PathVariable SessionType type) {
-        return sessionService.getSessions(source, type);
+    public ResponseEntity<?> getSessions(@PathVariable String source, 
+        @PathVariable SessionType type,
+        @RequestParam(name="after", required=false) String after,
+        @RequestParam(name="limit", defaultValue="0") int limit,
+        @RequestHeader(name=HttpHeaders.IF_NONE_MATCH, required=false) String ifNoneMatch) {
+        if (ifNoneMatch != null) {
+            String eTag = buildListETag(sessionService.getSessionChecksums(source, type, after, limit), null);
+            if (eTagMatches(ifNoneMatch, eTag)) {
+                return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(eTag).build();
+            }
+        }
+        if (rawBson) {
+            return rawPageResponse(sessionService.getRawSessions(source, type, after, limit), null, limit);
+        }
+        return pageResponse(sessionService.getSessions(source, type, after, limit), null, limit);
     }
     
     @RequestMapping(method = RequestMethod.GET, value={"/{source}/{type}/query", "/{source}/{type}/query/"})
     @JsonView(Session.Views.Full.class)
-    public Iterable<Session> getSessionsByQuery(@PathVariable String source, 
+    public ResponseEntity<?> getSessionsByQuery(@PathVariable String source, 
         @PathVariable SessionType type, 
         @RequestParam(name="field") String field,
-        @RequestParam(name="value") String value) {
-        String query = "{\""+field+"\":\""+value+"\"}";
-        return sessionService.getSessionsByQuery(source, type, query);
+        @RequestParam(name="value") String value,
+        @RequestParam(name="fields", required=false) List<String> fields,
+        @RequestParam(name="after", required=false) String after,
+        @RequestParam(name="limit", defaultValue="0") int limit,
+        @RequestHeader(name=HttpHeaders.IF_NONE_MATCH, required=false) String ifNoneMatch) {
+        String query = buildFieldQuery(field, value);
+        if (ifNoneMatch != null) {
+            String eTag = buildListETag(
+                sessionService.getSessionChecksumsByQuery(source, type, query, after, limit), fields);
+            if (eTagMatches(ifNoneMatch, eTag)) {
+                return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(eTag).build();
+            }
+        }
+        if (rawBson) {
+            return rawPageResponse(
+                sessionService.getRawSessionsByQuery(source, type, query, fields, after, limit), fields, limit);
+        }
+        return pageResponse(
+            sessionService.getSessionsByQuery(source, type, query, fields, after, limit), fields, limit);
     }
 
     @RequestMapping(method = RequestMethod.POST, value = {"/{source}/{type}/query/fetch", "/{source}/{type}/query/fetch/"})
     @JsonView(Session.Views.Full.class)
-    public Iterable<Session> fetchSessionsByQuery(@PathVariable String source,
+    public ResponseEntity<?> fetchSessionsByQuery(@PathVariable String source,
             @PathVariable SessionType type,
-            @RequestBody String query) {
-        return sessionService.getSessionsByQuery(source, type, query);
+            @RequestBody String query,
+            @RequestParam(name="fields", required=false) List<String> fields,
+            @RequestParam(name="after", required=false) String after,
+            @RequestParam(name="limit", defaultValue="0") int limit) {
+        if (rawBson) {
+            return rawPageResponse(
+                sessionService.getRawSessionsByQuery(source, type, query, fields, after, limit), fields, limit);
+        }
+        return pageResponse(
+            sessionService.getSessionsByQuery(source, type, query, fields, after, limit), fields, limit);
+    }
+
+    // streaming variants of the list and query endpoints, selected with "Accept: application/x-ndjson";
+    // sessions are written one per line straight from the mongo cursor
+
+    @RequestMapping(method = RequestMethod.GET, value={"/{source}/{type}", "/{source}/{type}/"},
+        produces = APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> streamSessions(@PathVariable String source,
+        @PathVariable SessionType type,
+        @RequestParam(name="after", required=false) String after,
+        @RequestParam(name="limit", defaultValue="0") int limit) {
+        return streamResponse(sessionService.streamSessions(source, type, after, limit));
+    }
+
+    @RequestMapping(method = RequestMethod.GET, value={"/{source}/{type}/query", "/{source}/{type}/query/"},
+        produces = APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> streamSessionsByQuery(@PathVariable String source,
+        @PathVariable SessionType type,
+        @RequestParam(name="field") String field,
+        @RequestParam(name="value") String value,
+        @RequestParam(name="fields", required=false) List<String> fields,
+        @RequestParam(name="after", required=false) String after,
+        @RequestParam(name="limit", defaultValue="0") int limit) {
+        return streamResponse(
+            sessionService.streamSessionsByQuery(source, type, buildFieldQuery(field, value), fields, after, limit));
+    }
+
+    @RequestMapping(method = RequestMethod.POST, value = {"/{source}/{type}/query/fetch", "/{source}/{type}/query/fetch/"},
+        produces = APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> streamFetchSessionsByQuery(@PathVariable String source,
+        @PathVariable SessionType type,
+        @RequestBody String query,
+        @RequestParam(name="fields", required=false) List<String> fields,
+        @RequestParam(name="after", required=false) String after,
+        @RequestParam(name="limit", defaultValue="0") int limit) {
+        return streamResponse(sessionService.streamSessionsByQuery(source, type, query, fields, after, limit));
     }
 
     @RequestMapping(value = {"/{source}/{type}/{id}", "/{source}/{type}/{id}/"}, method = RequestMethod.GET)
-    @JsonView(Session.Views.Full.class)
-    public Session getSession(@PathVariable String source, 
+    public ResponseEntity<byte[]> getSession(@PathVariable String source, 
         @PathVariable SessionType type,
-        @PathVariable String id) {
-        return sessionService.getSession(source, type, id);
+        @PathVariable String id,
+        @RequestHeader(name=HttpHeaders.IF_NONE_MATCH, required=false) String ifNoneMatch,
+        @RequestHeader(name=HttpHeaders.ACCEPT_ENCODING, required=false) String acceptEncoding) {
+        SessionJsonCache.Entry cached = sessionJsonCache.getIfPresent(source, type, id);
+        // only sessions of types with compression configured can be stored compressed
+        boolean gzip = acceptsGzip(acceptEncoding) && sessionDataCompression.isEnabled(type);
+        if (ifNoneMatch != null) {
+            // revalidate against the checksum alone, the session data is not read
+            String eTag = buildETag(cached != null ? cached.getChecksum()
+                : sessionService.getSessionChecksum(source, type, id));
+            if (eTagMatches(ifNoneMatch, eTag)) {
+                if (cached != null) {
+                    sessionService.recordAccess(source, type, id);
+                }
+                // weak if the session could have been sent compressed, see below
+                return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(gzip ? "W/" + eTag : eTag).build();
+            }
+        }
+        if (gzip) {
+            // a session stored compressed is sent as stored, even if its uncompressed JSON is cached
+            RawBsonDocument compressed = sessionService.getCompressedSession(source, type, id);
+            if (compressed != null && compressed.getString(SessionDataCompression.COMPRESSION_FIELD).getValue()
+                    .equals(SessionDataCompression.GZIP)) {
+                // the ETag is weak since it is shared with the uncompressed response
+                return ResponseEntity.ok()
+                    .eTag("W/" + buildETag(RawSessionJsonWriter.getChecksum(compressed)))
+                    .header(HttpHeaders.CONTENT_ENCODING, "gzip")
+                    .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING)
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .body(compressed.getBinary(SessionDataCompression.COMPRESSED_DATA_FIELD).getData());
+            }
+        }
+        if (cached != null) {
+            sessionService.recordAccess(source, type, id);
+        }
+        SessionJsonCache.Entry entry = cached != null ? cached : sessionJsonCache.get(source, type, id, () -> {
+            if (rawBson) {
+                RawBsonDocument session = sessionService.getRawSession(source, type, id);
+                return new SessionJsonCache.Entry(
+                    RawSessionJsonWriter.getChecksum(session), rawSessionJsonWriter.toJson(session));
+            }
+            Session session = sessionService.getSession(source, type, id);
+            return new SessionJsonCache.Entry(session.getChecksum(), writeFullView(session));
+        });
+        return ResponseEntity.ok()
+            .eTag(buildETag(entry.getChecksum()))
+            .contentType(MediaType.APPLICATION_JSON)
+            .body(entry.getJson());
+    }
+
+    /**
+     * Returns the sessions for a list of {"type": ..., "id": ...} keys as
+     * {"sessions": [...], "missing": [...]}, where missing lists the keys
+     * for which no session was found.
+     */
+    @RequestMapping(method = RequestMethod.POST, value = {"/{source}/fetch", "/{source}/fetch/"})
+    @JsonView(Session.Views.Full.class)
+    public Map<String, List<?>> fetchSessions(@PathVariable String source,
+        @RequestBody List<SessionKey> keys) {
+        List<Session> sessions = sessionService.getSessions(source, keys);
+        Set<SessionKey> found = new HashSet<SessionKey>();
+        for (Session session : sessions) {
+            found.add(new SessionKey(session.getType(), session.getId()));
+        }
+        List<SessionKey> missing = new ArrayList<SessionKey>();
+        for (SessionKey key : keys) {
+            if (!found.contains(key)) {
+                missing.add(key);
+            }
+        }
+        Map<String, List<?>> response = new LinkedHashMap<String, List<?>>();
+        response.put("sessions", sessions);
+        response.put("missing", missing);
+        return response;
     }
 
     @RequestMapping(value = {"/{source}/{type}/{id}", "/{source}/{type}/{id}/"}, method = RequestMethod.PUT)
-    public void updateSession(@PathVariable String source, 
+    public ResponseEntity<Void> updateSession(@PathVariable String source, 
         @PathVariable SessionType type,
         @PathVariable String id, 
-        @RequestBody String data) {
-        sessionService.updateSession(source, type, id, data);
+        @RequestBody String data,
+        @RequestHeader(name=HttpHeaders.IF_MATCH, required=false) String ifMatch) {
+        String checksum = sessionService.updateSession(source, type, id, data, ifMatchChecksums(ifMatch));
+        sessionJsonCache.invalidate(source, type, id);
+        return ResponseEntity.ok().eTag(buildETag(checksum)).build();
+    }
+
+    /**
+     * Changes only the given fields of the session data, with a JSON merge
+     * patch (RFC 7386): fields set to null are removed, objects are merged.
+     */
+    @RequestMapping(value = {"/{source}/{type}/{id}", "/{source}/{type}/{id}/"}, method = RequestMethod.PATCH)
+    public ResponseEntity<Void> patchSession(@PathVariable String source,
+        @PathVariable SessionType type,
+        @PathVariable String id,
+        @RequestBody String patch,
+        @RequestHeader(name=HttpHeaders.IF_MATCH, required=false) String ifMatch) {
+        String checksum = sessionService.patchSession(source, type, id, patch, ifMatchChecksums(ifMatch));
+        sessionJsonCache.invalidate(source, type, id);
+        return ResponseEntity.ok().eTag(buildETag(checksum)).build();
     }
 
     @RequestMapping(value = {"/{source}/{type}/{id}", "/{source}/{type}/{id}/"}, method = RequestMethod.DELETE)
@@ -120,8 +328,54 @@ public class SessionServiceController {
         @PathVariable SessionType type,
         @PathVariable String id) {
         sessionService.deleteSession(source, type, id);
+        sessionJsonCache.invalidate(source, type, id);
     } 
 
+    private ResponseEntity<RawSessionJsonHttpMessageConverter.Sessions> rawPageResponse(
+        List<RawBsonDocument> sessions, List<String> fields, int limit) {
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok().eTag(buildRawListETag(sessions, fields));
+        if (limit > 0 && sessions.size() == limit) {
+            response.header(NEXT_PAGE_TOKEN_HEADER, RawSessionJsonWriter.getId(sessions.get(sessions.size() - 1)));
+        }
+        return response.body(new RawSessionJsonHttpMessageConverter.Sessions(sessions));
+    }
+
+    private String buildRawListETag(List<RawBsonDocument> sessions, List<String> fields) {
+        StringBuilder versions = new StringBuilder();
+        if (fields != null) {
+            versions.append(String.join(",", fields));
+        }
+        for (RawBsonDocument session : sessions) {
+            versions.append('\n').append(RawSessionJsonWriter.getId(session))
+                .append(':').append(RawSessionJsonWriter.getChecksum(session));
+        }
+        return buildETag(DigestUtils.md5DigestAsHex(versions.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private ResponseEntity<StreamingResponseBody> streamResponse(Stream<Session> sessions) {
+        ObjectWriter writer = objectMapper.writerWithView(Session.Views.Full.class);
+        StreamingResponseBody body = outputStream -> {
+            try (Stream<Session> cursor = sessions;
+                JsonGenerator generator = objectMapper.getFactory().createGenerator(outputStream)) {
+                generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+                generator.setRootValueSeparator(null);
+                for (Session session : (Iterable<Session>) cursor::iterator) {
+                    writer.writeValue(generator, session);
+                    generator.writeRaw('\n');
+                }
+            }
+        };
+        return ResponseEntity.ok().contentType(MediaType.parseMediaType(APPLICATION_NDJSON_VALUE)).body(body);
+    }
+
+    private byte[] writeFullView(Session session) {
+        try {
+            return objectMapper.writerWithView(Session.Views.Full.class).writeValueAsBytes(session);
+        } catch (JsonProcessingException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
     @ExceptionHandler
     public void handleSessionInvalid(SessionInvalidException e, HttpServletResponse response) 
         throws IOException {
@@ -137,6 +391,10 @@ public class SessionServiceController {
     @ResponseStatus(code = HttpStatus.NOT_FOUND, reason = "Session not found")
     @ExceptionHandler(SessionNotFoundException.class)
     public void handleSessionNotFound() {}
+
+    @ResponseStatus(code = HttpStatus.PRECONDITION_FAILED, reason = "Session has been modified")
+    @ExceptionHandler(SessionPreconditionFailedException.class)
+    public void handleSessionPreconditionFailed() {}
     
     @ExceptionHandler
     public void handleSessionTypeInvalid(MethodArgumentTypeMismatchException e, HttpServletResponse response)
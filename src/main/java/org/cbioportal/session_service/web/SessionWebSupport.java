@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.web;
+
+import org.cbioportal.session_service.domain.Session;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.DigestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Request and response handling shared by the servlet and reactive controllers.
+ */
+final class SessionWebSupport {
+
+    static final String APPLICATION_NDJSON_VALUE = "application/x-ndjson";
+    static final String NEXT_PAGE_TOKEN_HEADER = "X-Next-Page-Token";
+
+    private SessionWebSupport() {}
+
+    static String buildFieldQuery(String field, String value) {
+        return "{\""+field+"\":\""+value+"\"}";
+    }
+
+    /**
+     * A full page may be followed by more sessions, so pass the id of its
+     * last session as the token for the next page.
+     */
+    static ResponseEntity<List<Session>> pageResponse(List<Session> sessions, List<String> fields, int limit) {
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok().eTag(buildListETag(sessions, fields));
+        if (limit > 0 && sessions.size() == limit) {
+            response.header(NEXT_PAGE_TOKEN_HEADER, sessions.get(sessions.size() - 1).getId());
+        }
+        return response.body(sessions);
+    }
+
+    static String buildETag(String checksum) {
+        return "\"" + checksum + "\"";
+    }
+
+    /**
+     * The ETag of a list is a hash of the ids and checksums of its sessions,
+     * and of the fields that were requested since those change the response too.
+     */
+    static String buildListETag(List<Session> sessions, List<String> fields) {
+        StringBuilder versions = new StringBuilder();
+        if (fields != null) {
+            versions.append(String.join(",", fields));
+        }
+        for (Session session : sessions) {
+            versions.append('\n').append(session.getId()).append(':').append(session.getChecksum());
+        }
+        return buildETag(DigestUtils.md5DigestAsHex(versions.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parameters = coding.trim().split(";");
+            if (parameters[0].trim().equalsIgnoreCase("gzip")) {
+                return parameters.length < 2 || !parameters[1].trim().matches("q=0(\\.0*)?");
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The checksums an update is conditioned on by If-Match, or null for
+     * any checksum. Weak ETags are accepted too: the ETag of a session is
+     * only weak when it is sent gzipped, its checksum is the same.
+     */
+    static List<String> ifMatchChecksums(String ifMatch) {
+        if (ifMatch == null) {
+            return null;
+        }
+        List<String> checksums = new ArrayList<String>();
+        for (String candidate : ifMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.equals("*")) {
+                return null;
+            }
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.length() > 1 && candidate.startsWith("\"") && candidate.endsWith("\"")) {
+                candidate = candidate.substring(1, candidate.length() - 1);
+            }
+            checksums.add(candidate);
+        }
+        return checksums;
+    }
+
+    static boolean eTagMatches(String ifNoneMatch, String eTag) {
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            // If-None-Match uses the weak comparison
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(eTag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
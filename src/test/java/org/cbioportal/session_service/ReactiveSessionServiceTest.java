@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service;
+
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.TestPropertySource;
+
+/**
+ * Runs the SessionServiceTest REST contract against the reactive
+ * deployment mode (WebFlux and the reactive mongo driver).
+ */
+@ActiveProfiles("reactive")
+@TestPropertySource(properties = {
+    // the web application type has to be known before the profile's properties are read
+    "spring.main.web-application-type=reactive",
+    // only supported by the blocking service, the reactive mode does not start with them
+    "session.write-behind.window.settings=",
+    "session.insert-batching.types=",
+    "session.archive.idle.comparison_session="
+})
+public class ReactiveSessionServiceTest extends SessionServiceTest {
+
+    @Override
+    @Test
+    @Disabled("the reactive mode does not record the session metrics")
+    public void getMetrics() throws Exception {
+    }
+
+    @Override
+    @Test
+    @Disabled("the reactive mode does not support archiving")
+    public void archiveIdleSessions() throws Exception {
+    }
+
+    @Override
+    @Test
+    @Disabled("the reactive mode does not support insert batching")
+    public void addSessionsConcurrently() throws Exception {
+    }
+
+    @Override
+    @Test
+    @Disabled("the reactive mode does not support write-behind")
+    public void updateSessionWriteBehind() throws Exception {
+    }
+}
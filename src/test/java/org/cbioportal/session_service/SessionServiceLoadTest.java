@@ -0,0 +1,372 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.cbioportal.session_service.domain.SessionType;
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.core.env.Environment;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+/**
+ * Load test harness: replays a mix of creates, duplicate creates, gets,
+ * queries and updates of sessions of all types against the running
+ * application and writes the throughput and latency percentiles of each
+ * operation to a JSON file. Only runs with the load-test profile:
+ *
+ * mvn -Pload-test test -Dload.threads=32 -Dload.duration-seconds=60
+ *
+ * Settings (system properties):
+ *   load.threads                 concurrent clients (16)
+ *   load.warmup-seconds          load before measuring (5)
+ *   load.duration-seconds        measured load (30)
+ *   load.seed-sessions           sessions per type created up front (50)
+ *   load.mix                     relative weights of the operations
+ *                                (create:20,duplicate_create:10,get:45,query:15,update:10)
+ *   load.virtual-study-samples   sample ids per virtual study (1000)
+ *   load.output                  result file (target/load-test/{test class}.json)
+ */
+@Tag("load")
+@SpringBootTest(
+    classes = SessionService.class,
+    webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+    properties = {
+        "spring.data.mongodb.database=load_test",
+        "de.flapdoodle.mongodb.embedded.version=4.9.2"
+    }
+)
+public class SessionServiceLoadTest {
+
+    private static final String SOURCE = "load_test";
+    private static final int OWNERS = 50;
+    private static final Pattern ID_PATTERN = Pattern.compile("\"id\":\"([^\"]+)\"");
+
+    enum Operation {
+        create("POST /api/sessions/{source}/{type}/"),
+        duplicate_create("POST /api/sessions/{source}/{type}/"),
+        get("GET /api/sessions/{source}/{type}/{id}"),
+        query("GET /api/sessions/{source}/{type}/query"),
+        update("PUT /api/sessions/{source}/{type}/{id}");
+
+        private final String endpoint;
+
+        Operation(String endpoint) {
+            this.endpoint = endpoint;
+        }
+    }
+
+    private static class StoredSession {
+        private final String id;
+        private final String data;
+
+        StoredSession(String id, String data) {
+            this.id = id;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Latencies in nanoseconds and errors of one operation, recorded by
+     * one client thread.
+     */
+    private static class Samples {
+        private final List<Long> latencies = new ArrayList<Long>();
+        private long errors;
+    }
+
+    @LocalServerPort
+    private int port;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private Environment environment;
+
+    private final int threads = Integer.getInteger("load.threads", 16);
+    private final int warmupSeconds = Integer.getInteger("load.warmup-seconds", 5);
+    private final int durationSeconds = Integer.getInteger("load.duration-seconds", 30);
+    private final int seedSessions = Integer.getInteger("load.seed-sessions", 50);
+    private final int virtualStudySamples = Integer.getInteger("load.virtual-study-samples", 1000);
+    private final String mix = System.getProperty("load.mix",
+        "create:20,duplicate_create:10,get:45,query:15,update:10");
+
+    private final Map<SessionType, List<StoredSession>> sessions = new EnumMap<SessionType, List<StoredSession>>(SessionType.class);
+    private HttpClient client;
+    private String base;
+    private Operation[] weightedOperations;
+
+    @BeforeEach
+    public void setUp() {
+        client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+        base = "http://localhost:" + port + "/api/sessions/" + SOURCE + "/";
+        weightedOperations = parseMix(mix);
+        for (SessionType type : SessionType.values()) {
+            sessions.put(type, Collections.synchronizedList(new ArrayList<StoredSession>()));
+        }
+    }
+
+    @AfterEach
+    public void tearDown() {
+        mongoTemplate.getDb().drop();
+    }
+
+    @Test
+    public void runLoad() throws Exception {
+        for (SessionType type : SessionType.values()) {
+            for (int i = 0; i < seedSessions; i++) {
+                assertNull(execute(Operation.create, type, ThreadLocalRandom.current()));
+            }
+        }
+        run(warmupSeconds);
+        long start = System.nanoTime();
+        Map<Operation, Samples> results = run(durationSeconds);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        Map<String, Object> report = report(results, seconds);
+        Path output = Paths.get(System.getProperty("load.output",
+            "target/load-test/" + getClass().getSimpleName() + ".json"));
+        Files.createDirectories(output.toAbsolutePath().getParent());
+        new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(output.toFile(), report);
+        System.out.println("Load test results written to " + output.toAbsolutePath());
+
+        for (Operation operation : results.keySet()) {
+            assertEquals(0, results.get(operation).errors, operation + " failed, see " + output);
+        }
+    }
+
+    /**
+     * Runs the clients for the given time and returns the merged samples.
+     */
+    private Map<Operation, Samples> run(int seconds) throws Exception {
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Map<Operation, Samples>>> clients = new ArrayList<Future<Map<Operation, Samples>>>();
+            for (int i = 0; i < threads; i++) {
+                clients.add(executor.submit(() -> runClient(deadline)));
+            }
+            Map<Operation, Samples> merged = new EnumMap<Operation, Samples>(Operation.class);
+            for (Future<Map<Operation, Samples>> client : clients) {
+                for (Map.Entry<Operation, Samples> entry : client.get().entrySet()) {
+                    Samples samples = merged.computeIfAbsent(entry.getKey(), operation -> new Samples());
+                    samples.latencies.addAll(entry.getValue().latencies);
+                    samples.errors += entry.getValue().errors;
+                }
+            }
+            return merged;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private Map<Operation, Samples> runClient(long deadline) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Map<Operation, Samples> samples = new EnumMap<Operation, Samples>(Operation.class);
+        while (System.nanoTime() < deadline) {
+            Operation operation = weightedOperations[random.nextInt(weightedOperations.length)];
+            SessionType type = SessionType.values()[random.nextInt(SessionType.values().length)];
+            long start = System.nanoTime();
+            String error = execute(operation, type, random);
+            Samples operationSamples = samples.computeIfAbsent(operation, o -> new Samples());
+            operationSamples.latencies.add(System.nanoTime() - start);
+            if (error != null) {
+                operationSamples.errors++;
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Sends one request, returns null if it succeeded or else a description
+     * of the error.
+     */
+    private String execute(Operation operation, SessionType type, ThreadLocalRandom random) {
+        List<StoredSession> stored = sessions.get(type);
+        StoredSession existing = null;
+        if (operation != Operation.create && operation != Operation.query) {
+            synchronized (stored) {
+                existing = stored.get(random.nextInt(stored.size()));
+            }
+        }
+        HttpRequest.Builder request = HttpRequest.newBuilder().timeout(Duration.ofSeconds(30));
+        String data = null;
+        switch (operation) {
+            case create:
+                data = data(type, random);
+                request.uri(URI.create(base + type + "/")).POST(HttpRequest.BodyPublishers.ofString(data));
+                break;
+            case duplicate_create:
+                request.uri(URI.create(base + type + "/")).POST(HttpRequest.BodyPublishers.ofString(existing.data));
+                break;
+            case get:
+                request.uri(URI.create(base + type + "/" + existing.id)).GET();
+                break;
+            case query:
+                request.uri(URI.create(base + type + "/query?field=data.owner&value=" + owner(random))).GET();
+                break;
+            case update:
+                // updates keep the stored data so duplicate creates keep matching
+                request.uri(URI.create(base + type + "/" + existing.id)).PUT(HttpRequest.BodyPublishers.ofString(existing.data));
+                break;
+        }
+        request.header("Content-Type", "application/json");
+        try {
+            HttpResponse<String> response = client.send(request.build(), HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() != 200) {
+                return operation + " returned " + response.statusCode() + ": " + response.body();
+            }
+            if (operation == Operation.create) {
+                Matcher matcher = ID_PATTERN.matcher(response.body());
+                if (!matcher.find()) {
+                    return "create returned no id: " + response.body();
+                }
+                stored.add(new StoredSession(matcher.group(1), data));
+            }
+            return null;
+        } catch (Exception e) {
+            return operation + " failed: " + e;
+        }
+    }
+
+    private String data(SessionType type, ThreadLocalRandom random) {
+        StringBuilder data = new StringBuilder("{\"owner\":\"").append(owner(random)).append("\",")
+            .append("\"name\":\"").append(type).append(' ').append(random.nextLong()).append("\"");
+        if (type == SessionType.virtual_study) {
+            data.append(",\"studies\":[{\"id\":\"msk_impact_2017\",\"samples\":[");
+            for (int i = 0; i < virtualStudySamples; i++) {
+                data.append(i == 0 ? "" : ",").append("\"P-").append(random.nextInt(10000000)).append("-T01-IM6\"");
+            }
+            data.append("]}]");
+        }
+        return data.append('}').toString();
+    }
+
+    private String owner(ThreadLocalRandom random) {
+        return "user" + random.nextInt(OWNERS) + "@example.org";
+    }
+
+    private Operation[] parseMix(String mix) {
+        List<Operation> operations = new ArrayList<Operation>();
+        for (String entry : mix.split(",")) {
+            String[] weight = entry.trim().split(":");
+            for (int i = 0; i < Integer.parseInt(weight[1].trim()); i++) {
+                operations.add(Operation.valueOf(weight[0].trim()));
+            }
+        }
+        assertFalse(operations.isEmpty(), "load.mix has no operations: " + mix);
+        return operations.toArray(new Operation[0]);
+    }
+
+    private Map<String, Object> report(Map<Operation, Samples> results, double seconds) {
+        Map<String, Object> config = new LinkedHashMap<String, Object>();
+        config.put("threads", threads);
+        config.put("warmupSeconds", warmupSeconds);
+        config.put("durationSeconds", durationSeconds);
+        config.put("seedSessions", seedSessions);
+        config.put("virtualStudySamples", virtualStudySamples);
+        config.put("mix", mix);
+        config.put("activeProfiles", environment.getActiveProfiles());
+        config.put("virtualThreads", environment.getProperty("spring.threads.virtual.enabled", "false"));
+
+        Map<String, Object> operations = new LinkedHashMap<String, Object>();
+        Samples total = new Samples();
+        for (Map.Entry<Operation, Samples> entry : results.entrySet()) {
+            Map<String, Object> operation = new LinkedHashMap<String, Object>();
+            operation.put("endpoint", entry.getKey().endpoint);
+            operation.putAll(summarize(entry.getValue(), seconds));
+            operations.put(entry.getKey().name(), operation);
+            total.latencies.addAll(entry.getValue().latencies);
+            total.errors += entry.getValue().errors;
+        }
+
+        Map<String, Object> report = new LinkedHashMap<String, Object>();
+        report.put("test", getClass().getSimpleName());
+        report.put("config", config);
+        report.put("seconds", seconds);
+        report.put("total", summarize(total, seconds));
+        report.put("operations", operations);
+        return report;
+    }
+
+    private Map<String, Object> summarize(Samples samples, double seconds) {
+        List<Long> latencies = new ArrayList<Long>(samples.latencies);
+        Collections.sort(latencies);
+        Map<String, Object> summary = new LinkedHashMap<String, Object>();
+        summary.put("requests", latencies.size());
+        summary.put("errors", samples.errors);
+        summary.put("throughputPerSecond", latencies.size() / seconds);
+        Map<String, Object> millis = new LinkedHashMap<String, Object>();
+        millis.put("p50", percentile(latencies, 0.50));
+        millis.put("p95", percentile(latencies, 0.95));
+        millis.put("p99", percentile(latencies, 0.99));
+        millis.put("max", latencies.isEmpty() ? 0 : latencies.get(latencies.size() - 1) / 1e6);
+        summary.put("latencyMillis", millis);
+        return summary;
+    }
+
+    private double percentile(List<Long> sortedLatencies, double percentile) {
+        if (sortedLatencies.isEmpty()) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile * sortedLatencies.size()) - 1;
+        return sortedLatencies.get(Math.max(index, 0)) / 1e6;
+    }
+}
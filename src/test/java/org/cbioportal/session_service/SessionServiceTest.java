@@ -32,17 +32,41 @@
 
 package org.cbioportal.session_service;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayInputStream;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import org.bson.types.ObjectId;
 import org.junit.jupiter.api.*;
 import static org.junit.jupiter.api.Assertions.*;
+import org.bson.Document;
+import org.cbioportal.session_service.domain.Session;
+import org.cbioportal.session_service.domain.SessionType;
+import org.cbioportal.session_service.domain.internal.SessionPartitionMigration;
+import org.cbioportal.session_service.service.internal.SessionArchiver;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.actuate.observability.AutoConfigureObservability;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.web.client.TestRestTemplate;
 import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.http.*;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.web.client.RestTemplate;
 
 /**
  * @author Manda Wilson 
@@ -54,9 +78,23 @@ import org.springframework.http.*;
         "server.error.include-exception=true",
         "spring.data.mongodb.database=test",
         "spring.data.mongodb.auto-index-creation=true",
+        "session.cache.enabled=true",
+        "session.compression.threshold.custom_data=0",
+        "session.compression.retained-fields.custom_data=portal-session",
+        "session.indexes.main_session=data.portal-session",
+        "session.index-advisor.enabled=true",
+        "session.query-cache.enabled=true",
+        // long enough that pending updates are only written when a query flushes them
+        "session.write-behind.window.settings=1h",
+        "session.insert-batching.types=group",
+        // sessions are only archived when a test runs the archiver
+        "session.archive.idle.comparison_session=0s",
+        "session.partitioning.sources=partitioned_portal",
         "de.flapdoodle.mongodb.embedded.version=4.9.2"
     }
 )
+// exports the metrics for getMetrics
+@AutoConfigureObservability
 public class SessionServiceTest {
 
     // get randomly assigned port
@@ -66,6 +104,16 @@ public class SessionServiceTest {
     private URL base;
     private TestRestTemplate template;
 
+    // not in reactive mode
+    @Autowired(required = false)
+    private SessionArchiver sessionArchiver;
+
+    @Autowired
+    private SessionPartitionMigration sessionPartitionMigration;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
     @BeforeEach
     public void setUp() throws Exception {
         this.base = new URL("http://localhost:" + port + "/api/sessions/");
@@ -201,6 +249,36 @@ public class SessionServiceTest {
         assertNotEquals(id, differentId);
     }
 
+    @Test
+    public void addSessions() throws Exception {
+        // add one session on its own first
+        String data = "\"portal-session\":\"my session information\"";
+        ResponseEntity<String> response = addData("msk_portal", "main_session", data);
+        String existingId = parseIds(response.getBody()).get(0);
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        HttpEntity<String> entity = new HttpEntity<String>("[{" + data + "},{\"portal-session\":\"other session\"},{" + data + "}]", headers);
+        response = template.exchange(base.toString() + "msk_portal/main_session/batch", HttpMethod.POST, entity, String.class);
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+
+        // duplicates in the batch and in the database resolve to the existing id
+        List<String> ids = parseIds(response.getBody());
+        assertEquals(3, ids.size());
+        assertEquals(existingId, ids.get(0));
+        assertNotEquals(existingId, ids.get(1));
+        assertEquals(existingId, ids.get(2));
+
+        response = template.getForEntity(base.toString() + "msk_portal/main_session/" + ids.get(1), String.class);
+        assertTrue(expectedResponse(response.getBody(), "msk_portal", "main_session", "\"portal-session\":\"other session\""));
+
+        // only an array of objects is accepted
+        entity = new HttpEntity<String>("[{" + data + "}, 1]", headers);
+        response = template.exchange(base.toString() + "msk_portal/main_session/batch", HttpMethod.POST, entity, String.class);
+        assertTrue(response.getBody().contains("org.cbioportal.session_service.service.exception.SessionInvalidException"));
+        assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
+    }
+
     @Test
     public void getSession() throws Exception {
         // first add data
@@ -218,6 +296,93 @@ public class SessionServiceTest {
         assertEquals(HttpStatus.OK, response.getStatusCode());
     }
 
+    @Test
+    public void fetchSessions() throws Exception {
+        // add sessions of two types
+        String data = "\"portal-session\":{\"arg1\":\"first argument\"}";
+        String mainSessionId = parseIds(addData("msk_portal", "main_session", data).getBody()).get(0);
+        String groupId = parseIds(addData("msk_portal", "group", data).getBody()).get(0);
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        HttpEntity<String> entity = new HttpEntity<String>("[{\"type\":\"group\",\"id\":\"" + groupId + "\"},"
+            + "{\"type\":\"main_session\",\"id\":\"" + mainSessionId + "\"},"
+            + "{\"type\":\"main_session\",\"id\":\"" + groupId + "\"}]", headers);
+        ResponseEntity<String> response = template.exchange(base.toString() + "msk_portal/fetch", HttpMethod.POST, entity, String.class);
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+
+        // sessions are returned in request order and misses are reported individually
+        List<String> ids = parseIds(response.getBody());
+        assertEquals(List.of(groupId, mainSessionId, groupId), ids);
+        assertTrue(response.getBody().contains("\"missing\":[{\"type\":\"main_session\",\"id\":\"" + groupId + "\"}]"));
+
+        template.delete(base.toString() + "msk_portal/group/" + groupId);
+    }
+
+    @Test
+    public void getSessionNotModified() throws Exception {
+        // first add data
+        String data = "\"portal-session\":{\"arg1\":\"first argument\"}";
+        String id = parseIds(addData("msk_portal", "main_session", data).getBody()).get(0);
+
+        ResponseEntity<String> response = template.getForEntity(base.toString() + "msk_portal/main_session/" + id, String.class);
+        String eTag = response.getHeaders().getETag();
+        assertNotNull(eTag);
+
+        // revalidating returns 304 without a body
+        HttpHeaders headers = new HttpHeaders();
+        headers.setIfNoneMatch(eTag);
+        response = template.exchange(base.toString() + "msk_portal/main_session/" + id, HttpMethod.GET, new HttpEntity<String>(headers), String.class);
+        assertEquals(HttpStatus.NOT_MODIFIED, response.getStatusCode());
+        assertNull(response.getBody());
+
+        // same for the list, until it changes
+        response = template.getForEntity(base.toString() + "msk_portal/main_session/", String.class);
+        headers.setIfNoneMatch(response.getHeaders().getETag());
+        response = template.exchange(base.toString() + "msk_portal/main_session/", HttpMethod.GET, new HttpEntity<String>(headers), String.class);
+        assertEquals(HttpStatus.NOT_MODIFIED, response.getStatusCode());
+
+        template.exchange(base.toString() + "msk_portal/main_session/" + id, HttpMethod.PUT, prepareData("\"portal-session\":\"UPDATED\""), String.class);
+        response = template.exchange(base.toString() + "msk_portal/main_session/", HttpMethod.GET, new HttpEntity<String>(headers), String.class);
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertTrue(response.getBody().contains("UPDATED"));
+    }
+
+    @Test
+    public void getCompressedSession() throws Exception {
+        // custom_data sessions are stored compressed
+        String data = "\"portal-session\":{\"title\":\"compressed\"},\"samples\":\"a,b\"";
+        String id = parseIds(addData("msk_portal", "custom_data", data).getBody()).get(0);
+
+        ResponseEntity<String> response = template.getForEntity(base.toString() + "msk_portal/custom_data/" + id, String.class);
+        assertTrue(expectedResponse(response.getBody(), "msk_portal", "custom_data", data));
+
+        // clients accepting gzip get the stored bytes
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.ACCEPT_ENCODING, "gzip");
+        // with a client that does not decompress the response itself
+        RestTemplate plainTemplate = new RestTemplate(new SimpleClientHttpRequestFactory());
+        ResponseEntity<byte[]> compressed = plainTemplate.exchange(base.toString() + "msk_portal/custom_data/" + id, HttpMethod.GET, new HttpEntity<String>(headers), byte[].class);
+        assertEquals(HttpStatus.OK, compressed.getStatusCode());
+        assertEquals("gzip", compressed.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+        String json = new String(new GZIPInputStream(new ByteArrayInputStream(compressed.getBody())).readAllBytes(), StandardCharsets.UTF_8);
+        assertTrue(expectedResponse(json, "msk_portal", "custom_data", data));
+
+        // revalidating does not read the compressed data
+        headers.setIfNoneMatch(compressed.getHeaders().getETag());
+        compressed = plainTemplate.exchange(base.toString() + "msk_portal/custom_data/" + id, HttpMethod.GET, new HttpEntity<String>(headers), byte[].class);
+        assertEquals(HttpStatus.NOT_MODIFIED, compressed.getStatusCode());
+        assertTrue(compressed.getHeaders().getETag().startsWith("W/"));
+
+        // retained fields can be queried, other fields can be projected
+        response = template.getForEntity(base.toString() + "msk_portal/custom_data/query?field=data.portal-session.title&value=compressed&fields=data.samples", String.class);
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertTrue(expectedResponse(response.getBody(), "msk_portal", "custom_data", "\"samples\":\"a,b\"", true));
+        // other fields cannot be queried, compressed sessions would not match
+        response = template.getForEntity(base.toString() + "msk_portal/custom_data/query?field=data.samples&value=a,b", String.class);
+        assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
+    }
+
     @Test
     public void getSessionInvalidId() throws Exception {
         ResponseEntity<String> response = template.getForEntity(base.toString() + "msk_portal/main_session/" + "id", String.class);
@@ -303,6 +468,76 @@ public class SessionServiceTest {
         assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
     }
 
+    @Test
+    public void streamSessionsWithQuery() throws Exception {
+        // first add data
+        String data = "\"portal-session\":{\"title\":\"my portal session\"}";
+        addData("msk_portal", "main_session", data);
+        addData("msk_portal", "main_session", "\"portal-session\":{\"title\":\"my other portal session\"}");
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.setAccept(List.of(MediaType.parseMediaType("application/x-ndjson")));
+        HttpEntity<String> entity = new HttpEntity<String>(headers);
+
+        // all sessions, one per line
+        ResponseEntity<String> response = template.exchange(base.toString() + "msk_portal/main_session/", HttpMethod.GET, entity, String.class);
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals("application/x-ndjson", response.getHeaders().getContentType().toString());
+        assertEquals(2, response.getBody().split("\n").length);
+
+        // now query
+        response = template.exchange(base.toString() + "msk_portal/main_session/" + "query?field=data.portal-session.title&value=my portal session", HttpMethod.GET, entity, String.class);
+        assertTrue(expectedResponse(response.getBody().trim(), "msk_portal", "main_session", data));
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+    }
+
+    @Test
+    public void getSessionsPaged() throws Exception {
+        // first add data
+        for (int i = 0; i < 3; i++) {
+            addData("msk_portal", "main_session", "\"portal-session\":\"session " + i + "\"");
+        }
+
+        // first page is full so it has a next page token
+        ResponseEntity<String> response = template.getForEntity(base.toString() + "msk_portal/main_session/?limit=2", String.class);
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        List<String> firstPage = parseIds(response.getBody());
+        assertEquals(2, firstPage.size());
+        String token = response.getHeaders().getFirst("X-Next-Page-Token");
+        assertEquals(firstPage.get(1), token);
+
+        // second page has the remaining session
+        response = template.getForEntity(base.toString() + "msk_portal/main_session/?limit=2&after=" + token, String.class);
+        List<String> secondPage = parseIds(response.getBody());
+        assertEquals(1, secondPage.size());
+        assertFalse(firstPage.contains(secondPage.get(0)));
+        assertNull(response.getHeaders().getFirst("X-Next-Page-Token"));
+
+        // invalid token
+        response = template.getForEntity(base.toString() + "msk_portal/main_session/?after=id", String.class);
+        assertTrue(response.getBody().contains("org.cbioportal.session_service.service.exception.SessionQueryInvalidException"));
+        assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
+    }
+
+    @Test
+    public void fetchSessionWithQueryAndFields() throws Exception {
+        // first add data
+        String data = "\"portal-session\":{\"title\":\"my portal session\",\"samples\":[\"s1\",\"s2\"]}";
+        addData("msk_portal", "main_session", data);
+
+        HttpEntity<String> entity = prepareData("\"data.portal-session.title\":\"my portal session\"");
+
+        // only the title is returned
+        ResponseEntity<String> response = template.exchange(base.toString() + "msk_portal/main_session/query/fetch?fields=data.portal-session.title", HttpMethod.POST, entity, String.class);
+        assertTrue(expectedResponse(response.getBody(), "msk_portal", "main_session", "\"portal-session\":{\"title\":\"my portal session\"}", true));
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+
+        // only paths in the session data can be requested
+        response = template.exchange(base.toString() + "msk_portal/main_session/query/fetch?fields=checksum", HttpMethod.POST, entity, String.class);
+        assertTrue(response.getBody().contains("org.cbioportal.session_service.service.exception.SessionQueryInvalidException"));
+        assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
+    }
+
     @Test
     public void updateSession() throws Exception {
         String data = "\"portal-session\":\"my session information\"";
@@ -354,6 +589,254 @@ public class SessionServiceTest {
         assertEquals(HttpStatus.NOT_FOUND, response.getStatusCode());
     }
 
+    @Test
+    public void updateSessionIfMatch() throws Exception {
+        String id = parseIds(addData("msk_portal", "main_session", "\"portal-session\":\"version 1\"").getBody()).get(0);
+        String url = base.toString() + "msk_portal/main_session/" + id;
+        String eTag = template.getForEntity(url, String.class).getHeaders().getETag();
+
+        HttpEntity<String> entity = prepareData("\"portal-session\":\"version 2\"");
+        HttpHeaders headers = new HttpHeaders();
+        headers.putAll(entity.getHeaders());
+        headers.setIfMatch(eTag);
+        ResponseEntity<String> response = template.exchange(url, HttpMethod.PUT, new HttpEntity<String>(entity.getBody(), headers), String.class);
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        String updatedETag = response.getHeaders().getETag();
+        assertNotEquals(eTag, updatedETag);
+        assertEquals(updatedETag, template.getForEntity(url, String.class).getHeaders().getETag());
+
+        // a second update based on the first version would lose the first update
+        headers.setIfMatch(eTag);
+        response = template.exchange(url, HttpMethod.PUT, new HttpEntity<String>(prepareData("\"portal-session\":\"version 3\"").getBody(), headers), String.class);
+        assertEquals(HttpStatus.PRECONDITION_FAILED, response.getStatusCode());
+        assertTrue(template.getForEntity(url, String.class).getBody().contains("version 2"));
+
+        response = template.exchange(base.toString() + "msk_portal/main_session/" + new ObjectId(), HttpMethod.PUT, new HttpEntity<String>(entity.getBody(), headers), String.class);
+        assertEquals(HttpStatus.NOT_FOUND, response.getStatusCode());
+    }
+
+    @Test
+    public void updateCompressedSession() throws Exception {
+        // custom_data sessions are stored compressed
+        String id = parseIds(addData("msk_portal", "custom_data", "\"portal-session\":\"version 1\",\"samples\":\"a\"").getBody()).get(0);
+        String data = "\"portal-session\":\"version 2\",\"samples\":\"a,b\"";
+        ResponseEntity<String> response = template.exchange(base.toString() + "msk_portal/custom_data/" + id, HttpMethod.PUT, prepareData(data), String.class);
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+
+        response = template.getForEntity(base.toString() + "msk_portal/custom_data/" + id, String.class);
+        assertTrue(expectedResponse(response.getBody(), "msk_portal", "custom_data", data));
+        response = template.getForEntity(base.toString() + "msk_portal/custom_data/query?field=data.portal-session&value=version 2", String.class);
+        assertEquals(List.of(id), parseIds(response.getBody()));
+        template.delete(base.toString() + "msk_portal/custom_data/" + id);
+    }
+
+    @Test
+    public void patchSession() throws Exception {
+        String id = parseIds(addData("msk_portal", "main_session",
+            "\"portal-session\":{\"title\":\"my session\",\"theme\":\"dark\"},\"samples\":[\"a\"]").getBody()).get(0);
+        String url = base.toString() + "msk_portal/main_session/" + id;
+        String eTag = template.getForEntity(url, String.class).getHeaders().getETag();
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.valueOf("application/merge-patch+json"));
+        headers.setIfMatch(eTag);
+        String patch = "{\"portal-session\":{\"theme\":null,\"title\":\"patched\"},\"samples\":[\"a\",\"b\"],\"study\":\"s1\"}";
+        ResponseEntity<String> response = template.exchange(url, HttpMethod.PATCH, new HttpEntity<String>(patch, headers), String.class);
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        String patchedETag = response.getHeaders().getETag();
+
+        String data = "\"portal-session\":{\"title\":\"patched\"},\"samples\":[\"a\",\"b\"],\"study\":\"s1\"";
+        response = template.getForEntity(url, String.class);
+        assertEquals(new ObjectMapper().readTree("{" + data + "}"), new ObjectMapper().readTree(response.getBody()).path("data"));
+        assertEquals(patchedETag, response.getHeaders().getETag());
+        // the checksum is that of the patched data, so adding it again finds the patched session
+        assertEquals(List.of(id), parseIds(addData("msk_portal", "main_session", data).getBody()));
+
+        // the patch was based on the previous version
+        response = template.exchange(url, HttpMethod.PATCH, new HttpEntity<String>(patch, headers), String.class);
+        assertEquals(HttpStatus.PRECONDITION_FAILED, response.getStatusCode());
+
+        response = template.exchange(url, HttpMethod.PATCH, prepareData("\"samples\":blah"), String.class);
+        assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
+        response = template.exchange(base.toString() + "msk_portal/main_session/" + new ObjectId(), HttpMethod.PATCH, prepareData("\"study\":\"s2\""), String.class);
+        assertEquals(HttpStatus.NOT_FOUND, response.getStatusCode());
+    }
+
+    @Test
+    public void patchCompressedSession() throws Exception {
+        // custom_data sessions are stored compressed
+        String id = parseIds(addData("msk_portal", "custom_data", "\"portal-session\":\"version 1\",\"samples\":\"a\"").getBody()).get(0);
+        ResponseEntity<String> response = template.exchange(base.toString() + "msk_portal/custom_data/" + id, HttpMethod.PATCH, prepareData("\"portal-session\":\"version 2\""), String.class);
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+
+        response = template.getForEntity(base.toString() + "msk_portal/custom_data/" + id, String.class);
+        assertTrue(expectedResponse(response.getBody(), "msk_portal", "custom_data", "\"portal-session\":\"version 2\",\"samples\":\"a\""));
+        template.delete(base.toString() + "msk_portal/custom_data/" + id);
+    }
+
+    @Test
+    public void updateSessionWriteBehind() throws Exception {
+        String charts = new ObjectId().toHexString();
+        String id = parseIds(addData("msk_portal", "settings", "\"page\":\"study_view\",\"charts\":\"" + charts + "\"").getBody()).get(0);
+        String url = base.toString() + "msk_portal/settings/" + id;
+        template.exchange(url, HttpMethod.PUT, prepareData("\"page\":\"study_view\",\"charts\":\"" + charts + ",b\""), String.class);
+        ResponseEntity<String> response = template.exchange(url, HttpMethod.PUT, prepareData("\"page\":\"study_view\",\"charts\":\"" + charts + ",b,c\""), String.class);
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        String eTag = response.getHeaders().getETag();
+
+        // reads by id see the pending update before it is written
+        response = template.getForEntity(url, String.class);
+        assertTrue(expectedResponse(response.getBody(), "msk_portal", "settings", "\"page\":\"study_view\",\"charts\":\"" + charts + ",b,c\""));
+        assertEquals(eTag, response.getHeaders().getETag());
+        String metrics = template.getForEntity(new URL(base, "/actuator/prometheus").toString(), String.class).getBody();
+        assertFalse(metrics.contains("session_repository_seconds_count{operation=\"update_batch\",outcome=\"success\","
+            + "source=\"msk_portal\",type=\"settings\"}"));
+
+        // queries write the pending updates of their source and type first, both in one write
+        response = template.getForEntity(base.toString() + "msk_portal/settings/query?field=data.charts&value=" + charts + ",b,c", String.class);
+        assertEquals(List.of(id), parseIds(response.getBody()));
+        metrics = template.getForEntity(new URL(base, "/actuator/prometheus").toString(), String.class).getBody();
+        assertTrue(metrics.contains("session_repository_seconds_count{operation=\"update_batch\",outcome=\"success\","
+            + "source=\"msk_portal\",type=\"settings\"} 1\n"));
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        headers.setIfMatch("\"stale\"");
+        response = template.exchange(url, HttpMethod.PUT, new HttpEntity<String>("{\"page\":\"results_view\"}", headers), String.class);
+        assertEquals(HttpStatus.PRECONDITION_FAILED, response.getStatusCode());
+        template.delete(url);
+        assertEquals(HttpStatus.NOT_FOUND, template.getForEntity(url, String.class).getStatusCode());
+    }
+
+    @Test
+    public void archiveIdleSessions() throws Exception {
+        String name = new ObjectId().toHexString();
+        String idle = parseIds(addData("msk_portal", "comparison_session", "\"name\":\"" + name + "-idle\"").getBody()).get(0);
+        String read = parseIds(addData("msk_portal", "comparison_session", "\"name\":\"" + name + "-read\"").getBody()).get(0);
+        String updated = parseIds(addData("msk_portal", "comparison_session", "\"name\":\"" + name + "-updated\"").getBody()).get(0);
+        // ObjectIds only have seconds
+        Thread.sleep(1100);
+        template.getForEntity(base.toString() + "msk_portal/comparison_session/" + read, String.class);
+        template.exchange(base.toString() + "msk_portal/comparison_session/" + updated, HttpMethod.PUT,
+            prepareData("\"name\":\"" + name + "-updated-again\""), String.class);
+
+        // the sessions read or updated since the cutoff stay, the other one is archived
+        sessionArchiver.archive();
+        String list = base.toString() + "msk_portal/comparison_session/";
+        List<String> ids = parseIds(template.getForEntity(list, String.class).getBody());
+        assertFalse(ids.contains(idle));
+        assertTrue(ids.contains(read));
+        assertTrue(ids.contains(updated));
+        String query = list + "query?field=data.name&value=" + name + "-idle";
+        assertEquals("[]", template.getForEntity(query, String.class).getBody());
+
+        // and moved back when it is read, also into queries cached while it was archived
+        ResponseEntity<String> response = template.getForEntity(list + idle, String.class);
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertTrue(expectedResponse(response.getBody(), "msk_portal", "comparison_session", "\"name\":\"" + name + "-idle\""));
+        assertTrue(parseIds(template.getForEntity(list, String.class).getBody()).contains(idle));
+        assertEquals(List.of(idle), parseIds(template.getForEntity(query, String.class).getBody()));
+
+        // archived sessions can be deleted; the first run writes the access
+        // of the read above, the second finds the session idle since then
+        sessionArchiver.archive();
+        Thread.sleep(10);
+        sessionArchiver.archive();
+        assertFalse(parseIds(template.getForEntity(list, String.class).getBody()).contains(idle));
+        template.delete(list + idle);
+        assertEquals(HttpStatus.NOT_FOUND, template.getForEntity(list + idle, String.class).getStatusCode());
+        template.delete(list + read);
+        template.delete(list + updated);
+    }
+
+    @Test
+    public void partitionSessionsBySource() throws Exception {
+        // sessions of a partitioned source are saved in a collection of their own
+        String title = new ObjectId().toHexString();
+        String url = base.toString() + "partitioned_portal/main_session/";
+        String id = parseIds(addData("partitioned_portal", "main_session", "\"title\":\"" + title + "\"").getBody()).get(0);
+        Query byId = new Query(Criteria.where("_id").is(new ObjectId(id)));
+        assertTrue(mongoTemplate.exists(byId, "main_session.partitioned_portal"));
+        assertFalse(mongoTemplate.exists(byId, "main_session"));
+        assertEquals(List.of(id), parseIds(template.getForEntity(url, String.class).getBody()));
+
+        // sessions saved in the shared collection before are moved there by the migration
+        ObjectId sharedId = new ObjectId();
+        Session shared = new Session();
+        shared.setData("{\"title\":\"" + title + "-shared\"}");
+        mongoTemplate.insert(new Document("_id", sharedId)
+            .append("source", "partitioned_portal")
+            .append("type", "main_session")
+            .append("checksum", shared.getChecksum())
+            .append("data", shared.getData()), "main_session");
+        // they are read from the shared collection until then
+        ResponseEntity<String> response = template.getForEntity(url + sharedId, String.class);
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertTrue(expectedResponse(response.getBody(), "partitioned_portal", "main_session", "\"title\":\"" + title + "-shared\""));
+        assertEquals(List.of(id, sharedId.toHexString()), parseIds(template.getForEntity(url, String.class).getBody()));
+        // and the same data saved again gets their id
+        assertEquals(List.of(sharedId.toHexString()),
+            parseIds(addData("partitioned_portal", "main_session", "\"title\":\"" + title + "-shared\"").getBody()));
+        assertFalse(mongoTemplate.exists(new Query(Criteria.where("checksum").is(shared.getChecksum())),
+            "main_session.partitioned_portal"));
+        // a session with the data of one already in the partition cannot be moved, and stays readable
+        ObjectId duplicateId = new ObjectId();
+        mongoTemplate.insert(new Document("_id", duplicateId)
+            .append("source", "partitioned_portal")
+            .append("type", "main_session")
+            .append("checksum", mongoTemplate.findOne(byId, Document.class, "main_session.partitioned_portal")
+                .getString("checksum"))
+            .append("data", new Document("title", title)), "main_session");
+        sessionPartitionMigration.migrate("partitioned_portal", SessionType.main_session);
+        response = template.getForEntity(url + sharedId, String.class);
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertTrue(expectedResponse(response.getBody(), "partitioned_portal", "main_session", "\"title\":\"" + title + "-shared\""));
+        assertFalse(mongoTemplate.exists(new Query(Criteria.where("_id").is(sharedId)), "main_session"));
+        assertTrue(mongoTemplate.exists(new Query(Criteria.where("_id").is(duplicateId)), "main_session"));
+        assertEquals(HttpStatus.OK, template.getForEntity(url + duplicateId, String.class).getStatusCode());
+
+        template.delete(url + id);
+        template.delete(url + sharedId);
+        template.delete(url + duplicateId);
+        assertFalse(mongoTemplate.exists(new Query(Criteria.where("_id").is(duplicateId)), "main_session"));
+        assertEquals("[]", template.getForEntity(url, String.class).getBody());
+        // once none are left the migration is recorded
+        sessionPartitionMigration.migrate("partitioned_portal", SessionType.main_session);
+        assertTrue(mongoTemplate.exists(new Query(Criteria.where("_id").is("main_session.partitioned_portal")),
+            "session_partitions"));
+    }
+
+    @Test
+    public void addSessionsConcurrently() throws Exception {
+        // each session is added twice at the same time, both adds get the same id
+        String prefix = new ObjectId().toHexString();
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        List<Future<ResponseEntity<String>>> futures = new ArrayList<Future<ResponseEntity<String>>>();
+        try {
+            for (int i = 0; i < 16; i++) {
+                String data = "\"name\":\"" + prefix + "-" + (i / 2) + "\"";
+                futures.add(executor.submit(() -> addData("msk_portal", "group", data)));
+            }
+            List<String> ids = new ArrayList<String>();
+            for (Future<ResponseEntity<String>> future : futures) {
+                ResponseEntity<String> response = future.get();
+                assertEquals(HttpStatus.OK, response.getStatusCode());
+                ids.add(parseIds(response.getBody()).get(0));
+            }
+            for (int i = 0; i < 16; i += 2) {
+                assertEquals(ids.get(i), ids.get(i + 1));
+                ResponseEntity<String> response = template.getForEntity(base.toString() + "msk_portal/group/" + ids.get(i), String.class);
+                assertTrue(expectedResponse(response.getBody(), "msk_portal", "group", "\"name\":\"" + prefix + "-" + (i / 2) + "\""));
+            }
+            assertEquals(8, new HashSet<String>(ids).size());
+        } finally {
+            executor.shutdown();
+        }
+        // the adds were grouped into bulk writes
+        String metrics = template.getForEntity(new URL(base, "/actuator/prometheus").toString(), String.class).getBody();
+        assertTrue(metrics.contains("session_batch_size_sessions_count{operation=\"insert\",source=\"msk_portal\",type=\"group\"}"));
+    }
+
     @Test
     public void updateSessionNoData() throws Exception {
         String data = "\"portal-session\":\"my session information\"";
@@ -430,6 +913,75 @@ public class SessionServiceTest {
         assertEquals(HttpStatus.OK, response.getStatusCode());
     }
 
+    @Test
+    public void getMetrics() throws Exception {
+        String data = "\"portal-session\":\"metrics\"";
+        addData("msk_portal", "main_session", data);
+        // the second add matches the existing session
+        addData("msk_portal", "main_session", data);
+        template.getForEntity(base.toString() + "msk_portal/main_session/query?field=data.portal-session&value=metrics",
+            String.class);
+
+        ResponseEntity<String> response = template.getForEntity(
+            new URL(base, "/actuator/prometheus").toString(), String.class);
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        String metrics = response.getBody();
+        assertTrue(metrics.contains("session_service_seconds_count{operation=\"add\",outcome=\"success\","
+            + "source=\"msk_portal\",type=\"main_session\"}"));
+        assertTrue(metrics.contains("session_repository_seconds_count{operation=\"upsert\",outcome=\"success\","
+            + "source=\"msk_portal\",type=\"main_session\"}"));
+        assertTrue(metrics.contains("session_dedupe_total{reason=\"existing\",source=\"msk_portal\","
+            + "type=\"main_session\"}"));
+        assertTrue(metrics.contains("session_payload_size_bytes_count{operation=\"add\",source=\"msk_portal\","
+            + "type=\"main_session\"}"));
+        assertTrue(metrics.contains("session_query_results_sessions_count{operation=\"query\",source=\"msk_portal\","
+            + "type=\"main_session\"}"));
+    }
+
+    @Test
+    public void getQueryResultsAfterWrites() throws Exception {
+        String query = base.toString() + "msk_portal/main_session/query?field=data.portal-session&value=";
+        assertEquals("[]", template.getForEntity(query + "cached", String.class).getBody());
+
+        String id = parseIds(addData("msk_portal", "main_session", "\"portal-session\":\"cached\"").getBody()).get(0);
+        assertEquals(List.of(id), parseIds(template.getForEntity(query + "cached", String.class).getBody()));
+        assertEquals(List.of(id), parseIds(template.getForEntity(query + "cached", String.class).getBody()));
+        ResponseEntity<String> stats = template.getForEntity(new URL(base, "/info/query-cache").toString(), String.class);
+        assertTrue(new ObjectMapper().readTree(stats.getBody()).path("hitCount").asLong() > 0);
+
+        template.exchange(base.toString() + "msk_portal/main_session/" + id, HttpMethod.PUT,
+            prepareData("\"portal-session\":\"updated\""), String.class);
+        assertEquals("[]", template.getForEntity(query + "cached", String.class).getBody());
+        assertEquals(List.of(id), parseIds(template.getForEntity(query + "updated", String.class).getBody()));
+
+        template.delete(base.toString() + "msk_portal/main_session/" + id);
+        assertEquals("[]", template.getForEntity(query + "updated", String.class).getBody());
+    }
+
+    @Test
+    public void getIndexes() throws Exception {
+        addData("msk_portal", "main_session", "\"portal-session\":\"indexes\"");
+        template.getForEntity(base.toString() + "msk_portal/main_session/query?field=data.portal-session&value=indexes",
+            String.class);
+        template.getForEntity(base.toString() + "msk_portal/main_session/query?field=data.title&value=indexes",
+            String.class);
+
+        ResponseEntity<String> response = template.getForEntity(
+            new URL(base, "/info/indexes").toString(), String.class);
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        JsonNode mainSession = new ObjectMapper().readTree(response.getBody()).path("types").path("main_session");
+        assertEquals("[[\"data.portal-session\"]]", mainSession.path("configuredIndexes").toString());
+        Map<String, Boolean> indexed = new HashMap<String, Boolean>();
+        for (JsonNode shape : mainSession.path("shapes")) {
+            indexed.put(shape.path("fields").toString(), shape.path("indexed").asBoolean());
+        }
+        assertEquals(Boolean.TRUE, indexed.get("[\"data.portal-session\"]"));
+        assertEquals(Boolean.FALSE, indexed.get("[\"data.title\"]"));
+        for (JsonNode shape : mainSession.path("shapes")) {
+            assertEquals(shape.path("indexed").asBoolean(), shape.path("collections").path("main_session").asBoolean());
+        }
+    }
+
     private HttpEntity<String> prepareData(String data) throws Exception {
         HttpHeaders headers = new HttpHeaders();
         headers.setContentType(MediaType.APPLICATION_JSON);
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.*;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.http.*;
+
+/**
+ * Runs concurrent requests with spring.threads.virtual.enabled and checks
+ * with JFR that no virtual thread was pinned to its carrier, e.g. by
+ * blocking on mongo inside a synchronized block. Only runs on Java 21+.
+ */
+@SpringBootTest(
+    classes = SessionService.class,
+    webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+    properties = {
+        "spring.threads.virtual.enabled=true",
+        "spring.data.mongodb.database=test",
+        "session.cache.enabled=true",
+        "de.flapdoodle.mongodb.embedded.version=4.9.2"
+    }
+)
+public class VirtualThreadPinningTest {
+
+    private static final int THREADS = 32;
+    private static final int REQUESTS_PER_THREAD = 20;
+
+    @LocalServerPort
+    private int port;
+
+    private String base;
+    private TestRestTemplate template;
+    private final ConcurrentLinkedQueue<String> ids = new ConcurrentLinkedQueue<String>();
+
+    @BeforeAll
+    public static void requireVirtualThreads() {
+        assumeTrue(Runtime.version().feature() >= 21, "virtual threads need Java 21");
+    }
+
+    @BeforeEach
+    public void setUp() {
+        base = "http://localhost:" + port + "/api/sessions/msk_portal/";
+        template = new TestRestTemplate();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        for (String id : ids) {
+            template.delete(base + "main_session/" + id);
+        }
+    }
+
+    @Test
+    public void requestsDoNotPinCarrierThreads() throws Exception {
+        List<RecordedEvent> events;
+        Path file = Files.createTempFile("pinning", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("jdk.VirtualThreadPinned").withThreshold(Duration.ZERO).withStackTrace();
+            recording.enable("jdk.VirtualThreadStart");
+            recording.start();
+            runRequests();
+            recording.stop();
+            recording.dump(file);
+            events = RecordingFile.readAllEvents(file);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+
+        long started = events.stream().filter(e -> e.getEventType().getName().equals("jdk.VirtualThreadStart")).count();
+        assertTrue(started > 0, "requests were not handled on virtual threads");
+        List<String> pinned = new ArrayList<String>();
+        for (RecordedEvent event : events) {
+            if (event.getEventType().getName().equals("jdk.VirtualThreadPinned")) {
+                pinned.add(format(event));
+            }
+        }
+        assertTrue(pinned.isEmpty(), "virtual threads were pinned:\n" + String.join("\n", pinned));
+    }
+
+    private void runRequests() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<?>> results = new ArrayList<Future<?>>();
+            for (int i = 0; i < THREADS; i++) {
+                final int thread = i;
+                results.add(executor.submit(() -> {
+                    for (int j = 0; j < REQUESTS_PER_THREAD; j++) {
+                        // new sessions, so each first read loads the session into the cache
+                        String data = "{\"portal-session\":\"pinning " + thread + " " + j + "\"}";
+                        String id = parseId(exchange("main_session/", HttpMethod.POST, data));
+                        ids.add(id);
+                        exchange("main_session/" + id, HttpMethod.GET, null);
+                        exchange("fetch", HttpMethod.POST,
+                            "[{\"type\":\"main_session\",\"id\":\"" + id + "\"},"
+                            + "{\"type\":\"virtual_study\",\"id\":\"" + id + "\"}]");
+                        exchange("main_session/query?field=data.portal-session&value=pinning", HttpMethod.GET, null);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private String exchange(String path, HttpMethod method, String body) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        ResponseEntity<String> response =
+            template.exchange(base + path, method, new HttpEntity<String>(body, headers), String.class);
+        assertEquals(HttpStatus.OK, response.getStatusCode(), response.getBody());
+        return response.getBody();
+    }
+
+    private String parseId(String json) {
+        Matcher matcher = Pattern.compile("\"id\":\"([^\"]+)\"").matcher(json);
+        assertTrue(matcher.find(), json);
+        return matcher.group(1);
+    }
+
+    private String format(RecordedEvent event) {
+        StringBuilder trace = new StringBuilder("pinned for " + event.getDuration().toMillis() + "ms");
+        if (event.getStackTrace() != null) {
+            for (RecordedFrame frame : event.getStackTrace().getFrames()) {
+                trace.append("\n    at ").append(frame.getMethod().getType().getName())
+                    .append('.').append(frame.getMethod().getName());
+            }
+        }
+        return trace.toString();
+    }
+}
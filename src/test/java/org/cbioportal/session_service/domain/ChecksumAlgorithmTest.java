@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.domain;
+
+import org.bson.Document;
+import org.junit.jupiter.api.*;
+import org.springframework.util.DigestUtils;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ChecksumAlgorithmTest {
+
+    private static final String DATA = "{\"name\":\"my study\",\"studies\":[{\"id\":\"s1\",\"samples\":[\"a\",\"b\"]}],\"count\":2}";
+    private static final String REORDERED_DATA = "{\"count\":2,\"studies\":[{\"samples\":[\"a\",\"b\"],\"id\":\"s1\"}],\"name\":\"my study\"}";
+
+    @Test
+    public void legacyMd5MatchesPreviousChecksum() {
+        Document data = Document.parse(DATA);
+        assertEquals(DigestUtils.md5DigestAsHex(data.toString().getBytes()), ChecksumAlgorithm.legacy_md5.checksum(data));
+        assertNotEquals(ChecksumAlgorithm.legacy_md5.checksum(data),
+            ChecksumAlgorithm.legacy_md5.checksum(Document.parse(REORDERED_DATA)));
+    }
+
+    @Test
+    public void canonicalChecksumsIgnoreKeyOrder() {
+        for (ChecksumAlgorithm algorithm : new ChecksumAlgorithm[] {ChecksumAlgorithm.md5, ChecksumAlgorithm.sha256}) {
+            assertEquals(algorithm.checksum(Document.parse(DATA)), algorithm.checksum(Document.parse(REORDERED_DATA)));
+        }
+        assertEquals(64, ChecksumAlgorithm.sha256.checksum(Document.parse(DATA)).length());
+    }
+
+    @Test
+    public void canonicalChecksumsDependOnValues() {
+        String otherData = DATA.replace("\"b\"", "\"c\"");
+        assertNotEquals(ChecksumAlgorithm.sha256.checksum(Document.parse(DATA)),
+            ChecksumAlgorithm.sha256.checksum(Document.parse(otherData)));
+        // array order is significant
+        String reorderedArray = DATA.replace("[\"a\",\"b\"]", "[\"b\",\"a\"]");
+        assertNotEquals(ChecksumAlgorithm.sha256.checksum(Document.parse(DATA)),
+            ChecksumAlgorithm.sha256.checksum(Document.parse(reorderedArray)));
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.domain.internal;
+
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+import org.cbioportal.session_service.domain.Session;
+import org.cbioportal.session_service.domain.SessionType;
+import org.junit.jupiter.api.*;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+public class SessionDataCompressionTest {
+
+    private static final String DATA = "{\"name\":\"my study\",\"users\":[\"a@b.org\"],"
+        + "\"studies\":[{\"id\":\"s1\",\"samples\":[\"a\",\"b\"]},{\"id\":\"s2\",\"samples\":[\"c\"]}]}";
+
+    private final ObjectMapper objectMapper = Jackson2ObjectMapperBuilder.json().build();
+    private SessionDataCompression compression;
+
+    @BeforeEach
+    public void setUp() {
+        MockEnvironment environment = new MockEnvironment()
+            .withProperty("session.compression.threshold.virtual_study", "100")
+            .withProperty("session.compression.retained-fields.virtual_study", "users")
+            .withProperty("session.compression.threshold.group", "100000");
+        compression = new SessionDataCompression();
+        ReflectionTestUtils.setField(compression, "environment", environment);
+        ReflectionTestUtils.setField(compression, "objectMapper", objectMapper);
+        compression.init();
+    }
+
+    @Test
+    public void compressesSessionsAboveThreshold() throws Exception {
+        Session session = buildSession(SessionType.virtual_study);
+        String checksum = session.getChecksum();
+        Document stored = new Document("data", session.getData());
+
+        assertTrue(compression.compress(session, stored));
+
+        assertEquals(Document.parse("{\"users\":[\"a@b.org\"]}"), stored.get("data"));
+        assertEquals("gzip", stored.get(SessionDataCompression.COMPRESSION_FIELD));
+        assertEquals(new ObjectId(session.getId()), stored.get("_id"));
+        assertEquals(checksum, session.getChecksum());
+        // the stored bytes are the full view, ready to be sent to the client
+        byte[] json = new GZIPInputStream(new ByteArrayInputStream(
+            ((Binary) stored.get(SessionDataCompression.COMPRESSED_DATA_FIELD)).getData())).readAllBytes();
+        assertEquals(objectMapper.writerWithView(Session.Views.Full.class).writeValueAsString(session),
+            new String(json, StandardCharsets.UTF_8));
+
+        compression.inflate(stored, null);
+        assertEquals(session.getData(), stored.get("data"));
+        assertFalse(stored.containsKey(SessionDataCompression.COMPRESSED_DATA_FIELD));
+        assertFalse(stored.containsKey(SessionDataCompression.COMPRESSION_FIELD));
+    }
+
+    @Test
+    public void compressesWithIdOfStoredDocument() throws Exception {
+        Session session = buildSession(SessionType.virtual_study);
+        ObjectId id = new ObjectId();
+        Document stored = new Document("_id", id).append("data", session.getData());
+
+        assertTrue(compression.compress(session, stored));
+
+        assertEquals(id.toHexString(), session.getId());
+        assertEquals(id, stored.get("_id"));
+        byte[] json = new GZIPInputStream(new ByteArrayInputStream(
+            ((Binary) stored.get(SessionDataCompression.COMPRESSED_DATA_FIELD)).getData())).readAllBytes();
+        assertEquals(id.toHexString(),
+            objectMapper.readTree(new String(json, StandardCharsets.UTF_8)).get("id").asText());
+    }
+
+    @Test
+    public void keepsSmallSessionsAndOtherTypes() {
+        Session group = buildSession(SessionType.group);
+        Document stored = new Document("data", group.getData());
+        assertFalse(compression.compress(group, stored));
+        assertEquals(group.getData(), stored.get("data"));
+
+        Session mainSession = buildSession(SessionType.main_session);
+        stored = new Document("data", mainSession.getData());
+        assertFalse(compression.isEnabled(SessionType.main_session));
+        assertFalse(compression.compress(mainSession, stored));
+        assertEquals(1, stored.size());
+
+        // uncompressed documents are left as they are
+        compression.inflate(stored, null);
+        assertEquals(mainSession.getData(), stored.get("data"));
+    }
+
+    @Test
+    public void inflateProjectsFields() {
+        Session session = buildSession(SessionType.virtual_study);
+        Document stored = new Document("data", session.getData());
+        assertTrue(compression.compress(session, stored));
+
+        compression.inflate(stored, Arrays.asList("data.studies.id", "data.name"));
+
+        assertEquals(Document.parse("{\"name\":\"my study\",\"studies\":[{\"id\":\"s1\"},{\"id\":\"s2\"}]}"),
+            stored.get("data"));
+    }
+
+    @Test
+    public void projectKeepsWholeFields() {
+        Document data = Document.parse(DATA);
+        assertEquals(data, SessionDataCompression.project(data, Arrays.asList("data")));
+        assertEquals(new Document("studies", data.get("studies")),
+            SessionDataCompression.project(data, Arrays.asList("data.studies", "data.studies.id")));
+        assertEquals(new Document(), SessionDataCompression.project(data, Arrays.asList("data.missing")));
+    }
+
+    @Test
+    public void onlyRetainedFieldsCanBeQueried() {
+        assertTrue(compression.isQueryable(SessionType.virtual_study, "data.users"));
+        assertTrue(compression.isQueryable(SessionType.virtual_study, "data.users.email"));
+        assertTrue(compression.isQueryable(SessionType.virtual_study, "checksum"));
+        assertFalse(compression.isQueryable(SessionType.virtual_study, "data.name"));
+        assertFalse(compression.isQueryable(SessionType.virtual_study, "data"));
+        assertTrue(compression.isQueryable(SessionType.main_session, "data.name"));
+
+        assertEquals(Arrays.asList("data.name", "$expr"), compression.getUnqueryableFields(SessionType.virtual_study,
+            Document.parse("{'data.users': 'a@b.org', $or: [{'data.name': 'x'}, {'data.users': 'b'}],"
+                + " $expr: {$eq: ['$a', '$b']}, $comment: 'c'}")));
+        assertTrue(compression.getUnqueryableFields(SessionType.main_session,
+            Document.parse("{'data.name': 'x'}")).isEmpty());
+    }
+
+    private Session buildSession(SessionType type) {
+        Session session = new Session();
+        session.setSource("msk_portal");
+        session.setType(type);
+        session.setData(DATA);
+        return session;
+    }
+}
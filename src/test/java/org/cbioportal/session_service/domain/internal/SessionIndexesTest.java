@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.domain.internal;
+
+import org.bson.Document;
+import org.junit.jupiter.api.*;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.index.IndexField;
+import org.springframework.data.mongodb.core.index.IndexInfo;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class SessionIndexesTest {
+
+    @Test
+    public void readsConfiguredIndexes() {
+        SessionIndexes indexes = buildIndexes("data.users, data.owner+data.name");
+
+        assertEquals(Arrays.asList(Arrays.asList("data.users"), Arrays.asList("data.owner", "data.name")),
+            indexes.getIndexes("virtual_study"));
+        assertTrue(indexes.getIndexes("group").isEmpty());
+        assertEquals(new Document("source", 1).append("data.owner", 1).append("data.name", 1),
+            SessionIndexes.keys(Arrays.asList("data.owner", "data.name")));
+    }
+
+    @Test
+    public void rejectsFieldsOutsideData() {
+        assertThrows(IllegalStateException.class, () -> buildIndexes("source"));
+        assertThrows(IllegalStateException.class, () -> buildIndexes("data.$where"));
+    }
+
+    @Test
+    public void matchesIndexesOnTheFirstFieldAfterSource() {
+        List<IndexInfo> indexes = Collections.singletonList(new IndexInfo(
+            Arrays.asList(IndexField.create("source", Sort.Direction.ASC),
+                IndexField.create("data.owner", Sort.Direction.ASC),
+                IndexField.create("data.name", Sort.Direction.ASC)),
+            "source_1_data.owner_1_data.name_1", false, false, null));
+
+        assertTrue(SessionIndexes.isIndexed(Arrays.asList("data.owner", "data.users"), indexes));
+        assertFalse(SessionIndexes.isIndexed(Arrays.asList("data.name"), indexes));
+    }
+
+    @Test
+    public void extractsQueryShapes() {
+        assertEquals(Arrays.asList("data.name", "data.users"), SessionQueryAdvisor.shape(
+            Document.parse("{'data.users': 'a@b.org', 'data.name': {$regex: 'study'}}")));
+        assertEquals(Arrays.asList("data.owner", "data.users"), SessionQueryAdvisor.shape(
+            Document.parse("{$or: [{'data.users': 'a@b.org'}, {$and: [{'data.owner': 'a@b.org'}]}]}")));
+        assertTrue(SessionQueryAdvisor.shape(Document.parse("{$expr: {$eq: ['$a', '$b']}}")).isEmpty());
+    }
+
+    @Test
+    public void rejectsFieldsCompressedSessionsDoNotKeep() {
+        MockEnvironment environment = new MockEnvironment()
+            .withProperty("session.compression.threshold.virtual_study", "100")
+            .withProperty("session.compression.retained-fields.virtual_study", "users");
+        assertEquals(Arrays.asList(Arrays.asList("data.users.email")),
+            buildIndexes(environment.withProperty("session.indexes.virtual_study", "data.users.email"))
+                .getIndexes("virtual_study"));
+        assertThrows(IllegalStateException.class,
+            () -> buildIndexes(environment.withProperty("session.indexes.virtual_study", "data.users+data.name")));
+    }
+
+    private SessionIndexes buildIndexes(String virtualStudyIndexes) {
+        return buildIndexes(new MockEnvironment().withProperty("session.indexes.virtual_study", virtualStudyIndexes));
+    }
+
+    private SessionIndexes buildIndexes(MockEnvironment environment) {
+        SessionDataCompression compression = new SessionDataCompression();
+        ReflectionTestUtils.setField(compression, "environment", environment);
+        compression.init();
+        SessionIndexes indexes = new SessionIndexes();
+        ReflectionTestUtils.setField(indexes, "environment", environment);
+        ReflectionTestUtils.setField(indexes, "sessionDataCompression", compression);
+        indexes.init();
+        return indexes;
+    }
+}
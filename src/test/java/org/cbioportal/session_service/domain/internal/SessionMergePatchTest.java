@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.domain.internal;
+
+import org.bson.Document;
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+public class SessionMergePatchTest {
+
+    @Test
+    public void mergesObjectsAndRemovesNulls() {
+        SessionMergePatch patch = new SessionMergePatch(
+            Document.parse("{'title': 'Goodbye!', 'author': {'givenName': 'John', 'familyName': 'Doe'},"
+                + " 'tags': ['example', 'sample'], 'content': 'This will be unchanged'}"),
+            Document.parse("{'title': 'Hello!', 'phoneNumber': '+01-123-456-7890',"
+                + " 'author': {'familyName': null}, 'tags': ['example']}"));
+
+        // the example of RFC 7386
+        assertEquals(Document.parse("{'title': 'Hello!', 'author': {'givenName': 'John'}, 'tags': ['example'],"
+            + " 'content': 'This will be unchanged', 'phoneNumber': '+01-123-456-7890'}"), patch.getData());
+        assertTrue(patch.isInPlace());
+        assertEquals(Arrays.asList("data.title", "data.phoneNumber", "data.tags"),
+            patch.getSet().keySet().stream().toList());
+        assertEquals(Collections.singletonList("data.author.familyName"), patch.getUnset());
+    }
+
+    @Test
+    public void replacesValuesThatAreNotObjects() {
+        SessionMergePatch patch = new SessionMergePatch(Document.parse("{'a': 'b', 'c': null}"),
+            Document.parse("{'a': {'b': 'c', 'd': null}, 'e': null}"));
+
+        assertEquals(Document.parse("{'a': {'b': 'c'}, 'c': null}"), patch.getData());
+        assertEquals(Map.of("data.a", new Document("b", "c")), patch.getSet());
+        assertTrue(patch.getUnset().isEmpty());
+    }
+
+    @Test
+    public void isNotInPlaceForFieldsThatAreNotPaths() {
+        assertFalse(new SessionMergePatch(new Document(), Document.parse("{'a.b': 'c'}")).isInPlace());
+        assertFalse(new SessionMergePatch(new Document(), Document.parse("{'$a': 'c'}")).isInPlace());
+        // mongo may add several new fields in another order
+        assertFalse(new SessionMergePatch(new Document(), Document.parse("{'b': 1, 'a': 2}")).isInPlace());
+        assertTrue(new SessionMergePatch(Document.parse("{'a': 1}"), Document.parse("{'b': 1, 'a': 2}")).isInPlace());
+    }
+
+    @Test
+    public void isEmptyIfNothingChanges() {
+        assertTrue(new SessionMergePatch(Document.parse("{'a': 1}"), Document.parse("{'b': null}")).isEmpty());
+        assertTrue(new SessionMergePatch(Document.parse("{'a': 1}"), new Document()).isEmpty());
+    }
+}
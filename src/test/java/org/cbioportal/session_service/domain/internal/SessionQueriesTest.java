@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.domain.internal;
+
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+public class SessionQueriesTest {
+
+    private static final List<String> IDS = Arrays.asList("0a", "0c", "0e");
+    private static final List<String> FALLBACK_IDS = Arrays.asList("0b", "0d");
+
+    @Test
+    public void mergesPagesInIdOrder() {
+        assertEquals(Arrays.asList("0a", "0b", "0c", "0d", "0e"),
+            SessionQueries.merge(IDS, FALLBACK_IDS, Function.identity(), "00", 0));
+        assertEquals(Arrays.asList("0a", "0b", "0c"),
+            SessionQueries.merge(IDS, FALLBACK_IDS, Function.identity(), null, 3));
+        // unpaged lists are not sorted
+        assertEquals(Arrays.asList("0a", "0c", "0e", "0b", "0d"),
+            SessionQueries.merge(IDS, FALLBACK_IDS, Function.identity(), null, 0));
+        assertSame(IDS, SessionQueries.merge(IDS, new ArrayList<String>(), Function.identity(), null, 3));
+    }
+
+    @Test
+    public void mergesStreamsInIdOrderAndClosesBoth() {
+        AtomicInteger closed = new AtomicInteger();
+        try (Stream<String> merged = SessionQueries.merge(IDS.stream().onClose(closed::incrementAndGet),
+            FALLBACK_IDS.stream().onClose(closed::incrementAndGet), Function.identity(), null, 4)) {
+            assertEquals(Arrays.asList("0a", "0b", "0c", "0d"), merged.toList());
+        }
+        assertEquals(2, closed.get());
+
+        try (Stream<String> merged = SessionQueries.merge(IDS.stream(), FALLBACK_IDS.stream(),
+            Function.identity(), null, 0)) {
+            assertEquals(Arrays.asList("0a", "0c", "0e", "0b", "0d"), merged.toList());
+        }
+    }
+}
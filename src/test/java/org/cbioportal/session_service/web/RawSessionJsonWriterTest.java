@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2016 Memorial Sloan-Kettering Cancer Center.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY, WITHOUT EVEN THE IMPLIED WARRANTY OF MERCHANTABILITY OR FITNESS
+ * FOR A PARTICULAR PURPOSE. The software and documentation provided hereunder
+ * is on an "as is" basis, and Memorial Sloan-Kettering Cancer Center has no
+ * obligations to provide maintenance, support, updates, enhancements or
+ * modifications. In no event shall Memorial Sloan-Kettering Cancer Center be
+ * liable to any party for direct, indirect, special, incidental or
+ * consequential damages, including lost profits, arising out of the use of this
+ * software and its documentation, even if Memorial Sloan-Kettering Cancer
+ * Center has been advised of the possibility of such damage.
+ */
+
+/*
+ * This file is part of cBioPortal Session Service.
+ *
+ * cBioPortal is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.cbioportal.session_service.web;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.types.ObjectId;
+import org.cbioportal.session_service.domain.Session;
+import org.cbioportal.session_service.domain.SessionType;
+import org.junit.jupiter.api.*;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class RawSessionJsonWriterTest {
+
+    private static final String DATA = "{\"name\":\"my study\",\"count\":2,\"ratio\":0.5,\"big\":12345678901,"
+        + "\"flag\":true,\"none\":null,\"studies\":[{\"id\":\"s1\",\"samples\":[\"a\",\"b\"]}]}";
+
+    private final ObjectMapper objectMapper = Jackson2ObjectMapperBuilder.json().build();
+    private final RawSessionJsonWriter writer = new RawSessionJsonWriter(objectMapper);
+
+    @Test
+    public void rawSessionMatchesFullView() throws Exception {
+        Session session = buildSession(new ObjectId().toHexString());
+        RawBsonDocument raw = toRaw(session);
+
+        assertEquals(writeFullView(session), new String(writer.toJson(raw), StandardCharsets.UTF_8));
+        assertEquals(session.getId(), RawSessionJsonWriter.getId(raw));
+        assertEquals(session.getChecksum(), RawSessionJsonWriter.getChecksum(raw));
+    }
+
+    @Test
+    public void rawSessionsMatchFullView() throws Exception {
+        Session first = buildSession(new ObjectId().toHexString());
+        Session second = buildSession(new ObjectId().toHexString());
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        writer.writeSessions(Arrays.asList(toRaw(first), toRaw(second)), outputStream);
+
+        String expected = objectMapper.writerWithView(Session.Views.Full.class)
+            .writeValueAsString(Arrays.asList(first, second));
+        assertEquals(expected, outputStream.toString(StandardCharsets.UTF_8));
+    }
+
+    private Session buildSession(String id) {
+        Session session = new Session();
+        session.setId(id);
+        session.setSource("msk_portal");
+        session.setType(SessionType.main_session);
+        session.setData(DATA);
+        return session;
+    }
+
+    private RawBsonDocument toRaw(Session session) {
+        Document document = new Document("_id", new ObjectId(session.getId()))
+            .append("checksum", session.getChecksum())
+            .append("data", session.getData())
+            .append("source", session.getSource())
+            .append("type", session.getType().toString())
+            .append("_class", Session.class.getName());
+        return new RawBsonDocument(document, new DocumentCodec());
+    }
+
+    private String writeFullView(Session session) throws Exception {
+        return objectMapper.writerWithView(Session.Views.Full.class).writeValueAsString(session);
+    }
+}